@@ -0,0 +1,171 @@
+/*
+ * COEN 317
+ * Distributed Editor
+ * Loading and saving files on a worker thread
+ *
+ * A load reads and decodes the file into a new document away from the event
+ * dispatch thread, and only hands the finished document over (a document
+ * that no component shows yet needs no locking). A save writes a snapshot of
+ * the document's pieces, so editing can go on meanwhile, to a temporary file
+ * next to the target that is then renamed over it: the target is either the
+ * old file or the new one, never half of each.
+ *
+ * Progress is shown in a ProgressMonitor (only if the task takes a while),
+ * and cancelling it stops the task; a cancelled save leaves the file as it was.
+ */
+
+import java.awt.*;
+import java.io.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.function.*;
+import javax.swing.*;
+import javax.swing.text.*;
+
+public class DocumentIO<T> extends SwingWorker<T, Void> {
+    static final int STEP = 1024 * 1024; //Characters or bytes between progress updates
+
+    //Where a task reports how far it has got; throws once the task is cancelled
+    interface Progress {
+        void advance(long n) throws InterruptedIOException;
+    }
+
+    //What the task does, on the worker thread
+    private interface Job<T> {
+        T run(Progress progress) throws IOException;
+    }
+
+    private final Job<T> job;
+    private final Consumer<T> then;
+    private final Consumer<Exception> failed;
+
+    private final ProgressMonitor monitor;
+    private final long total;
+    private long done;
+
+    private DocumentIO(Component parent, String message, long total, Job<T> job, Consumer<T> then,
+            Consumer<Exception> failed) {
+        this.job = job;
+        this.then = then;
+        this.failed = failed;
+        this.total = Math.max(total, 1);
+
+        monitor = new ProgressMonitor(parent, message, null, 0, 100);
+        monitor.setMillisToDecideToPopup(200);
+        monitor.setMillisToPopup(500);
+        addPropertyChangeListener(e -> {
+            if ("progress".equals(e.getPropertyName())) {
+                monitor.setProgress((Integer) e.getNewValue());
+                if (monitor.isCanceled()) cancel(true);
+            }
+        });
+    }
+
+    //Read a file into a new document, then give it to then (on the event dispatch thread)
+    static DocumentIO<PieceTableDocument> load(Component parent, Path file,
+            Consumer<PieceTableDocument> then, Consumer<Exception> failed) throws IOException {
+        long size = Files.size(file);
+        return start(new DocumentIO<>(parent, "Opening " + file.getFileName(), size, progress -> {
+            try (Reader in = new InputStreamReader(new FileInputStream(file.toFile()), Charset.defaultCharset())) {
+                return PieceTableDocument.read(in, size, progress);
+            }
+        }, then, failed));
+    }
+
+    //Write a document to a file (in the same encoding FileReader reads)
+    static DocumentIO<Path> save(Component parent, PieceTableDocument document, Path file,
+            Consumer<Path> then, Consumer<Exception> failed) {
+        List<Segment> pieces = document.snapshot();
+        return start(new DocumentIO<>(parent, "Saving " + file.getFileName(), document.getLength(), progress -> {
+            replace(file, temp -> {
+                FileOutputStream out = new FileOutputStream(temp.toFile());
+                try (Writer writer = new BufferedWriter(new OutputStreamWriter(out, Charset.defaultCharset()))) {
+                    for (Segment piece : pieces) {
+                        for (int i = 0; i < piece.count; i += STEP) {
+                            int n = Math.min(STEP, piece.count - i);
+                            writer.write(piece.array, piece.offset + i, n);
+                            progress.advance(n);
+                        }
+                    }
+                    writer.flush();
+                    out.getFD().sync();
+                }
+            });
+            return file;
+        }, then, failed));
+    }
+
+    //Copy a file as it is
+    static DocumentIO<Path> copy(Component parent, Path source, Path file,
+            Consumer<Path> then, Consumer<Exception> failed) throws IOException {
+        return start(new DocumentIO<>(parent, "Saving " + file.getFileName(), Files.size(source), progress -> {
+            replace(file, temp -> {
+                try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ);
+                     FileChannel out = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+                    long size = in.size();
+                    for (long pos = 0; pos < size; ) {
+                        long n = in.transferTo(pos, Math.min(STEP, size - pos), out);
+                        if (n <= 0) throw new EOFException("File shrank while being copied: " + source);
+                        pos += n;
+                        progress.advance(n);
+                    }
+                    out.force(true);
+                }
+            });
+            return file;
+        }, then, failed));
+    }
+
+    private interface Write {
+        void to(Path temp) throws IOException;
+    }
+
+    //Write a temporary file next to the target, then rename it over the target
+    private static void replace(Path file, Write write) throws IOException {
+        Path temp = file.toAbsolutePath().resolveSibling("." + file.getFileName() + ".saving");
+        try {
+            Files.newOutputStream(temp).close(); //Created (or emptied) with the usual permissions
+            write.to(temp);
+            try {
+                Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+            }
+
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    private static <T> DocumentIO<T> start(DocumentIO<T> task) {
+        task.execute();
+        return task;
+    }
+
+    @Override
+    protected T doInBackground() throws IOException {
+        return job.run(n -> {
+            if (isCancelled()) throw new InterruptedIOException("Cancelled");
+
+            done += n;
+            setProgress((int) Math.min(99, done * 100 / total));
+        });
+    }
+
+    @Override
+    protected void done() {
+        monitor.close();
+        if (isCancelled()) return;
+
+        try {
+            then.accept(get());
+        } catch (ExecutionException e) {
+            failed.accept(e.getCause() instanceof Exception ? (Exception) e.getCause() : e);
+        } catch (InterruptedException e) {
+            /* ¯\_(ツ)_/¯ */
+        }
+    }
+}
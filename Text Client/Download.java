@@ -0,0 +1,237 @@
+/*
+ * COEN 317
+ * Distributed Editor
+ * Fetches a file from the Server in byte ranges (protocol version 4)
+ *
+ * The file is split into RANGE_SIZE ranges, fetched over up to "streams"
+ * connections of their own at once, each range into a part file of its own
+ * ("[file].part" for the first, "[file].part.[n]" for the others). A range
+ * whose part file survives an interrupted download is only fetched from where
+ * it stopped. Once every range is in, they are put together and checked.
+ */
+
+import java.io.*;
+import java.net.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+public class Download {
+    static final long RANGE_SIZE = 16 * 1024 * 1024;
+
+    private final String server;
+    private final int port;
+    private final String path; //On the Server: "[user]/[file]"
+    private final Path target;
+    private final int streams;
+    private final boolean compress; //Ask the Server to compress frames (protocol version 8)
+
+    //Learnt from the first range's FILE_BEGIN
+    private long size = -1;
+    private int checksum;
+
+    private final Queue<Integer> pending = new ConcurrentLinkedQueue<>(); //Ranges still to fetch
+    private volatile String error;
+
+    Download(String server, int port, String path, Path directory, int streams, boolean compress) {
+        this.server = server;
+        this.port = port;
+        this.path = path;
+        this.streams = Math.max(1, streams);
+        this.compress = compress;
+
+        int index = Math.max(path.lastIndexOf("/"), path.lastIndexOf("\\"));
+        target = directory.resolve(path.substring(index + 1));
+    }
+
+    Path target() {
+        return target;
+    }
+
+    //Why the download failed
+    String error() {
+        return error;
+    }
+
+    //Fetch the whole file; returns false (see error()) if it could not be
+    //Whatever was received is kept, so running the download again resumes it
+    boolean run() {
+        //The first range also tells how big the file is
+        Connection first = new Connection();
+        try {
+            if (!first.fetch(0)) return false;
+
+            int ranges = (int) Math.max(1, (size + RANGE_SIZE - 1) / RANGE_SIZE);
+            for (int range = 1; range < ranges; range++) {
+                pending.add(range);
+            }
+
+            //Fetch the rest in parallel: one thread per extra connection, plus this one
+            List<Thread> workers = new ArrayList<>();
+            for (int i = 1; i < Math.min(streams, ranges); i++) {
+                Thread worker = new Thread(() -> {
+                    try (Connection conn = new Connection()) {
+                        conn.fetchPending();
+                    } catch (IOException e) {
+                        error = "Error receiving file " + path + ": " + e;
+                    }
+                }, "download " + path + " #" + i);
+                worker.start();
+                workers.add(worker);
+            }
+            first.fetchPending();
+
+            for (Thread worker : workers) {
+                worker.join();
+            }
+            if (error != null || !pending.isEmpty()) return false;
+
+            return ranges == 1 || assemble(ranges);
+
+        } catch (IOException e) {
+            error = "Error receiving file " + path + ": " + e;
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            error = "Download of " + path + " interrupted";
+            return false;
+        } finally {
+            first.close();
+        }
+    }
+
+    private Path part(int range) {
+        String name = target.getFileName() + ".part";
+        return target.resolveSibling(range == 0 ? name : name + "." + range);
+    }
+
+    //Append the other ranges to the first one's part file, then check the whole file
+    private boolean assemble(int ranges) throws IOException {
+        Path part = part(0);
+        try (FileChannel file = FileChannel.open(part, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            for (int range = 1; range < ranges; range++) {
+                Path piece = part(range);
+                try (FileChannel in = FileChannel.open(piece, StandardOpenOption.READ)) {
+                    long position = range * RANGE_SIZE, count = in.size();
+                    for (long done = 0; done < count; ) {
+                        done += file.transferFrom(in, position + done, count - done);
+                    }
+                }
+                Files.delete(piece);
+            }
+
+            if (FileReceiver.complete(part, target, size, checksum, FileSender.checksum(file))) {
+                return true;
+            }
+        }
+
+        error = "Error receiving file " + path + " (the file changed on the server; get it again)";
+        return false;
+    }
+
+    //One connection to the Server that fetches ranges, one at a time
+    //Only connects once there is a range for it to fetch
+    private class Connection implements Closeable {
+        private Socket socket;
+        private DataInputStream in;
+        private DataOutputStream out;
+        private final FrameCompression compression = new FrameCompression();
+
+        private void connect() throws IOException {
+            socket = new Socket(server, port);
+            in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), WireCodec.CHUNK_SIZE));
+            out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+
+            //No LOGIN: the Server treats a connection that starts with FILE_GET as a transfer connection
+            //HELLO goes out with the first FILE_GET, which flushes
+            out.write(WireCodec.encode(WireCodec.HELLO, 0, TextClient.hello(compress)));
+        }
+
+        //Fetch ranges from the queue until it is empty (or one fails)
+        void fetchPending() throws IOException {
+            Integer range;
+            while (error == null && (range = pending.poll()) != null) {
+                if (!fetch(range)) {
+                    pending.add(range);
+                    return;
+                }
+            }
+        }
+
+        //Fetch what is still missing of one range
+        boolean fetch(int range) throws IOException {
+            if (socket == null) connect();
+
+            long start = range * RANGE_SIZE;
+            long end = size < 0 ? start + RANGE_SIZE : Math.min(start + RANGE_SIZE, size);
+            Path part = part(range);
+            long have = Files.exists(part) ? Math.min(Files.size(part), end - start) : 0;
+
+            int transferId = range + 1;
+            WireCodec.write(out, WireCodec.FILE_GET, 0, new WireCodec.Writer().varint(transferId)
+                    .varlong(start + have).varlong(end - start - have).text(path).toByteArray());
+
+            FileReceiver receiver = null;
+            try {
+                while (true) {
+                    WireCodec.Frame frame = compression.decompress(WireCodec.read(in));
+                    if (frame.type < WireCodec.FILE_BEGIN || frame.type > WireCodec.FILE_END
+                            || FileReceiver.transferId(frame.payload) != transferId) {
+                        continue; //HELLO, or text from the Server
+                    }
+
+                    switch (frame.type) {
+                        case WireCodec.FILE_BEGIN:
+                            receiver = new FileReceiver(frame, target, part, start);
+                            if (size < 0) {
+                                size = receiver.size;
+                                checksum = receiver.checksum;
+                            } else if (receiver.size != size || receiver.checksum != checksum) {
+                                error = "File " + path + " changed on the server during the download";
+                                return false;
+                            }
+                            break;
+
+                        case WireCodec.FILE_CHUNK:
+                            if (receiver != null) receiver.write(frame.payload);
+                            break;
+
+                        case WireCodec.FILE_END:
+                            if (receiver == null) {
+                                error = "File Not Found on Server: " + path;
+                                return false;
+                            }
+
+                            boolean complete = receiver.finish(frame.payload);
+                            receiver = null;
+                            if (!complete) {
+                                error = "Error receiving file " + path;
+                            }
+                            return complete;
+                    }
+                }
+
+            } finally {
+                if (receiver != null) receiver.close();
+            }
+        }
+
+        @Override
+        public void close() {
+            if (socket == null) return;
+
+            try {
+                WireCodec.write(out, WireCodec.LOGOUT, 0, new byte[0]);
+            } catch (IOException e) {
+                /* ¯\_(ツ)_/¯ */
+            }
+
+            try {
+                socket.close();
+            } catch (IOException e) {
+                /* ¯\_(ツ)_/¯ */
+            }
+        }
+    }
+}
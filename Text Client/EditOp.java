@@ -0,0 +1,173 @@
+/*
+ * This class is one change to a shared document (protocol version 6): text
+ * inserted at an offset, or characters deleted from one. Offsets and lengths
+ * count UTF-16 chars, as Java strings and Swing documents do.
+ *
+ * An EDIT frame carries a batch of them, applied in order:
+ * [document id][revision: varlong][count][op]...
+ * op: [INSERT][offset][UTF-8 length][UTF-8 bytes] or [DELETE][offset][length]
+ *
+ * Batches made at the same time on the same text are merged with transform()
+ * (operational transformation): each is rewritten to apply after the other,
+ * so that both orders end with the same text. Where both insert at the same
+ * place, the batch the Server put first goes first.
+ */
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+public class EditOp {
+    static final int INSERT = 0, DELETE = 1;
+
+    final int kind;
+    final int offset;
+    final int length; //Characters inserted or deleted
+    final String text; //Inserted text; null for a delete
+
+    private EditOp(int kind, int offset, int length, String text) {
+        this.kind = kind;
+        this.offset = offset;
+        this.length = length;
+        this.text = text;
+    }
+
+    static EditOp insert(int offset, String text) {
+        return new EditOp(INSERT, offset, text.length(), text);
+    }
+
+    static EditOp delete(int offset, int length) {
+        return new EditOp(DELETE, offset, length, null);
+    }
+
+    //This edit and the next one as a single edit, if they make one (typing on,
+    //backspacing, deleting forward); null if they do not
+    EditOp merge(EditOp next) {
+        if (kind == INSERT && next.kind == INSERT && next.offset == offset + length) {
+            return insert(offset, text + next.text);
+        }
+        if (kind == DELETE && next.kind == DELETE) {
+            if (next.offset == offset) return delete(offset, length + next.length);
+            if (next.offset + next.length == offset) return delete(next.offset, length + next.length);
+        }
+        return null;
+    }
+
+    //Rewrite two batches made on the same text to apply after each other: returns
+    //{a after b, b after a}; b is the one that goes first where both insert at one place
+    static List<EditOp>[] transform(List<EditOp> a, List<EditOp> b) {
+        if (a.isEmpty() || b.isEmpty()) return pair(a, b);
+
+        if (a.size() > 1) {
+            List<EditOp>[] head = transform(a.subList(0, 1), b);
+            List<EditOp>[] tail = transform(a.subList(1, a.size()), head[1]);
+            return pair(concat(head[0], tail[0]), tail[1]);
+        }
+        if (b.size() > 1) {
+            List<EditOp>[] head = transform(a, b.subList(0, 1));
+            List<EditOp>[] tail = transform(head[0], b.subList(1, b.size()));
+            return pair(tail[0], concat(head[1], tail[1]));
+        }
+        return pair(a.get(0).after(b.get(0), false), b.get(0).after(a.get(0), true));
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static List<EditOp>[] pair(List<EditOp> a, List<EditOp> b) {
+        return new List[] {a, b};
+    }
+
+    private static List<EditOp> concat(List<EditOp> a, List<EditOp> b) {
+        List<EditOp> both = new ArrayList<>(a.size() + b.size());
+        both.addAll(a);
+        both.addAll(b);
+        return both;
+    }
+
+    //This edit rewritten to apply after other, made on the same text; a delete
+    //may come out in two pieces (around text inserted inside it), or not at all
+    //first: this edit goes first where both insert at the same place
+    private List<EditOp> after(EditOp other, boolean first) {
+        if (other.kind == INSERT) {
+            int end = other.offset;
+            if (kind == INSERT) {
+                boolean before = offset < end || offset == end && first;
+                return List.of(before ? this : insert(offset + other.length, text));
+            }
+            if (offset + length <= end) return List.of(this);
+            if (offset >= end) return List.of(delete(offset + other.length, length));
+            return List.of(delete(offset, end - offset), delete(offset + other.length, length - (end - offset)));
+        }
+
+        if (kind == INSERT) return List.of(insert(shift(offset, other), text));
+
+        int start = shift(offset, other);
+        int n = shift(offset + length, other) - start;
+        return n == 0 ? List.of() : List.of(delete(start, n));
+    }
+
+    //Where an offset ends up after a delete
+    private static int shift(int offset, EditOp delete) {
+        if (offset <= delete.offset) return offset;
+        if (offset >= delete.offset + delete.length) return offset - delete.length;
+        return delete.offset;
+    }
+
+    //Apply a batch of edits to a text; if one of them does not fit, none are applied
+    static boolean apply(List<EditOp> ops, StringBuilder text) {
+        int size = text.length();
+        for (EditOp op : ops) {
+            if (op.offset < 0 || op.length < 0 || op.offset > size
+                    || op.kind == DELETE && op.length > size - op.offset) {
+                return false;
+            }
+            size += op.kind == INSERT ? op.length : -op.length;
+        }
+
+        for (EditOp op : ops) {
+            if (op.kind == INSERT) {
+                text.insert(op.offset, op.text);
+            } else {
+                text.delete(op.offset, op.offset + op.length);
+            }
+        }
+        return true;
+    }
+
+    //Payload of an EDIT frame
+    static byte[] encode(int document, long revision, List<EditOp> ops) {
+        WireCodec.Writer out = new WireCodec.Writer().varint(document).varlong(revision).varint(ops.size());
+        for (EditOp op : ops) {
+            out.varint(op.kind).varint(op.offset);
+            if (op.kind == INSERT) {
+                byte[] text = WireCodec.utf8(op.text);
+                out.varint(text.length).bytes(text);
+            } else {
+                out.varint(op.length);
+            }
+        }
+        return out.toByteArray();
+    }
+
+    //Edits of an EDIT payload, after its document id and revision
+    //Throws if the payload is corrupt (a count or length that cannot be right)
+    static List<EditOp> decode(WireCodec.Reader in) throws StreamCorruptedException {
+        int count = in.varint();
+        if (count < 0 || count > in.remaining()) throw new StreamCorruptedException("Invalid edit count: " + count);
+        List<EditOp> ops = new ArrayList<>(count);
+        for (int i = 0; i < count && in.remaining() > 0; i++) {
+            int kind = in.varint();
+            int offset = in.varint();
+            if (kind == INSERT) {
+                ops.add(insert(offset, new String(in.bytes(in.varint()), StandardCharsets.UTF_8)));
+            } else {
+                ops.add(delete(offset, in.varint()));
+            }
+        }
+        return ops;
+    }
+
+    @Override
+    public String toString() {
+        return kind == INSERT ? "insert " + offset + " \"" + text + "\"" : "delete " + offset + " +" + length;
+    }
+}
@@ -0,0 +1,198 @@
+/*
+ * This class sends a new version of a file as its differences from the old
+ * version the receiver already has, the way rsync does (protocol version 7).
+ *
+ * The receiver splits the old file into blocks and sends a checksum pair for
+ * each one in FILE_SIGNATURES: a weak 32-bit sum that can be rolled along the
+ * new file a byte at a time, and the first 8 bytes of the block's SHA-256.
+ * The sender slides a block-sized window over the new file; wherever the
+ * window's checksums match a block, it sends a FILE_COPY reference to that
+ * block instead of the bytes, and the bytes in between go as FILE_CHUNKs.
+ * The receiver checks the rebuilt file against FILE_BEGIN's size and CRC32C
+ * as usual, so a block that only looked the same cannot go unnoticed.
+ *
+ * FILE_SIGNATURES: [transfer id][block size][count]([weak: int32][strong: 8 bytes])...
+ * FILE_COPY: [transfer id][first block: varlong][blocks: varlong]
+ */
+
+import java.io.*;
+import java.nio.*;
+import java.security.*;
+import java.util.*;
+
+public class FileDelta {
+    static final int MIN_FILE = 16 * 1024; //Smaller files are simply sent again
+
+    private static final int MIN_BLOCK = 700;       //As rsync
+    private static final int MAX_BLOCK = 128 * 1024;
+    private static final int MAX_BLOCKS = 1 << 16;  //Keeps FILE_SIGNATURES under 1 MB
+
+    final int blockSize;
+    private final int[] weak;
+    private final long[] strong;
+
+    //Blocks by weak checksum: first[weak] is the first block, next[block] the one after it;
+    //tags has a bit per 16-bit hash of the weak checksums, to rule most windows out at once
+    private final Map<Integer, Integer> first = new HashMap<>();
+    private final int[] next;
+    private final BitSet tags = new BitSet(1 << 16);
+
+    private final MessageDigest sha = sha256();
+
+    //Block size for a file of the given size: about its square root (as rsync),
+    //but large enough for the file to have at most MAX_BLOCKS blocks
+    static int blockSize(long size) {
+        long blockSize = Math.max((long) Math.sqrt(size), (size + MAX_BLOCKS - 1) / MAX_BLOCKS);
+        return (int) Math.min(Math.max(blockSize, MIN_BLOCK), MAX_BLOCK);
+    }
+
+    //FILE_SIGNATURES payload for the whole blocks of a file (a shorter last block is left out)
+    static byte[] signatures(int transferId, ByteBuffer file, int blockSize) {
+        int count = file.remaining() / blockSize;
+        WireCodec.Writer out = new WireCodec.Writer().varint(transferId).varint(blockSize).varint(count);
+        MessageDigest sha = sha256();
+        for (int i = 0; i < count; i++) {
+            int from = file.position() + i * blockSize;
+            out.int32(weak(file, from, blockSize));
+            out.bytes(longBytes(strong(sha, file, from, blockSize)));
+        }
+        return out.toByteArray();
+    }
+
+    //Block checksums of a FILE_SIGNATURES payload, after its transfer id
+    FileDelta(WireCodec.Reader in) throws StreamCorruptedException {
+        blockSize = in.varint();
+        int count = in.varint();
+        if (count < 0 || blockSize <= 0) throw new StreamCorruptedException("Invalid block signatures");
+        count = Math.min(count, in.remaining() / 12);
+        weak = new int[count];
+        strong = new long[count];
+        next = new int[count];
+
+        for (int i = 0; i < count; i++) {
+            weak[i] = in.int32();
+            strong[i] = ByteBuffer.wrap(in.bytes(8)).getLong();
+        }
+
+        //Listed from the last block back, so that each list starts with its first block
+        for (int i = count - 1; i >= 0; i--) {
+            Integer after = first.put(weak[i], i);
+            next[i] = after == null ? -1 : after;
+            tags.set(tag(weak[i]));
+        }
+    }
+
+    //Where diff() puts the new file, in order
+    interface Output {
+        void literal(ByteBuffer data) throws IOException; //Bytes to send as they are
+        void copy(long block, long count) throws IOException; //Blocks of the old file
+    }
+
+    //Describe the content of data (position to limit) as bytes and blocks of the old file
+    void diff(ByteBuffer data, Output out) throws IOException {
+        int start = data.position(), end = data.limit();
+        int literal = start; //Start of the bytes not matched yet
+        long run = -1, runLength = 0; //Consecutive blocks matched, sent as one FILE_COPY
+
+        int i = start;
+        int a = 0, b = 0; //The two halves of the weak checksum of the window at i
+        boolean summed = false; //a and b are up to date
+        while (i + blockSize <= end && weak.length > 0) {
+            if (!summed) {
+                a = 0;
+                b = 0;
+                for (int k = 0; k < blockSize; k++) {
+                    int x = data.get(i + k) & 0xFF;
+                    a += x;
+                    b += (blockSize - k) * x;
+                }
+                summed = true;
+            }
+
+            int block = find((a & 0xFFFF) | (b << 16), data, i, run + runLength);
+            if (block >= 0) {
+                if (literal < i) {
+                    if (runLength > 0) out.copy(run, runLength);
+                    runLength = 0;
+                    out.literal(slice(data, literal, i));
+                }
+                if (runLength > 0 && block == run + runLength) {
+                    runLength++;
+                } else {
+                    if (runLength > 0) out.copy(run, runLength);
+                    run = block;
+                    runLength = 1;
+                }
+                i += blockSize;
+                literal = i;
+                summed = false;
+                continue;
+            }
+
+            //Slide the window on by a byte
+            if (i + blockSize < end) {
+                int leaving = data.get(i) & 0xFF, entering = data.get(i + blockSize) & 0xFF;
+                a += entering - leaving;
+                b += a - blockSize * leaving;
+            }
+            i++;
+        }
+
+        if (runLength > 0) out.copy(run, runLength);
+        if (literal < end) out.literal(slice(data, literal, end));
+    }
+
+    //Block whose checksums match the window at from, preferring the one after the
+    //last block matched (so runs of blocks stay together); -1 if there is none
+    private int find(int weakSum, ByteBuffer data, int from, long preferred) {
+        if (!tags.get(tag(weakSum))) return -1;
+        Integer block = first.get(weakSum);
+        if (block == null) return -1;
+
+        long sum = strong(sha, data, from, blockSize);
+        if (preferred >= 0 && preferred < weak.length && weak[(int) preferred] == weakSum && strong[(int) preferred] == sum) {
+            return (int) preferred;
+        }
+        for (int b = block; b >= 0; b = next[b]) {
+            if (strong[b] == sum) return b;
+        }
+        return -1;
+    }
+
+    //rsync's weak checksum of n bytes from offset from
+    static int weak(ByteBuffer data, int from, int n) {
+        int a = 0, b = 0;
+        for (int k = 0; k < n; k++) {
+            int x = data.get(from + k) & 0xFF;
+            a += x;
+            b += (n - k) * x;
+        }
+        return (a & 0xFFFF) | (b << 16);
+    }
+
+    //First 8 bytes of the SHA-256 of n bytes from offset from
+    static long strong(MessageDigest sha, ByteBuffer data, int from, int n) {
+        sha.update(slice(data, from, from + n));
+        return ByteBuffer.wrap(sha.digest()).getLong();
+    }
+
+    private static int tag(int weakSum) {
+        return (weakSum ^ (weakSum >>> 16)) & 0xFFFF;
+    }
+
+    private static ByteBuffer slice(ByteBuffer data, int from, int to) {
+        return data.duplicate().limit(to).position(from);
+    }
+
+    private static byte[] longBytes(long value) {
+        return ByteBuffer.allocate(8).putLong(value).array();
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e); //Every JVM has SHA-256
+        }
+    }
+}
@@ -0,0 +1,216 @@
+/*
+ * COEN 317
+ * Distributed Editor
+ * Lines of a file too big to load into the editor, for a read-only JList
+ *
+ * The file is memory-mapped rather than read. A background thread indexes
+ * where its lines start, keeping the offset of every STRIDE-th line only, and
+ * the list is told about the lines as they are found, so the first screen
+ * shows up at once. A line is only decoded when the list asks for it (which
+ * it does for the rows on screen): the block of STRIDE lines it is in is
+ * decoded with it, as a prefetch for scrolling, and the most recently used
+ * blocks are kept. Memory use is then the blocks kept, plus 8 bytes of index
+ * per STRIDE lines.
+ */
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.util.*;
+import javax.swing.*;
+
+public class LargeFileModel extends AbstractListModel<String> implements Closeable {
+    private static final long serialVersionUID = 1L;
+
+    static final int STRIDE = 64;                    //Lines per index entry and per decoded block
+    private static final int BLOCKS_KEPT = 64;       //Decoded blocks kept for scrolling back
+    private static final long SEGMENT = 1L << 30;    //Bytes mapped at once (a mapping is at most 2 GB)
+    private static final int SCAN_STEP = 1 << 20;    //Bytes indexed between checks for progress to show
+    private static final long PUBLISH_NANOS = 100_000_000L;
+    static final int MAX_LINE = 10000;               //Characters shown of a longer line
+    private static final int TAB_SIZE = 8;
+
+    final Path path;
+    private final FileChannel channel;
+    private final MappedByteBuffer[] segments;
+    private final long size;
+    private final Charset charset = Charset.defaultCharset(); //As FileReader, for the editor
+
+    //Written by the indexing thread only; lines is written last, so that the
+    //checkpoints covering the lines it counts are visible along with it
+    private volatile long[] checkpoints = new long[1024]; //Offset of line i * STRIDE
+    private volatile int lines;
+    private volatile int longestLine; //In bytes
+    private volatile boolean indexed;
+    private volatile boolean closed;
+
+    //Event dispatch thread only
+    private int shown; //Lines the list has been told about
+    private final Map<Integer, String[]> blocks = new LinkedHashMap<Integer, String[]>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, String[]> eldest) {
+            return size() > BLOCKS_KEPT;
+        }
+    };
+
+    //Map the file and start indexing it
+    LargeFileModel(Path path) throws IOException {
+        this.path = path;
+        channel = FileChannel.open(path, StandardOpenOption.READ);
+        size = channel.size();
+
+        segments = new MappedByteBuffer[(int) ((size + SEGMENT - 1) / SEGMENT)];
+        for (int i = 0; i < segments.length; i++) {
+            long start = i * SEGMENT;
+            segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(SEGMENT, size - start));
+        }
+
+        Thread indexer = new Thread(this::index, "index " + path.getFileName());
+        indexer.setDaemon(true);
+        indexer.start();
+    }
+
+    //True once every line of the file has been found
+    boolean indexed() {
+        return indexed;
+    }
+
+    //Length in bytes of the longest line indexed so far
+    int longestLine() {
+        return longestLine;
+    }
+
+    @Override
+    public int getSize() {
+        return shown;
+    }
+
+    @Override
+    public String getElementAt(int index) {
+        int block = index / STRIDE;
+        String[] lines = blocks.get(block);
+        if (lines == null || lines.length <= index % STRIDE) {
+            lines = decode(block);
+            blocks.put(block, lines);
+        }
+        return lines[index % STRIDE];
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        try {
+            channel.close(); //The mappings stay valid until they are garbage collected
+        } catch (IOException e) {
+            /* ¯\_(ツ)_/¯ */
+        }
+    }
+
+    //Find the lines, telling the list about them every so often
+    private void index() {
+        long lineStart = 0;
+        int count = 0, longest = 0;
+        long published = 0; //Nothing yet, so the first lines are shown straight away
+
+        for (long pos = 0; pos < size && !closed; ) {
+            ByteBuffer segment = segments[(int) (pos / SEGMENT)];
+            long base = pos - pos % SEGMENT;
+            int end = (int) Math.min(pos - base + SCAN_STEP, segment.limit());
+
+            for (int i = (int) (pos - base); i < end; i++) {
+                if (segment.get(i) == '\n') {
+                    long next = base + i + 1;
+                    longest = (int) Math.max(longest, Math.min(next - lineStart, Integer.MAX_VALUE));
+                    lineStart = next;
+
+                    if (++count % STRIDE == 0) {
+                        int entry = count / STRIDE;
+                        long[] offsets = checkpoints;
+                        if (entry == offsets.length) {
+                            offsets = Arrays.copyOf(offsets, entry * 2);
+                        }
+                        offsets[entry] = next;
+                        checkpoints = offsets;
+                    }
+                }
+            }
+            pos = base + end;
+
+            long now = System.nanoTime();
+            if (published == 0 || now - published > PUBLISH_NANOS) {
+                publish(count, longest);
+                published = now;
+            }
+        }
+
+        if (lineStart < size) {
+            longest = (int) Math.max(longest, Math.min(size - lineStart, Integer.MAX_VALUE));
+            count++; //Last line, without a newline
+        }
+        publish(count, longest);
+        indexed = !closed;
+    }
+
+    private void publish(int count, int longest) {
+        longestLine = longest;
+        lines = count;
+        SwingUtilities.invokeLater(() -> {
+            int total = lines;
+            if (!closed && total > shown) {
+                int first = shown;
+                shown = total;
+                fireIntervalAdded(this, first, total - 1);
+            }
+        });
+    }
+
+    private byte get(long pos) {
+        return segments[(int) (pos / SEGMENT)].get((int) (pos % SEGMENT));
+    }
+
+    //Decode the lines of a block that have been indexed
+    private String[] decode(int block) {
+        int first = block * STRIDE;
+        String[] decoded = new String[Math.max(0, Math.min(STRIDE, lines - first))];
+
+        long pos = checkpoints[block];
+        for (int i = 0; i < decoded.length; i++) {
+            long end = pos;
+            while (end < size && get(end) != '\n') {
+                end++;
+            }
+            decoded[i] = line(pos, end);
+            pos = end + 1;
+        }
+        return decoded;
+    }
+
+    //Text of the line in bytes start..end, with tabs expanded
+    private String line(long start, long end) {
+        if (end > start && get(end - 1) == '\r') end--;
+
+        //A character is never more than 4 bytes, so this is enough for MAX_LINE characters
+        byte[] bytes = new byte[(int) Math.min(end - start, MAX_LINE * 4L)];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = get(start + i);
+        }
+        String text = new String(bytes, charset);
+
+        StringBuilder line = new StringBuilder(Math.min(text.length(), MAX_LINE));
+        for (int i = 0; i < text.length() && line.length() < MAX_LINE; i++) {
+            char c = text.charAt(i);
+            if (c == '\t') {
+                do {
+                    line.append(' ');
+                } while (line.length() % TAB_SIZE != 0);
+            } else {
+                line.append(c);
+            }
+        }
+        return line.toString();
+    }
+}
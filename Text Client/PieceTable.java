@@ -0,0 +1,402 @@
+/*
+ * COEN 317
+ * Distributed Editor
+ * Text of a document, kept as a piece table
+ *
+ * The text is a sequence of pieces, each a run of characters in a buffer that
+ * never changes: a text handed over whole (a file that was opened, which is
+ * referred to rather than copied), or the add buffer, which every inserted
+ * string is appended to. An edit only splits pieces and adds one, so it costs
+ * O(log n) in the number of pieces however long the text is. The pieces are
+ * kept in a treap ordered by position, each node knowing how many characters
+ * its subtree holds.
+ *
+ * Like GapContent, the text always ends with a '\n' that cannot be removed,
+ * and Positions are marks stored relative to a virtual gap at the last edit,
+ * so an edit only updates the marks between it and the one before.
+ */
+
+import java.lang.ref.*;
+import java.util.*;
+import javax.swing.text.*;
+import javax.swing.undo.*;
+
+public class PieceTable implements AbstractDocument.Content {
+    //Run of characters in one of the buffers
+    private static class Piece {
+        final char[] buffer; //null for the add buffer, which moves when it grows
+        final int start;
+        int length;
+        final int priority;
+
+        int total; //Characters in this subtree
+        Piece left, right;
+
+        Piece(char[] buffer, int start, int length, int priority) {
+            this.buffer = buffer;
+            this.start = start;
+            this.length = length;
+            this.priority = priority;
+            total = length;
+        }
+    }
+
+    private Piece root;
+    private char[] add = new char[1024];
+    private int addLength;
+    private final Random random = new Random();
+
+    //Marks in order of offset; those from index "after" on are past the gap
+    //and stored as offset + gapSize, the others as the offset itself
+    private final ArrayList<Mark> marks = new ArrayList<>();
+    private int after;
+    private int gapStart;
+    private long gapSize = 1L << 60; //Only shrinks by the characters inserted, so never runs out
+
+    private final ReferenceQueue<Sticky> released = new ReferenceQueue<>();
+    private int unused; //Marks whose Position has been garbage collected
+
+    PieceTable() {
+        clear();
+    }
+
+    //Forget all the text but the final newline (and the buffers it was in)
+    private void clear() {
+        add = new char[1024];
+        add[0] = '\n';
+        addLength = 1;
+        root = new Piece(null, 0, 1, random.nextInt());
+    }
+
+    @Override
+    public int length() {
+        return root.total;
+    }
+
+    @Override
+    public UndoableEdit insertString(int where, String str) throws BadLocationException {
+        if (where < 0 || where >= length()) {
+            throw new BadLocationException("Invalid insert", length());
+        }
+        int n = str.length();
+        if (n == 0) return null;
+
+        if (addLength + n > add.length) {
+            if (addLength + n < 0) throw new BadLocationException("Text too long", where);
+            add = Arrays.copyOf(add, Math.max(addLength + n, add.length * 2));
+        }
+        str.getChars(0, n, add, addLength);
+        int start = addLength;
+        addLength += n;
+
+        //Typing: text appended right after the last insert just makes its piece longer
+        Piece[] split = split(root, where);
+        Piece last = split[0];
+        while (last != null && last.right != null) {
+            last = last.right;
+        }
+        if (last != null && last.buffer == null && last.start + last.length == start) {
+            grow(split[0], n);
+            root = merge(split[0], split[1]);
+        } else {
+            root = merge(merge(split[0], new Piece(null, start, n, random.nextInt())), split[1]);
+        }
+
+        updateMarksForInsert(where, n);
+        return null;
+    }
+
+    //Insert text without copying it; it must not be changed afterwards
+    void insert(int where, char[] text, int offset, int n) throws BadLocationException {
+        if (where < 0 || where >= length()) {
+            throw new BadLocationException("Invalid insert", length());
+        }
+        if (n == 0) return;
+
+        Piece[] split = split(root, where);
+        root = merge(merge(split[0], new Piece(text, offset, n, random.nextInt())), split[1]);
+        updateMarksForInsert(where, n);
+    }
+
+    @Override
+    public UndoableEdit remove(int where, int nitems) throws BadLocationException {
+        if (where < 0 || nitems < 0 || where + nitems >= length()) {
+            throw new BadLocationException("Invalid remove", length() + 1);
+        }
+        if (nitems == 0) return null;
+
+        Piece[] head = split(root, where);
+        Piece[] tail = split(head[1], nitems);
+        root = merge(head[0], tail[1]);
+        if (root.total == 1) clear(); //Nothing left of the old buffers
+
+        updateMarksForRemove(where, nitems);
+        return null;
+    }
+
+    @Override
+    public String getString(int where, int len) throws BadLocationException {
+        Segment s = new Segment();
+        getChars(where, len, s);
+        return new String(s.array, s.offset, s.count);
+    }
+
+    //Text inside one piece is given straight from its buffer; text across pieces
+    //is copied, unless a partial return (up to the end of the first piece) will do
+    @Override
+    public void getChars(int where, int len, Segment txt) throws BadLocationException {
+        if (where < 0 || len < 0 || where + len > length()) {
+            throw new BadLocationException("Invalid location", length() + 1);
+        }
+
+        Piece p = root;
+        int offset = where;
+        while (true) {
+            int left = total(p.left);
+            if (offset < left) {
+                p = p.left;
+            } else if (offset >= left + p.length && p.right != null) {
+                offset -= left + p.length;
+                p = p.right;
+            } else {
+                offset -= left;
+                break;
+            }
+        }
+
+        int inPiece = p.length - offset;
+        if (len <= inPiece || txt.isPartialReturn()) {
+            txt.array = p.buffer != null ? p.buffer : add;
+            txt.offset = p.start + offset;
+            txt.count = Math.min(len, inPiece);
+            return;
+        }
+
+        char[] copy = new char[len];
+        copy(root, 0, where, where + len, copy, where);
+        txt.array = copy;
+        txt.offset = 0;
+        txt.count = len;
+    }
+
+    //Add the text but the final newline to a list, a Segment per piece
+    //The buffers never change, so the segments keep the text as it is now
+    void pieces(List<Segment> out) {
+        pieces(root, out);
+        Segment last = out.remove(out.size() - 1);
+        if (last.count > 1) out.add(new Segment(last.array, last.offset, last.count - 1));
+    }
+
+    private void pieces(Piece p, List<Segment> out) {
+        if (p == null) return;
+
+        pieces(p.left, out);
+        out.add(new Segment(p.buffer != null ? p.buffer : add, p.start, p.length));
+        pieces(p.right, out);
+    }
+
+    //Copy the text from..to (offsets in the document) found in a subtree starting at base
+    private void copy(Piece p, int base, int from, int to, char[] out, int origin) {
+        if (p == null || from >= to) return;
+
+        int start = base + total(p.left), end = start + p.length;
+        if (from < start) {
+            copy(p.left, base, from, Math.min(to, start), out, origin);
+        }
+        int a = Math.max(from, start), b = Math.min(to, end);
+        if (a < b) {
+            System.arraycopy(p.buffer != null ? p.buffer : add, p.start + a - start, out, a - origin, b - a);
+        }
+        if (to > end) {
+            copy(p.right, end, Math.max(from, end), to, out, origin);
+        }
+    }
+
+    private static int total(Piece p) {
+        return p == null ? 0 : p.total;
+    }
+
+    private static Piece update(Piece p) {
+        p.total = total(p.left) + p.length + total(p.right);
+        return p;
+    }
+
+    //The pieces before and from offset, splitting the piece offset falls inside
+    private static Piece[] split(Piece p, int offset) {
+        if (p == null) return new Piece[2];
+
+        int left = total(p.left);
+        if (offset <= left) {
+            Piece[] split = split(p.left, offset);
+            p.left = split[1];
+            split[1] = update(p);
+            return split;
+        }
+        if (offset >= left + p.length) {
+            Piece[] split = split(p.right, offset - left - p.length);
+            p.right = split[0];
+            split[0] = update(p);
+            return split;
+        }
+
+        int n = offset - left;
+        Piece head = new Piece(p.buffer, p.start, n, p.priority);
+        Piece tail = new Piece(p.buffer, p.start + n, p.length - n, p.priority);
+        head.left = p.left;
+        tail.right = p.right;
+        return new Piece[] {update(head), update(tail)};
+    }
+
+    private static Piece merge(Piece a, Piece b) {
+        if (a == null) return b;
+        if (b == null) return a;
+
+        if (a.priority > b.priority) {
+            a.right = merge(a.right, b);
+            return update(a);
+        }
+        b.left = merge(a, b.left);
+        return update(b);
+    }
+
+    //Lengthen the last piece of a subtree
+    private static void grow(Piece p, int n) {
+        p.total += n;
+        if (p.right != null) {
+            grow(p.right, n);
+        } else {
+            p.length += n;
+        }
+    }
+
+    //Positions
+
+    //Position handed out; the mark only holds it weakly, so it goes once nobody uses it
+    private final class Sticky implements Position {
+        Mark mark;
+
+        @Override
+        public int getOffset() {
+            return offset(mark);
+        }
+
+        @Override
+        public String toString() {
+            return Integer.toString(getOffset());
+        }
+    }
+
+    private static class Mark extends WeakReference<Sticky> {
+        long stored;
+
+        Mark(Sticky position, long stored, ReferenceQueue<Sticky> queue) {
+            super(position, queue);
+            this.stored = stored;
+        }
+    }
+
+    private int offset(Mark mark) {
+        return (int) (mark.stored < gapStart ? mark.stored : mark.stored - gapSize);
+    }
+
+    //Index of the first mark at or after offset
+    private int find(int offset) {
+        int low = 0, high = marks.size();
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (offset(marks.get(mid)) < offset) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    @Override
+    public Position createPosition(int offset) throws BadLocationException {
+        if (offset < 0 || offset > length()) {
+            throw new BadLocationException("Invalid position", offset);
+        }
+        while (released.poll() != null) {
+            unused++;
+        }
+        if (unused > Math.max(5, marks.size() / 10)) {
+            removeUnusedMarks();
+        }
+
+        //Every position at an offset moves the same way, so one is shared
+        int index = find(offset);
+        if (index < marks.size()) {
+            Mark mark = marks.get(index);
+            Sticky position = mark.get();
+            if (position != null && offset(mark) == offset) return position;
+        }
+
+        Sticky position = new Sticky();
+        position.mark = new Mark(position, offset < gapStart ? offset : offset + gapSize, released);
+        marks.add(index, position.mark);
+        if (offset < gapStart) after++;
+        return position;
+    }
+
+    private void removeUnusedMarks() {
+        int kept = 0, keptBefore = 0;
+        for (int i = 0; i < marks.size(); i++) {
+            Mark mark = marks.get(i);
+            if (mark.get() != null) {
+                if (i < after) keptBefore++;
+                marks.set(kept++, mark);
+            }
+        }
+        marks.subList(kept, marks.size()).clear();
+        after = keptBefore;
+        unused = 0;
+    }
+
+    //Put the gap at offset, moving the marks it passes to its other side
+    private void moveGap(int offset) {
+        if (offset > gapStart) {
+            while (after < marks.size()) {
+                Mark mark = marks.get(after);
+                long actual = mark.stored - gapSize;
+                if (actual >= offset) break;
+                mark.stored = actual;
+                after++;
+            }
+        } else {
+            while (after > 0) {
+                Mark mark = marks.get(after - 1);
+                if (mark.stored < offset) break;
+                mark.stored += gapSize;
+                after--;
+            }
+        }
+        gapStart = offset;
+    }
+
+    //Marks at or after where move along with the text, except those at 0
+    private void updateMarksForInsert(int where, int n) {
+        moveGap(where);
+        gapStart += n;
+        gapSize -= n;
+
+        if (where == 0) {
+            while (after < marks.size() && offset(marks.get(after)) == n) {
+                marks.get(after++).stored = 0;
+            }
+        }
+    }
+
+    //Marks inside the removed text end up where it was, those after it move back
+    private void updateMarksForRemove(int where, int n) {
+        moveGap(where);
+        long gap = gapSize + n;
+        for (int i = after; i < marks.size(); i++) {
+            Mark mark = marks.get(i);
+            if (mark.stored - gapSize >= where + n) break;
+            mark.stored = where + gap;
+        }
+        gapSize = gap;
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * COEN 317
+ * Distributed Editor
+ * PlainDocument whose text is kept in a PieceTable
+ *
+ * A file opened in the editor is read into one char[] that the piece table
+ * refers to as is, and the line structure is built for all of it in a single
+ * pass, instead of the text being appended (and copied) a line at a time.
+ */
+
+import java.io.*;
+import java.util.*;
+import javax.swing.event.*;
+import javax.swing.text.*;
+
+public class PieceTableDocument extends PlainDocument {
+    private static final long serialVersionUID = 1L;
+
+    private static final int MAX_LENGTH = Integer.MAX_VALUE - 16; //Offsets are ints
+
+    //Empty document
+    PieceTableDocument() {
+        super(new PieceTable());
+    }
+
+    //Document holding length characters of text (which must not be changed afterwards)
+    PieceTableDocument(char[] text, int length) {
+        this();
+        if (length == 0) return;
+
+        writeLock();
+        try {
+            ((PieceTable) getContent()).insert(0, text, 0, length);
+            DefaultDocumentEvent event = new DefaultDocumentEvent(0, length, DocumentEvent.EventType.INSERT);
+            insertUpdate(event, null);
+            event.end();
+
+        } catch (BadLocationException e) {
+            throw new IllegalStateException(e); //Offset 0 is always valid
+        } finally {
+            writeUnlock();
+        }
+    }
+
+    //Read a whole text into a new document, turning "\r\n" and "\r" into '\n'
+    //sizeHint is how many characters the text is likely to have (such as the file's size)
+    static PieceTableDocument read(Reader in, long sizeHint, DocumentIO.Progress progress) throws IOException {
+        char[] text = new char[(int) Math.min(Math.max(sizeHint + 1, 16), MAX_LENGTH)];
+        int length = 0;
+        while (true) {
+            if (length == text.length) {
+                if (length == MAX_LENGTH) throw new IOException("Text too long to edit");
+                text = Arrays.copyOf(text, (int) Math.min(length * 2L, MAX_LENGTH));
+            }
+            int n = in.read(text, length, Math.min(text.length - length, DocumentIO.STEP));
+            if (n < 0) break;
+            length += n;
+            progress.advance(n);
+        }
+
+        int end = 0;
+        for (int i = 0; i < length; i++) {
+            char c = text[i];
+            if (c == '\r') {
+                c = '\n';
+                if (i + 1 < length && text[i + 1] == '\n') i++;
+            }
+            text[end++] = c;
+        }
+        return new PieceTableDocument(text, end);
+    }
+
+    //The text as it is now, as the runs of characters it is made of; they stay
+    //as they are while the document is edited, so it can be written out meanwhile
+    List<Segment> snapshot() {
+        List<Segment> pieces = new ArrayList<>();
+        render(() -> ((PieceTable) getContent()).pieces(pieces));
+        return pieces;
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * COEN 317
+ * Distributed Editor
+ * Our side of a shared document being edited (protocol version 6)
+ *
+ * Edits made here go to the Server one batch at a time: while a batch is on
+ * its way, the edits that follow wait (keystrokes that follow on merged into
+ * one edit) until the Server acknowledges it. The Server puts batches in
+ * order, and other Clients' batches come back in that order, so one that
+ * arrives was ordered before all the edits of ours it has not acknowledged
+ * yet: it is transformed against those before being applied here, and they
+ * against it, just as the Server does with batches that cross on the way.
+ * Both ends then reach the same text.
+ *
+ * Not thread-safe: the editor only uses it on the event dispatch thread.
+ */
+
+import java.util.*;
+
+public class SharedSession {
+    final int document;
+    private long revision; //Last one heard of from the Server
+
+    private List<EditOp> sent; //Batch not acknowledged yet; null if none
+    private List<EditOp> pending = new ArrayList<>(); //Edits made since, not sent yet
+
+    SharedSession(int document, long revision) {
+        this.document = document;
+        this.revision = revision;
+    }
+
+    //Revision the edits returned by next() are made on
+    long revision() {
+        return revision;
+    }
+
+    //An edit made here
+    void edit(EditOp op) {
+        int last = pending.size() - 1;
+        EditOp merged = last < 0 ? null : pending.get(last).merge(op);
+        if (merged != null) {
+            pending.set(last, merged);
+        } else {
+            pending.add(op);
+        }
+    }
+
+    //The batch to send now, or null if there is none or one is still on its way
+    List<EditOp> next() {
+        if (sent != null || pending.isEmpty()) return null;
+        sent = pending;
+        pending = new ArrayList<>();
+        return sent;
+    }
+
+    //Whether every edit made here has been sent, and acknowledged
+    boolean idle() {
+        return sent == null && pending.isEmpty();
+    }
+
+    //The Server applied our batch, as revision
+    void acknowledged(long revision) {
+        this.revision = revision;
+        sent = null;
+    }
+
+    //Another Client's batch, applied by the Server as revision; returns the edits
+    //to make to the text here
+    List<EditOp> received(long revision, List<EditOp> ops) {
+        this.revision = revision;
+        if (sent != null) {
+            List<EditOp>[] both = EditOp.transform(sent, ops);
+            sent = both[0];
+            ops = both[1];
+        }
+        List<EditOp>[] both = EditOp.transform(pending, ops);
+        pending = new ArrayList<>(both[0]);
+        return both[1];
+    }
+}
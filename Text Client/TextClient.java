@@ -3,29 +3,130 @@
  * Distributed Editor
  * 
  * Client
+ *
+ * One connection to the server, with everything it needs kept in the instance,
+ * so a program can hold as many at once as it likes. Nothing here uses Swing:
+ * what the server sends is handed to a Listener (TextEditor is one), from the
+ * connection's reader thread, or from the thread of the upload or download
+ * it is about.
  */
 
 import java.net.*;
 import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
 import java.nio.file.*;
 import java.text.*;
 import java.util.*;
+import java.util.concurrent.*;
 
 public class TextClient {
-    private static ObjectInputStream sInput;
-    private static ObjectOutputStream sOutput;
+    //What the client tells whoever uses it; every method does nothing unless overridden
+    interface Listener {
+        //A message for the user: chat, the server's answers, how a transfer went
+        default void message(String text) {
+        }
+
+        //A file the server sent has been saved
+        default void fileReceived(Path file) {
+        }
+
+        //The server gave us another username, as ours was taken
+        default void usernameChanged(String username) {
+        }
+
+        //Text of a shared document at a revision (the answer to openShared, or a fresh
+        //copy when ours stopped matching)
+        default void sharedText(int document, long revision, String text) {
+        }
+
+        //A batch of edits the server made to a shared document as revision: other
+        //Clients' edits, or none when it acknowledges ours
+        default void sharedEdits(int document, long revision, List<EditOp> ops) {
+        }
+
+        //The connection is gone
+        default void disconnected() {
+        }
+    }
+
+    private DataInputStream sInput;
+    private DataOutputStream sOutput;
     
     private Socket socket;
     private String server, username;
     private int port;
-    
-    private static TextEditor editor;
+    private volatile int version; //Protocol version chosen by the server
+
+    //The server's answer to our HELLO, which start() waits for: until it arrives we
+    //cannot tell which requests the server supports
+    private final CompletableFuture<Integer> negotiated = new CompletableFuture<>();
+    private static final long HELLO_TIMEOUT = 10; //Seconds
+
+    //Files being streamed down from the server, by transfer id
+    private Map<Integer, FileReceiver> downloads = new HashMap<>();
+
+    //Ids of our requests, which are also the transfer ids of uploads and FILE_GETs
+    //(below WireCodec.SERVER_IDS, the ids of the files the server sends for a "GET /")
+    private int nextRequestId;
+
+    //Requests waiting for the server's REPLY (protocol version 9), and files asked
+    //for with get(), by request id
+    private Map<Integer, CompletableFuture<String>> requests = new ConcurrentHashMap<>();
+    private Map<Integer, Fetch> fetches = new ConcurrentHashMap<>();
+
+    //A file asked for with get()
+    private static class Fetch {
+        final String path;
+        final Path target;
+        final CompletableFuture<Path> result = new CompletableFuture<>();
+
+        Fetch(String path, Path target) {
+            this.path = path;
+            this.target = target;
+        }
+    }
+
+    //Uploads waiting for the server to say where to start from (FILE_RESUME), or which
+    //blocks it has of an older version (FILE_SIGNATURES), by transfer id
+    private Map<Integer, CompletableFuture<WireCodec.Frame>> resumes = new ConcurrentHashMap<>();
+    private static final long RESUME_TIMEOUT = 30; //Seconds
 
-    TextClient(String server, int port, String username, TextEditor editor) {
+    //Flow control of file chunks (protocol version 10): the chunks our uploads may have
+    //on their way to the server at once (about bandwidth x round trip time for full
+    //speed), room for more of them, and the chunks we have received from it
+    int window = WireCodec.WINDOW_CHUNKS;
+    private Semaphore uploadWindow;
+    private long chunksReceived;
+
+    //Set once the connection is gone, when uploads waiting for the server are woken up
+    //(see failRequests)
+    private volatile boolean disconnected;
+
+    //Connections used at once to fetch a big file (protocol version 4)
+    int streams = 4;
+
+    //Whether to ask the server to compress frames (protocol version 8), and whether it agreed
+    boolean compress = true;
+    private final FrameCompression compression = new FrameCompression();
+    private volatile boolean compressing;
+
+    //Where files from the server are saved
+    Path directory = Paths.get("");
+
+    private final Listener listener;
+
+    //Without a listener, messages go to the console
+    TextClient(String server, int port, String username, Listener listener) {
         this.server = server;
         this.port = port;
         this.username = username;
-        this.editor = editor;
+        this.listener = listener != null ? listener : new Listener() {
+            @Override
+            public void message(String text) {
+                System.out.println(text);
+            }
+        };
     }
     
     //Make a connection with the server
@@ -33,17 +134,19 @@ public class TextClient {
         //Connect to the server
         try {
             socket = new Socket(server, port);
+            socket.setTcpNoDelay(true); //Frames are flushed whole; WINDOWs must not wait for an ack
         } catch(Exception e) {
             display("Error connectiong to server");
             return false;
         }
         
         display("Connection accepted " + socket.getInetAddress() + ":" + socket.getPort());
+        uploadWindow = new Semaphore(window);
 
-        //Create both Data Stream
+        //Create both Data Stream (everything travels as WireCodec frames)
         try {
-            sInput  = new ObjectInputStream(socket.getInputStream());
-            sOutput = new ObjectOutputStream(socket.getOutputStream());
+            sInput  = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            sOutput = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), WireCodec.CHUNK_SIZE));
         } catch (IOException e) {
             display("Exception creating new Input/output Streams: " + e);
             return false;
@@ -52,38 +155,90 @@ public class TextClient {
         //Start the Server Listener
         new ServerListener().start();
         
-        //Send username to the server as a String
+        //Offer our protocol version, then send the username (in the same packet)
         try {
-            sOutput.writeObject(username);
+            sOutput.write(WireCodec.encode(WireCodec.HELLO, 0, hello(compress)));
+            WireCodec.write(sOutput, WireCodec.LOGIN, 0, WireCodec.utf8(username));
         } catch (IOException e) {
             display("Exception doing login : " + e);
             disconnect();
             return false;
         }
+
+        //Wait for the server to choose the version we speak
+        try {
+            negotiated.get(HELLO_TIMEOUT, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            disconnect();
+            return false;
+        } catch (ExecutionException | TimeoutException e) {
+            display("The server did not answer our HELLO");
+            disconnect();
+            return false;
+        }
         
         return true;
     }
 
-    //Display message to the console with the time stamp
-    private static void display(String msg) {
-        if(editor == null) {
-            System.out.println(msg);
-        } else {
-            editor.display(msg + "\n");
-        }
+    //HELLO payload: our protocol version and the features we would like
+    static byte[] hello(boolean compress) {
+        return new WireCodec.Writer().varint(WireCodec.VERSION)
+                .varint(compress ? FrameCompression.FEATURE : 0).toByteArray();
+    }
+
+    //Pass a message on to the user
+    private void display(String msg) {
+        listener.message(msg);
+    }
+
+    //Username we are logged in as (the server may have changed it)
+    public String getUsername() {
+        return username;
     }
 	
     //Send a message to the server
     public void sendMessage(ChatMessage msg) {
         try {
-            sOutput.writeObject(msg);
+            write(WireCodec.frameType(msg.getType()), WireCodec.utf8(msg.getMessage()));
         } catch (IOException ex) {
             /* ¯\_(ツ)_/¯ */
         }
     }
+
+    //Write one frame; file uploads write from their own thread, so frames are
+    //written one at a time and chat can slip in between two chunks
+    //(and compressed one at a time, in the order they go out)
+    private void write(int type, byte[] payload) throws IOException {
+        write(ByteBuffer.wrap(WireCodec.encode(type, 0, payload)), true);
+    }
+
+    private void write(ByteBuffer frame) throws IOException {
+        write(frame, true);
+    }
+
+    //flush: send it now; otherwise it may wait in the buffer for the frames that follow
+    //(until one of them is flushed, or the buffer fills up), and go out with them
+    private void write(ByteBuffer frame, boolean flush) throws IOException {
+        synchronized (sOutput) {
+            if (compressing) frame = compression.compress(frame);
+            sOutput.write(frame.array(), frame.arrayOffset() + frame.position(), frame.remaining());
+            if (flush) sOutput.flush();
+        }
+    }
+
+    private void write(int type, byte[] payload, boolean flush) throws IOException {
+        write(ByteBuffer.wrap(WireCodec.encode(type, 0, payload)), flush);
+    }
+
+    private void flush() throws IOException {
+        synchronized (sOutput) {
+            sOutput.flush();
+        }
+    }
     
     //Disconnect client from server
-    private void disconnect() {
+    public void disconnect() {
         try { 
             if(sInput != null) sInput.close();
         } catch(Exception e) {}
@@ -96,18 +251,29 @@ public class TextClient {
             if(socket != null) socket.close();
         } catch(Exception e) {}
         
-        if(editor != null) {
-            editor.connectionFailed();
-        }
+        listener.disconnected();
     }
     
     //Send a file to the server
-    public static void sendFile(String fileName) {
+    //Streamed in chunks from a background thread when the server supports it
+    public void sendFile(String fileName) {
+        if (version >= 3) {
+            upload(fileName).whenComplete((answer, e) -> {
+                if (e != null) {
+                    display(e.getMessage());
+                } else if (answer != null) {
+                    display(answer);
+                }
+            });
+            return;
+        }
+
         try {
             File f = new File(fileName);
             
             byte[] content = Files.readAllBytes(f.toPath());
-            sOutput.writeObject(content);
+            write(WireCodec.MESSAGE, WireCodec.utf8("SEND /" + fileName));
+            write(WireCodec.FILE, content);
             
         } catch (FileNotFoundException e) {
             display("File Not Found: " + fileName + " Not Found");
@@ -117,29 +283,416 @@ public class TextClient {
         }
     }
     
+    //Requests many of which can be on the way at once, each one answered by a future
+
+    //Upload a file (protocol version 3 and later) from a background thread
+    //Completes with the server's answer once it has stored the file (from version 9;
+    //before that, with null once the file is sent)
+    public CompletableFuture<String> upload(String fileName) {
+        if (version < 3) return unsupported("uploads in the background");
+
+        CompletableFuture<String> result = new CompletableFuture<>();
+        new Thread(() -> streamFile(fileName, result), "upload " + fileName).start();
+        return result;
+    }
+
+    //Download a file from the server ("[user]/[file]") to target over this connection,
+    //alongside any other transfers (protocol version 4 and later)
+    public CompletableFuture<Path> get(String serverFile, Path target) {
+        if (version < 4) return unsupported("downloads in the background");
+
+        int id = nextRequestId();
+        Fetch fetch = new Fetch(serverFile, target);
+        fetches.put(id, fetch);
+        try {
+            write(WireCodec.FILE_GET, new WireCodec.Writer().varint(id).varlong(0).varlong(Long.MAX_VALUE)
+                    .text(serverFile).toByteArray());
+        } catch (IOException e) {
+            fetches.remove(id);
+            fetch.result.completeExceptionally(e);
+        }
+        return fetch.result;
+    }
+
+    //Send a chat message (or WHOISIN) as a request (protocol version 9)
+    //Completes with the server's answer once it has handled the message
+    public CompletableFuture<String> send(ChatMessage msg) {
+        if (version < 9) return unsupported("requests");
+
+        int id = nextRequestId();
+        CompletableFuture<String> reply = new CompletableFuture<>();
+        requests.put(id, reply);
+        try {
+            byte[] payload = new WireCodec.Writer().varint(id).bytes(WireCodec.utf8(msg.getMessage())).toByteArray();
+            write(ByteBuffer.wrap(WireCodec.encode(WireCodec.frameType(msg.getType()), WireCodec.REQUEST, payload)));
+        } catch (IOException e) {
+            requests.remove(id);
+            reply.completeExceptionally(e);
+        }
+        return reply;
+    }
+
+    //Usernames of the clients connected (protocol version 9)
+    public CompletableFuture<List<String>> whoIsIn() {
+        return send(new ChatMessage(ChatMessage.WHOISIN, ""))
+                .thenApply(names -> names.isEmpty() ? List.of() : Arrays.asList(names.split("\n")));
+    }
+
+    private synchronized int nextRequestId() {
+        if (++nextRequestId == WireCodec.SERVER_IDS) nextRequestId = 1;
+        return nextRequestId;
+    }
+
+    private <T> CompletableFuture<T> unsupported(String what) {
+        return CompletableFuture.failedFuture(new IOException("The server does not support " + what));
+    }
+
+    //The connection is gone: no request on the way will be answered
+    private void failRequests(IOException e) {
+        disconnected = true;
+        negotiated.completeExceptionally(e);
+        for (Iterator<CompletableFuture<String>> it = requests.values().iterator(); it.hasNext(); ) {
+            it.next().completeExceptionally(e);
+            it.remove();
+        }
+        for (Iterator<Fetch> it = fetches.values().iterator(); it.hasNext(); ) {
+            it.next().result.completeExceptionally(e);
+            it.remove();
+        }
+        for (Iterator<CompletableFuture<WireCodec.Frame>> it = resumes.values().iterator(); it.hasNext(); ) {
+            it.next().completeExceptionally(e);
+            it.remove();
+        }
+
+        //Enough room for every upload waiting on the window to find out
+        uploadWindow.release(Integer.MAX_VALUE / 2);
+    }
+
+    //Stream a file to the server one chunk at a time
+    //From version 4 the server may already have the start of it, from an upload that was cut short,
+    //from version 5 all of it, if anyone uploaded the same content before, and from version 7
+    //an older version of it, so that only the changes need to be sent
+    private void streamFile(String fileName, CompletableFuture<String> result) {
+        int id = nextRequestId();
+        if (version >= 9) requests.put(id, result);
+
+        CompletableFuture<WireCodec.Frame> resume = new CompletableFuture<>();
+        if (version >= 4) resumes.put(id, resume);
+        if (disconnected) resume.completeExceptionally(new IOException("Not connected to the server"));
+
+        try (FileSender sender = new FileSender(id, Paths.get(fileName), fileName)) {
+            if (version >= 5) sender.addDigest();
+            write(sender.nextFrame()); //FILE_BEGIN
+
+            if (version >= 4) {
+                WireCodec.Frame answer = resume.get(RESUME_TIMEOUT, TimeUnit.SECONDS);
+                WireCodec.Reader reader = new WireCodec.Reader(answer.payload);
+                reader.varint(); //Transfer id
+
+                if (answer.type == WireCodec.FILE_SIGNATURES) {
+                    sendDelta(id, fileName, sender, new FileDelta(reader));
+                } else {
+                    long offset = reader.varlong();
+                    if (offset > 0 && offset < sender.size) {
+                        display("Resuming upload of " + fileName + " from byte " + offset);
+                        sender.resumeFrom(offset);
+                    }
+                }
+            }
+
+            //Chunks leave as the buffer fills up, and the rest with FILE_END
+            ByteBuffer frame;
+            while ((frame = sender.nextFrame()) != null) {
+                if (frame.get(frame.position()) == WireCodec.FILE_CHUNK) awaitWindow();
+                write(frame, false);
+            }
+            flush();
+            if (version < 9) result.complete(null);
+            return;
+
+        } catch (NoSuchFileException e) {
+            result.completeExceptionally(new FileNotFoundException("File Not Found: " + fileName + " Not Found"));
+
+        } catch (IOException | ExecutionException | TimeoutException e) {
+            result.completeExceptionally(new IOException("Error sending file " + fileName, e));
+
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            result.completeExceptionally(new InterruptedIOException("Upload of " + fileName + " interrupted"));
+
+        } finally {
+            resumes.remove(id);
+        }
+        requests.remove(id);
+    }
+
+    //Send a file as its differences from the older version the server has (see FileDelta),
+    //leaving just FILE_END to the sender; if the file cannot be compared (it is too big
+    //to map, or changed since FILE_BEGIN), the sender sends all of it instead
+    private void sendDelta(int id, String fileName, FileSender sender, FileDelta delta) throws IOException {
+        long[] literal = new long[1];
+        try (FileChannel channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ)) {
+            if (channel.size() != sender.size || channel.size() > Integer.MAX_VALUE) return;
+
+            delta.diff(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()), new FileDelta.Output() {
+                @Override
+                public void literal(ByteBuffer data) throws IOException {
+                    while (data.hasRemaining()) {
+                        byte[] chunk = new byte[Math.min(data.remaining(), WireCodec.CHUNK_SIZE)];
+                        data.get(chunk);
+                        awaitWindow();
+                        write(WireCodec.FILE_CHUNK, new WireCodec.Writer().varint(id).bytes(chunk).toByteArray(), false);
+                        literal[0] += chunk.length;
+                    }
+                }
+
+                @Override
+                public void copy(long block, long count) throws IOException {
+                    write(WireCodec.FILE_COPY, new WireCodec.Writer().varint(id).varlong(block).varlong(count).toByteArray(), false);
+                }
+            });
+        }
+
+        sender.resumeFrom(sender.size);
+        display("Sent the changes to " + fileName + ": " + literal[0] + " of " + sender.size + " bytes");
+    }
+
+    //Wait until the server has room for another chunk of our uploads (version 10)
+    private void awaitWindow() throws IOException {
+        if (version < 10) return;
+
+        if (!uploadWindow.tryAcquire()) {
+            flush(); //The server cannot acknowledge chunks still in our buffer
+            try {
+                if (!uploadWindow.tryAcquire(RESUME_TIMEOUT, TimeUnit.SECONDS)) {
+                    throw new IOException("The server stopped acknowledging file chunks");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+        }
+        if (disconnected) throw new IOException("Not connected to the server");
+    }
+
+    //Acknowledge the chunks written to disk, for the server to send more (version 10)
+    private void chunkReceived() throws IOException {
+        if (version >= 10 && ++chunksReceived % WireCodec.WINDOW_UPDATE == 0) {
+            write(WireCodec.WINDOW, WireCodec.varint(WireCodec.WINDOW_UPDATE));
+        }
+    }
+
+    //Get a file from the server
+    //From version 4 it is fetched in ranges over extra connections, resuming any earlier attempt
+    public void getFile(String serverFile) {
+        if (version < 4) {
+            sendMessage(new ChatMessage(ChatMessage.MESSAGE, "GET /" + serverFile));
+            return;
+        }
+
+        new Thread(() -> {
+            Download download = new Download(server, port, serverFile, directory, streams, compress);
+            display("Receiving " + serverFile);
+
+            if (download.run()) {
+                display("File Received: " + download.target());
+                listener.fileReceived(download.target());
+            } else {
+                display(download.error());
+            }
+        }, "download " + serverFile).start();
+    }
+
+    //Start editing a file on the server ("[user]/[file]") together with whoever else is
+    //editing it; the server answers with its text (see Listener.sharedText)
+    public void openShared(String path) {
+        if (version < 6) {
+            display("The server does not support editing files together");
+            return;
+        }
+
+        try {
+            write(WireCodec.EDIT_OPEN, WireCodec.utf8(path));
+        } catch (IOException e) {
+            display("Error opening " + path);
+        }
+    }
+
+    //Stop editing a shared document
+    public void closeShared(int document) {
+        try {
+            write(WireCodec.EDIT_CLOSE, WireCodec.varint(document));
+        } catch (IOException e) {
+            /* ¯\_(ツ)_/¯ */
+        }
+    }
+
+    //Send a batch of edits made to a shared document on the given revision (see SharedSession)
+    public void sendEdits(int document, long revision, List<EditOp> ops) {
+        try {
+            write(WireCodec.EDIT, EditOp.encode(document, revision, ops));
+        } catch (IOException e) {
+            /* ¯\_(ツ)_/¯ */
+        }
+    }
+
+    //Receive one frame of a file streamed by the server
+    //A file asked for with get() goes to its target, and completes its future
+    private void receiveChunk(WireCodec.Frame frame) {
+        int id = FileReceiver.transferId(frame.payload);
+        FileReceiver receiver = downloads.get(id);
+        Fetch fetch = fetches.get(id);
+
+        try {
+            switch (frame.type) {
+                case WireCodec.FILE_BEGIN:
+                    if (fetch != null) {
+                        Path part = fetch.target.resolveSibling(fetch.target.getFileName() + ".part");
+                        downloads.put(id, new FileReceiver(frame, fetch.target, part, 0, false));
+                        break;
+                    }
+                    receiver = new FileReceiver(frame.payload, directory);
+                    downloads.put(id, receiver);
+                    display("Receiving " + receiver.name);
+                    break;
+
+                case WireCodec.FILE_CHUNK:
+                    if (receiver != null) receiver.write(frame.payload);
+                    break;
+
+                case WireCodec.FILE_END:
+                    fetches.remove(id);
+                    if (receiver == null) {
+                        //A FILE_END without a FILE_BEGIN: the server cannot send the file
+                        if (fetch != null) {
+                            fetch.result.completeExceptionally(new FileNotFoundException("File Not Found on Server: " + fetch.path));
+                        }
+                        break;
+                    }
+                    downloads.remove(id);
+
+                    if (fetch != null) {
+                        if (receiver.finish(frame.payload)) {
+                            fetch.result.complete(fetch.target);
+                        } else {
+                            fetch.result.completeExceptionally(new IOException("Error receiving file " + fetch.path));
+                        }
+                        break;
+                    }
+
+                    String fileName = receiver.target().toString();
+                    if (receiver.finish(frame.payload)) {
+                        display("File Received: " + fileName);
+                        listener.fileReceived(receiver.target());
+                    } else {
+                        display("Error receiving file " + fileName);
+                    }
+                    break;
+            }
+
+        } catch (IOException e) {
+            if (fetch != null) {
+                fetches.remove(id);
+                fetch.result.completeExceptionally(e);
+            }
+            if (receiver != null) {
+                receiver.close();
+                downloads.remove(id);
+                if (fetch == null) display("Error receiving file " + receiver.name);
+            }
+        }
+    }
+
     //Receive a file from the server
-    public static void receiveFile(String fileName) {
+    public void receiveFile(String fileName) {
         try {
-            File f = new File(fileName);
+            Path file = directory.resolve(fileName);
 
-            byte[] content = (byte[]) sInput.readObject();
-            Files.write(f.toPath(), content);
+            byte[] content = WireCodec.read(sInput).payload;
+            Files.write(file, content);
 
-            display("File Received: " + fileName);
-            editor.displayFile(fileName);
+            display("File Received: " + file);
+            listener.fileReceived(file);
 
-        } catch (IOException | ClassNotFoundException ex) {
+        } catch (IOException ex) {
             display("Error receiving file " + fileName);
         }
     }
     
     //Class that waits for message from the server
     class ServerListener extends Thread {
+        //A daemon, so that a program done with its connections is not kept running by them
+        ServerListener() {
+            super("listener " + username);
+            setDaemon(true);
+        }
+
         @Override
         public void run() {
             while(true) {
                 try {
-                    String msg = (String) sInput.readObject();
+                    WireCodec.Frame frame = compression.decompress(WireCodec.read(sInput));
+                    if (frame.type == WireCodec.HELLO) {
+                        WireCodec.Reader hello = new WireCodec.Reader(frame.payload);
+                        version = hello.varint();
+                        int features = hello.remaining() > 0 ? hello.varint() : 0;
+                        compressing = (features & FrameCompression.FEATURE) != 0;
+                        negotiated.complete(version);
+                        continue;
+                    }
+
+                    if (frame.type == WireCodec.FILE_BEGIN || frame.type == WireCodec.FILE_CHUNK
+                            || frame.type == WireCodec.FILE_END) {
+                        receiveChunk(frame);
+                        if (frame.type == WireCodec.FILE_CHUNK) chunkReceived();
+                        continue;
+                    }
+
+                    if (frame.type == WireCodec.WINDOW) {
+                        uploadWindow.release(WireCodec.readVarint(frame.payload));
+                        continue;
+                    }
+
+                    if (frame.type == WireCodec.EDIT_OPEN) {
+                        //Text of a shared document, to start (or start again) from
+                        WireCodec.Reader open = new WireCodec.Reader(frame.payload);
+                        int document = open.varint();
+                        long revision = open.varlong();
+                        listener.sharedText(document, revision, open.text());
+                        continue;
+                    }
+
+                    if (frame.type == WireCodec.EDIT) {
+                        //Other Clients' edits, or (with none) the revision our own made
+                        WireCodec.Reader edit = new WireCodec.Reader(frame.payload);
+                        int document = edit.varint();
+                        long revision = edit.varlong();
+                        listener.sharedEdits(document, revision, EditOp.decode(edit));
+                        continue;
+                    }
+
+                    if (frame.type == WireCodec.REPLY) {
+                        WireCodec.Reader reply = new WireCodec.Reader(frame.payload);
+                        CompletableFuture<String> waiting = requests.remove(reply.varint());
+                        boolean done = reply.varint() == 0;
+                        String text = reply.text();
+                        if (waiting == null) {
+                            display(text);
+                        } else if (done) {
+                            waiting.complete(text);
+                        } else {
+                            waiting.completeExceptionally(new IOException(text));
+                        }
+                        continue;
+                    }
+
+                    if (frame.type == WireCodec.FILE_RESUME || frame.type == WireCodec.FILE_SIGNATURES) {
+                        CompletableFuture<WireCodec.Frame> waiting = resumes.get(FileReceiver.transferId(frame.payload));
+                        if (waiting != null) waiting.complete(frame);
+                        continue;
+                    }
+
+                    String msg = frame.text();
                     display(msg);
                     
                     //If the server sends a "Receiving /directory/filename" message
@@ -152,16 +705,14 @@ public class TextClient {
                         
                     } else if (msg.toLowerCase().startsWith("Username is now: ".toLowerCase())) {
                         username = msg.substring(17);
-                        editor.username = username;
-                        editor.label.setText("Hello " + username + ". Enter you commands below");
+                        listener.usernameChanged(username);
                     }
                     
                 } catch(IOException e) {
-                    if(editor != null) {
-                        editor.connectionFailed();
-                    }
+                    failRequests(e);
+                    listener.disconnected();
                     break;
-                } catch(ClassNotFoundException e) {}
+                }
             }
         }
     }
@@ -7,6 +7,10 @@ import javax.swing.*;
 import java.awt.*;
 import java.awt.event.*;
 import java.io.*;
+import java.nio.file.*;
+import java.util.List;
+import javax.swing.event.*;
+import javax.swing.text.*;
 import static javax.swing.JFrame.EXIT_ON_CLOSE;
 
 public class TextEditor extends JFrame implements ActionListener {
@@ -17,6 +21,46 @@ public class TextEditor extends JFrame implements ActionListener {
     private JTextField tfServer, tfPort; //For Server and Port
     private JButton login, logout, whoIsIn, info; //Buttons
     private JTextArea ta; //Text editing area
+    private JScrollPane scrollPane;
+    
+    //File shown read-only in place of the text area, when too big to edit
+    static final long LARGE_FILE = 32 * 1024 * 1024;
+    private LargeFileModel largeFile;
+    
+    private DocumentIO<?> loading; //File being read in, on a worker thread
+    
+    //File on the server being edited together with others (null if none)
+    private SharedSession shared;
+    private String sharedPath;
+    private boolean applyingEdits; //Edits from the server are not sent back to it
+    
+    //Edits wait this long (in milliseconds) before going out, so keystrokes in a row go together
+    private static final int EDIT_DELAY = 20;
+    private final Timer editTimer = new Timer(EDIT_DELAY, e -> sendEdits());
+    
+    //Passes the edits made to a shared document on to the server
+    private final DocumentListener editListener = new DocumentListener() {
+        @Override
+        public void insertUpdate(DocumentEvent e) {
+            if (applyingEdits) return;
+            
+            try {
+                String text = e.getDocument().getText(e.getOffset(), e.getLength());
+                edited(EditOp.insert(e.getOffset(), text));
+            } catch (BadLocationException ex) {
+                /* ¯\_(ツ)_/¯ */
+            }
+        }
+        
+        @Override
+        public void removeUpdate(DocumentEvent e) {
+            if (!applyingEdits) edited(EditOp.delete(e.getOffset(), e.getLength()));
+        }
+        
+        @Override
+        public void changedUpdate(DocumentEvent e) {
+        }
+    };
     
     private MenuBar menuBar;
     private Menu fileMenu;
@@ -30,6 +74,47 @@ public class TextEditor extends JFrame implements ActionListener {
     private String fileName;
     private String serverFile;
     public String username;
+    
+    //Options for the connections: see main
+    private static int streams = 4;
+    private static boolean compress = true;
+    private static int window = WireCodec.WINDOW_CHUNKS;
+    
+    //What the client tells us, from its threads; Swing is only touched on the event dispatch thread
+    private final TextClient.Listener clientListener = new TextClient.Listener() {
+        @Override
+        public void message(String text) {
+            SwingUtilities.invokeLater(() -> display(text + "\n"));
+        }
+        
+        @Override
+        public void fileReceived(Path file) {
+            displayFile(file.toString());
+        }
+        
+        @Override
+        public void usernameChanged(String name) {
+            SwingUtilities.invokeLater(() -> {
+                username = name;
+                label.setText("Hello " + username + ". Enter you commands below");
+            });
+        }
+        
+        @Override
+        public void sharedText(int document, long revision, String text) {
+            openShared(document, revision, text);
+        }
+        
+        @Override
+        public void sharedEdits(int document, long revision, List<EditOp> ops) {
+            applyEdits(document, revision, ops);
+        }
+        
+        @Override
+        public void disconnected() {
+            SwingUtilities.invokeLater(TextEditor.this::connectionFailed);
+        }
+    };
 
     TextEditor(String host, int port) {
         super("Text Editor");
@@ -65,9 +150,10 @@ public class TextEditor extends JFrame implements ActionListener {
         add(northPanel, BorderLayout.NORTH);
 
         //CenterPanel, which is text area
-        ta = new JTextArea(80, 80);
+        ta = new JTextArea(new PieceTableDocument(), null, 80, 80);
         JPanel centerPanel = new JPanel(new GridLayout(1,1));
-        centerPanel.add(new JScrollPane(ta));
+        scrollPane = new JScrollPane(ta);
+        centerPanel.add(scrollPane);
         ta.setEditable(true);
         add(centerPanel, BorderLayout.CENTER);
 
@@ -107,6 +193,7 @@ public class TextEditor extends JFrame implements ActionListener {
         fileMenu.add(new MenuItem("Save as..."));
         fileMenu.add(new MenuItem("Send File to Server"));
         fileMenu.add(new MenuItem("Get File from Server"));
+        fileMenu.add(new MenuItem("Edit File with Others"));
         fileMenu.add(new MenuItem("Exit"));
         fileMenu.addActionListener(this);
         
@@ -126,7 +213,7 @@ public class TextEditor extends JFrame implements ActionListener {
     //Append message to text area
     void append(String message) {
         ta.append(message);
-        ta.setCaretPosition(ta.getText().length() - 1);
+        ta.setCaretPosition(ta.getDocument().getLength() - 1);
     }
     
     //Reset everything to defaults
@@ -158,15 +245,17 @@ public class TextEditor extends JFrame implements ActionListener {
             String menuSelection = e.getActionCommand();
             switch (menuSelection) {
                 case "New":
-                    ta.setText("");
+                    stopSharing();
+                    closeLargeFile();
+                    ta.setDocument(new PieceTableDocument());
                     fileName = null;
                     break;
 
                 case "Open":
                     fileDialog.setVisible(true);
-                    fileName = fileDialog.getDirectory() + fileDialog.getFile();
-                    if (fileName != null) {
-                        displayFile(fileName);
+                    if (fileDialog.getFile() != null) {
+                        //fileName changes once the file has been read in
+                        displayFile(fileDialog.getDirectory() + fileDialog.getFile());
                     }
                     break;
 
@@ -195,8 +284,7 @@ public class TextEditor extends JFrame implements ActionListener {
                         fileDialog.setVisible(true);
                         String file = fileDialog.getDirectory() + fileDialog.getFile();
                         if (file != null) {
-                            client.sendMessage(new ChatMessage(ChatMessage.MESSAGE, "SEND /" + file));
-                            TextClient.sendFile(file);
+                            client.sendFile(file);
                         }
                         
                     } else {
@@ -218,7 +306,25 @@ public class TextEditor extends JFrame implements ActionListener {
                             
                             if (file != null) {
                                 serverFile = user + "/" + file;
-                                client.sendMessage(new ChatMessage(ChatMessage.MESSAGE, "GET /" + serverFile));
+                                client.getFile(serverFile);
+                            }
+                        }
+                        
+                    } else {
+                        display("Please log in first");
+                    }
+                    break;
+
+                case "Edit File with Others":
+                    if (connected) {
+                        String user = JOptionPane.showInputDialog(this, "From which user:");
+                        
+                        if (user != null) {
+                            String file = JOptionPane.showInputDialog(this, "Enter file name:");
+                            
+                            if (file != null) {
+                                sharedPath = user + "/" + file;
+                                client.openShared(sharedPath);
                             }
                         }
                         
@@ -262,15 +368,14 @@ public class TextEditor extends JFrame implements ActionListener {
                 //Send File to Server
                 //The file to be sent is the substring starting at index 6
                 if (new File(msg.substring(6)).exists()) {
-                    client.sendMessage(new ChatMessage(ChatMessage.MESSAGE, msg));
-                    TextClient.sendFile(msg.substring(6));
+                    client.sendFile(msg.substring(6));
                 } else {
                     display("File Not Found: " + msg.substring(6) + "\n");
                 }
                 
             } else if (msg.toLowerCase().startsWith("GET /".toLowerCase())) {
                 //Get File from Server
-                client.sendMessage(new ChatMessage(ChatMessage.MESSAGE, msg));
+                client.getFile(msg.substring(5));
                 
             } else {
                 //Default send message
@@ -309,7 +414,10 @@ public class TextEditor extends JFrame implements ActionListener {
             }
 
             //Creating a new Client with GUI
-            client = new TextClient(server, port, username, this);
+            client = new TextClient(server, port, username, clientListener);
+            client.streams = streams;
+            client.compress = compress;
+            client.window = window;
             
             //Check if client has started
             if(!client.start()) return;
@@ -337,40 +445,208 @@ public class TextEditor extends JFrame implements ActionListener {
         }
     }
     
+    //Save in the background; the text can be edited meanwhile
     private void saveFile() {
         try {
-            BufferedWriter bw = new BufferedWriter(new FileWriter(fileName));
-            String data = ta.getText();
-            bw.write(data);
-            bw.close();
+            Path target = Paths.get(fileName);
+            if (largeFile == null) {
+                DocumentIO.save(this, (PieceTableDocument) ta.getDocument(), target, saved -> { }, this::saveFailed);
+                
+            } else if (!Files.exists(target) || !Files.isSameFile(largeFile.path, target)) {
+                //A large file cannot have been changed, so saving it elsewhere is a copy
+                DocumentIO.copy(this, largeFile.path, target, saved -> { }, this::saveFailed);
+            }
             
         } catch(IOException e) {
-            display("Exception While Saving File: " + e);
+            saveFailed(e);
         }
     }
     
+    private void saveFailed(Exception e) {
+        display("Exception While Saving File: " + e);
+    }
+    
+    //Open a file, reading it in the background; may be called from any thread
     public void displayFile(String file) {
-        String line;
-        ta.setText("");
+        if (!SwingUtilities.isEventDispatchThread()) {
+            SwingUtilities.invokeLater(() -> displayFile(file));
+            return;
+        }
+        
+        if (loading != null) loading.cancel(true);
+        String path = new File(file).getAbsolutePath();
         
         try {
-            BufferedReader br = new BufferedReader(new FileReader(file));
-            line = br.readLine();
-            while(line != null) {
-                ta.append(line + '\n');
-                line = br.readLine();
+            if (new File(file).length() > LARGE_FILE) {
+                stopSharing();
+                closeLargeFile();
+                showLargeFile(file);
+                fileName = path;
+                this.setTitle(fileName + " (read-only)");
+                
+            } else {
+                loading = DocumentIO.load(this, Paths.get(file), document -> {
+                    stopSharing();
+                    closeLargeFile();
+                    ta.setDocument(document);
+                    fileName = path;
+                    this.setTitle(fileName);
+                }, e -> display("Exception Opening File"));
             }
-            br.close();
-            
-            fileName = new File(file).getAbsolutePath();
-            this.setTitle(fileName);
             
         } catch(IOException e) {
             display("Exception Opening File");
         }
     }
+    
+    //Show the text of a shared document at a revision (the server's answer to openShared,
+    //or a fresh copy when ours stopped matching); from now on edits to it go to the server
+    //May be called from any thread
+    void openShared(int document, long revision, String text) {
+        if (!SwingUtilities.isEventDispatchThread()) {
+            SwingUtilities.invokeLater(() -> openShared(document, revision, text));
+            return;
+        }
+        
+        if (shared != null && document != shared.document) stopSharing();
+        if (loading != null) loading.cancel(true);
+        closeLargeFile();
+        
+        char[] chars = text.toCharArray();
+        PieceTableDocument copy = new PieceTableDocument(chars, chars.length);
+        copy.addDocumentListener(editListener);
+        ta.setDocument(copy);
+        
+        shared = new SharedSession(document, revision); //Edits not sent yet were made to the old copy
+        fileName = null; //Saving asks where to keep a copy
+        this.setTitle(sharedPath + " (shared)");
+    }
+    
+    //An edit made to the shared document here
+    private void edited(EditOp op) {
+        shared.edit(op);
+        if (!editTimer.isRunning()) editTimer.start();
+    }
+    
+    //Send the edits made here, unless some are still waiting to be acknowledged
+    private void sendEdits() {
+        editTimer.stop();
+        if (shared == null) return;
+        
+        List<EditOp> batch = shared.next();
+        if (batch != null) client.sendEdits(shared.document, shared.revision(), batch);
+    }
+    
+    //Apply a batch of edits the server made to the shared document as revision: other
+    //Clients' edits, or none when it acknowledges ours; may be called from any thread
+    void applyEdits(int document, long revision, List<EditOp> ops) {
+        if (!SwingUtilities.isEventDispatchThread()) {
+            SwingUtilities.invokeLater(() -> applyEdits(document, revision, ops));
+            return;
+        }
+        if (shared == null || document != shared.document) return;
+        
+        if (ops.isEmpty()) {
+            shared.acknowledged(revision);
+            sendEdits(); //What was typed meanwhile
+            return;
+        }
+        
+        Document text = ta.getDocument();
+        applyingEdits = true;
+        try {
+            for (EditOp op : shared.received(revision, ops)) {
+                if (op.kind == EditOp.INSERT) {
+                    text.insertString(op.offset, op.text, null);
+                } else {
+                    text.remove(op.offset, op.length);
+                }
+            }
+            
+        } catch (BadLocationException e) {
+            //Our copy no longer matches the server's: get its text again
+            client.openShared(sharedPath);
+        } finally {
+            applyingEdits = false;
+        }
+    }
+    
+    //Leave the shared document, if one is open
+    private void stopSharing() {
+        if (shared == null) return;
+        
+        sendEdits();
+        ta.getDocument().removeDocumentListener(editListener);
+        client.closeShared(shared.document);
+        shared = null;
+    }
+    
+    //Show a file too big to edit as a list of its lines, only decoding those on screen
+    private void showLargeFile(String file) throws IOException {
+        largeFile = new LargeFileModel(Paths.get(file));
+        JList<String> lines = new JList<>(largeFile);
+        lines.setFont(ta.getFont());
+        
+        //Fixed cell sizes, so the list never measures lines that are not on screen
+        FontMetrics metrics = lines.getFontMetrics(lines.getFont());
+        int charWidth = metrics.charWidth('m');
+        lines.setFixedCellHeight(metrics.getHeight());
+        lines.setFixedCellWidth(charWidth * 80);
+        largeFile.addListDataListener(new ListDataListener() {
+            @Override
+            public void intervalAdded(ListDataEvent e) {
+                int columns = Math.min(((LargeFileModel) e.getSource()).longestLine(), LargeFileModel.MAX_LINE);
+                lines.setFixedCellWidth(charWidth * Math.max(80, columns + 1));
+            }
+            
+            @Override
+            public void intervalRemoved(ListDataEvent e) {
+            }
+            
+            @Override
+            public void contentsChanged(ListDataEvent e) {
+            }
+        });
+        
+        //Lines are plain text, even if one happens to start with <html>
+        DefaultListCellRenderer renderer = new DefaultListCellRenderer();
+        renderer.putClientProperty("html.disable", Boolean.TRUE);
+        lines.setCellRenderer(renderer);
+        
+        scrollPane.setViewportView(lines);
+    }
+    
+    //Go back to the text area
+    private void closeLargeFile() {
+        if (largeFile == null) return;
+        
+        largeFile.close();
+        largeFile = null;
+        scrollPane.setViewportView(ta);
+    }
 
     public static void main(String[] args) {
+        //Optional: --streams=<connections used at once to fetch a big file>
+        //--compress=off (frames are compressed if the server agrees)
+        //--window=<kilobytes of file chunks on their way to the server at once>
+        for (String arg : args) {
+            if (arg.startsWith("--streams=")) {
+                try {
+                    streams = Integer.parseInt(arg.substring(10));
+                } catch (NumberFormatException e) {
+                    System.out.println("Ignoring invalid option " + arg);
+                }
+            } else if (arg.startsWith("--compress=")) {
+                compress = !arg.substring(11).equalsIgnoreCase("off");
+            } else if (arg.startsWith("--window=")) {
+                try {
+                    window = Math.max(1, (int) ((Long.parseLong(arg.substring(9)) * 1024 + WireCodec.CHUNK_SIZE - 1) / WireCodec.CHUNK_SIZE));
+                } catch (NumberFormatException e) {
+                    System.out.println("Ignoring invalid option " + arg);
+                }
+            }
+        }
+
         TextEditor GUI = new TextEditor("localhost", 8080);
     }
 }
\ No newline at end of file
@@ -0,0 +1,303 @@
+/*
+ * COEN 317
+ * Distributed Editor
+ * Typing load: many headless Clients editing one shared document at once
+ *
+ * A Client uploads a short text file, and every typist opens it (EDIT_OPEN)
+ * and types into it at a fixed rate, through a TextClient and a SharedSession
+ * as the editor does: a batch on its way at a time, later keystrokes merged until the Server
+ * acknowledges it. A keystroke inserts a token at a random place, or one time
+ * in DELETES deletes a character. Every token is unique and the time it was
+ * typed is kept, so when another typist gets the batch holding it, the time it
+ * took to get there is its propagation latency (keystrokes only merge with
+ * their neighbours, so a batch holds whole tokens).
+ *
+ * Once the typing stops and every typist's edits are acknowledged, a fresh
+ * copy of the document is opened, and every typist's text has to match it.
+ *
+ * Usage: java TypingLoad [host] [port] [options]
+ *   --typists=200     Clients typing
+ *   --keys=1          keystrokes per second, by each typist
+ *   --duration=20     seconds of typing
+ *
+ * The Server deletes the document when its owner logs out at the end.
+ */
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
+
+public class TypingLoad {
+    private static final long TIMEOUT = 30; //Seconds
+    private static final int DELETES = 3;   //In ten keystrokes
+    private static final String DOCUMENT = "The quick brown fox jumps over the lazy dog\n";
+
+    private static String[] args;
+    private static String host = "localhost";
+    private static int port = 8080;
+
+    //When each token was typed (System.nanoTime), by token
+    private static final Map<String, Long> typed = new ConcurrentHashMap<>();
+    private static final AtomicLong tokens = new AtomicLong();
+    private static final AtomicLong resyncs = new AtomicLong();
+    private static final AtomicLong misfits = new AtomicLong();
+
+    public static void main(String[] args) throws Exception {
+        TypingLoad.args = args;
+        if (args.length > 0 && !args[0].startsWith("--")) host = args[0];
+        if (args.length > 1 && !args[1].startsWith("--")) port = Integer.parseInt(args[1]);
+
+        int count = Integer.parseInt(option("typists", "200"));
+        double keys = Double.parseDouble(option("keys", "1"));
+        int duration = Integer.parseInt(option("duration", "20"));
+
+        List<Typist> typists = new ArrayList<>();
+        ScheduledExecutorService keyboard = Executors.newScheduledThreadPool(4, r -> {
+            Thread t = new Thread(r, "keyboard");
+            t.setDaemon(true);
+            return t;
+        });
+
+        Path dir = Files.createTempDirectory("typing");
+        Path file = Files.write(dir.resolve("doc.txt"), WireCodec.utf8(DOCUMENT));
+        try (Typist owner = new Typist("typing-owner", 0)) {
+            owner.upload(file);
+            String path = owner.username() + "/doc.txt";
+
+            for (int i = 0; i < count; i++) {
+                Typist typist = new Typist("typist" + i, i + 1);
+                typist.open(path);
+                typists.add(typist);
+            }
+            System.out.printf("%d typists have %s open%n", count, path);
+
+            //Spread out over the first period, so that they do not all type at once
+            long period = (long) (1e6 / keys); //Microseconds
+            Random random = new Random();
+            for (Typist typist : typists) {
+                keyboard.scheduleAtFixedRate(typist::type, random.nextInt((int) period), period, TimeUnit.MICROSECONDS);
+            }
+            Thread.sleep(duration * 1000L);
+            keyboard.shutdownNow();
+            keyboard.awaitTermination(TIMEOUT, TimeUnit.SECONDS);
+
+            //Batches still on their way
+            long deadline = System.nanoTime() + TIMEOUT * 1_000_000_000L;
+            for (Typist typist : typists) {
+                while (!typist.idle() && System.nanoTime() < deadline) {
+                    Thread.sleep(10);
+                }
+            }
+            Thread.sleep(1000); //Relays of the last batches
+
+            String text;
+            try (Typist check = new Typist("typing-check", 0)) {
+                check.open(path);
+                text = check.text();
+            }
+            summary(typists, text, duration);
+
+        } catch (Exception e) {
+            System.out.println("Typing load failed: " + e);
+        } finally {
+            for (Typist typist : typists) {
+                typist.close();
+            }
+            Files.delete(file);
+            Files.delete(dir);
+            System.exit(0);
+        }
+    }
+
+    private static String option(String name, String def) {
+        for (String arg : args) {
+            if (arg.startsWith("--" + name + "=")) return arg.substring(name.length() + 3);
+        }
+        return def;
+    }
+
+    private static void summary(List<Typist> typists, String text, int duration) {
+        int matched = 0;
+        long[] all = new long[0];
+        for (Typist typist : typists) {
+            if (typist.text().equals(text)) matched++;
+
+            long[] latencies = typist.latencies();
+            int n = all.length;
+            all = Arrays.copyOf(all, n + latencies.length);
+            System.arraycopy(latencies, 0, all, n, latencies.length);
+        }
+        Arrays.sort(all);
+
+        System.out.printf("%nKeystrokes: %d, relays: %d (%.0f/s), document: %d characters%n", tokens.get(),
+                all.length, (double) all.length / duration, text.length());
+        System.out.printf("Copies matching the Server's: %d of %d (resyncs %d, batches that did not fit %d)%n%n",
+                matched, typists.size(), resyncs.get(), misfits.get());
+        if (all.length == 0) return;
+
+        System.out.printf("%-16s %9s %9s %9s %9s %9s %9s%n", "Latency (ms)", "Mean", "p50", "p90", "p99", "p99.9", "Max");
+        System.out.printf("%-16s %9.3f %9.3f %9.3f %9.3f %9.3f %9.3f%n", "propagation",
+                Arrays.stream(all).average().orElse(0) / 1e6, percentile(all, 50), percentile(all, 90),
+                percentile(all, 99), percentile(all, 99.9), all[all.length - 1] / 1e6);
+    }
+
+    //Percentile of sorted nanoseconds, in milliseconds
+    private static double percentile(long[] sorted, double p) {
+        int index = (int) Math.ceil(p / 100 * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(index, sorted.length - 1))] / 1e6;
+    }
+
+    //One headless Client typing into the document, through a TextClient as the editor does
+    private static class Typist implements TextClient.Listener, Closeable {
+        private final TextClient client;
+        private final Random random;
+
+        //Guards the document, shared by the keyboard and the client's listener
+        private final ReentrantLock lock = new ReentrantLock();
+        private SharedSession session;
+        private StringBuilder text;
+        private long[] latencies = new long[256]; //Nanoseconds
+        private int latencyCount;
+
+        private final CompletableFuture<Void> opened = new CompletableFuture<>();
+        private volatile boolean closing;
+
+        Typist(String username, long seed) throws IOException {
+            random = new Random(seed);
+            client = new TextClient(host, port, username, this);
+            if (!client.start()) throw new IOException(username + " could not connect");
+        }
+
+        String username() {
+            return client.getUsername();
+        }
+
+        //Upload a file, and wait for the Server to store it
+        void upload(Path file) throws Exception {
+            client.upload(file.toString()).get(TIMEOUT, TimeUnit.SECONDS);
+        }
+
+        //Open the document, and wait for its text
+        void open(String path) throws Exception {
+            client.openShared(path);
+            opened.get(TIMEOUT, TimeUnit.SECONDS);
+        }
+
+        //One keystroke (on the keyboard's threads)
+        void type() {
+            lock.lock();
+            try {
+                EditOp op;
+                if (text.length() > 0 && random.nextInt(10) < DELETES) {
+                    op = EditOp.delete(random.nextInt(text.length()), 1);
+                } else {
+                    String token = "<" + Long.toString(tokens.incrementAndGet(), 36) + ">";
+                    typed.put(token, System.nanoTime());
+                    op = EditOp.insert(random.nextInt(text.length() + 1), token);
+                }
+                EditOp.apply(List.of(op), text);
+                session.edit(op);
+                send();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        //The next batch, unless one is on its way (with the lock held)
+        private void send() {
+            List<EditOp> batch = session.next();
+            if (batch != null) client.sendEdits(session.document, session.revision(), batch);
+        }
+
+        boolean idle() {
+            lock.lock();
+            try {
+                return session.idle();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        String text() {
+            lock.lock();
+            try {
+                return text.toString();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        long[] latencies() {
+            lock.lock();
+            try {
+                return Arrays.copyOf(latencies, latencyCount);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        //The document's text: the first time, or again because a batch of ours
+        //could not be applied (the edits not acknowledged are lost, as in the editor)
+        @Override
+        public void sharedText(int document, long revision, String text) {
+            lock.lock();
+            try {
+                if (session != null) resyncs.incrementAndGet();
+                session = new SharedSession(document, revision);
+                this.text = new StringBuilder(text);
+            } finally {
+                lock.unlock();
+            }
+            opened.complete(null);
+        }
+
+        //Another typist's batch, or (with no edits) the revision ours made
+        @Override
+        public void sharedEdits(int document, long revision, List<EditOp> ops) {
+            long now = System.nanoTime();
+            lock.lock();
+            try {
+                if (ops.isEmpty()) {
+                    session.acknowledged(revision);
+                    send();
+                    return;
+                }
+
+                if (!EditOp.apply(session.received(revision, ops), text)) misfits.incrementAndGet();
+                for (EditOp op : ops) {
+                    if (op.kind == EditOp.INSERT) record(op.text, now);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public void disconnected() {
+            if (!closing) System.out.println(username() + " lost its connection");
+        }
+
+        //Latency of every token in the text of an insert (with the lock held)
+        private void record(String inserted, long now) {
+            for (int start = inserted.indexOf('<'); start >= 0; start = inserted.indexOf('<', start + 1)) {
+                int end = inserted.indexOf('>', start);
+                if (end < 0) return;
+                Long at = typed.get(inserted.substring(start, end + 1));
+                if (at == null) continue;
+
+                if (latencyCount == latencies.length) latencies = Arrays.copyOf(latencies, latencyCount * 2);
+                latencies[latencyCount++] = now - at;
+            }
+        }
+
+        @Override
+        public void close() {
+            closing = true;
+            client.sendMessage(new ChatMessage(ChatMessage.LOGOUT, ""));
+            client.disconnect();
+        }
+    }
+}
@@ -0,0 +1,174 @@
+/*
+ * COEN 317
+ * Distributed Editor
+ * Content-addressed store of the files sent by the Clients
+ *
+ * Every file is kept once, as .blobs/[SHA-256], however many users sent it.
+ * Each user's file names point at a blob, and a blob is deleted once no name
+ * points at it any more (a user's names all go when they log out).
+ */
+
+import java.io.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
+
+public class BlobStore {
+    private final Path directory;
+    private final FileCache cache; //Told about deleted blobs; may be null
+
+    private final Map<String, Map<String, String>> names = new HashMap<>(); //Username -> file name -> digest
+    private final Map<String, Integer> references = new HashMap<>();        //Digest -> names pointing at it
+    private final AtomicLong nextIncoming = new AtomicLong();
+
+    //A ReentrantLock rather than synchronized, so that virtual threads do not pin their carrier
+    private final ReentrantLock lock = new ReentrantLock();
+
+    //Nothing refers to blobs left over from an earlier run, so they are deleted
+    BlobStore(Path directory, FileCache cache) throws IOException {
+        this.directory = directory;
+        this.cache = cache;
+        Files.createDirectories(directory);
+
+        File[] blobs = directory.toFile().listFiles();
+        if (blobs != null) {
+            for (File f : blobs) {
+                f.delete();
+            }
+        }
+    }
+
+    static String hex(byte[] digest) {
+        StringBuilder hex = new StringBuilder(digest.length * 2);
+        for (byte b : digest) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+    }
+
+    //Fresh path in the store's directory to receive a file into, before add() takes it in
+    Path incoming() {
+        return directory.resolve("incoming-" + nextIncoming.incrementAndGet());
+    }
+
+    //Store a received file (which is moved into the store, or deleted if the store already has it)
+    //as name for user; returns the file's digest
+    String add(String user, String name, Path file) throws IOException {
+        String digest;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            digest = hex(FileSender.digest(channel));
+        }
+
+        lock.lock();
+        try {
+            Path blob = directory.resolve(digest);
+            if (references.containsKey(digest)) {
+                Files.delete(file);
+            } else {
+                Files.move(file, blob, StandardCopyOption.REPLACE_EXISTING);
+            }
+            put(user, name, digest);
+            return digest;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    //Store content received in one piece
+    String add(String user, String name, byte[] content) throws IOException {
+        Path file = incoming();
+        Files.write(file, content);
+        return add(user, name, file);
+    }
+
+    //Point name at content the store already has, without it being sent again
+    //Returns false if the store does not have a blob with that digest and size
+    boolean link(String user, String name, byte[] digest, long size) throws IOException {
+        String hex = hex(digest);
+        lock.lock();
+        try {
+            if (!references.containsKey(hex) || Files.size(directory.resolve(hex)) != size) {
+                return false;
+            }
+            put(user, name, hex);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    //Blob holding a file, given as "[username]/[file name]"; null if there is no such file
+    Path find(String path) {
+        int index = path.indexOf('/');
+        if (index < 0) return null;
+
+        lock.lock();
+        try {
+            Map<String, String> files = names.get(path.substring(0, index));
+            String digest = files == null ? null : files.get(path.substring(index + 1));
+            return digest == null ? null : directory.resolve(digest);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    //Forget one of a user's files
+    void remove(String user, String name) throws IOException {
+        lock.lock();
+        try {
+            Map<String, String> files = names.get(user);
+            if (files != null) {
+                release(files.remove(name));
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    //Forget all of a user's files; returns how many there were
+    int removeUser(String user) throws IOException {
+        lock.lock();
+        try {
+            Map<String, String> files = names.remove(user);
+            if (files == null) return 0;
+
+            for (String digest : files.values()) {
+                release(digest);
+            }
+            return files.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    //Number of distinct blobs stored
+    int blobs() {
+        lock.lock();
+        try {
+            return references.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    //Caller holds the lock
+    private void put(String user, String name, String digest) throws IOException {
+        String old = names.computeIfAbsent(user, u -> new HashMap<>()).put(name, digest);
+        references.merge(digest, 1, Integer::sum);
+        release(old);
+    }
+
+    //Drop one reference to a blob, and the blob itself with the last one (caller holds the lock)
+    private void release(String digest) throws IOException {
+        if (digest == null) return;
+
+        if (references.merge(digest, -1, Integer::sum) <= 0) {
+            references.remove(digest);
+            Path blob = directory.resolve(digest);
+            if (cache != null) cache.invalidate(blob);
+            Files.deleteIfExists(blob);
+        }
+    }
+}
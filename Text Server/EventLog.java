@@ -0,0 +1,249 @@
+/*
+ * COEN 317
+ * Distributed Editor
+ * The server's event log: events are handed to a background writer instead of
+ * being printed by the thread they happen on, so that a slow console (or a full
+ * pipe behind it) never holds up a broadcast or a Client's request.
+ *
+ * An event takes a slot of a fixed ring of CAPACITY slots, allocated once and
+ * reused: logging costs a compare-and-set and a few field writes, and nothing is
+ * formatted (or even joined together, for a message logged in parts) until the
+ * writer thread gets to it. The writer wakes up every LINGER milliseconds, or
+ * as soon as half the ring has filled, and writes what has built up in one go;
+ * it is not woken for every event, which on a busy server would cost a thread
+ * switch per event. Timestamps are formatted with java.time once per second and
+ * the text reused. If the writer falls so far behind that the ring fills up,
+ * events are dropped rather than waited for, and the writer says how many when
+ * it catches up.
+ *
+ * Options (see TextServer.main): --log=debug|info|warn|error|off (default info)
+ *                                --log-format=text|json (json: one object per line)
+ */
+
+import java.io.*;
+import java.time.*;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
+
+public class EventLog {
+    enum Level { DEBUG, INFO, WARN, ERROR, OFF }
+
+    private static final int CAPACITY = 1 << 13; //Slots in the ring (a power of two)
+    private static final int MASK = CAPACITY - 1;
+    private static final long LINGER = 10; //Milliseconds between the writer's looks at the ring
+
+    //Year.Month/Day, time in 24 hour clock format, as the server has always printed it
+    private static final DateTimeFormatter FORMAT = DateTimeFormatter.ofPattern("yyyy.MM/dd, HH:mm:ss a");
+
+    private static volatile Level level = Level.INFO;
+    private static volatile boolean json;
+
+    //One event; sequence says whose turn the slot is (see log() and drain())
+    private static final class Slot {
+        volatile long sequence;
+        long time;
+        Level level;
+        String thread;
+        String message, second, third, fourth; //Parts of the message, written one after the other
+    }
+
+    private static final Slot[] ring = new Slot[CAPACITY];
+    private static final AtomicLong tail = new AtomicLong(); //Next slot to fill
+    private static long head;                                //Next slot to write (with writeLock held)
+    private static final ReentrantLock writeLock = new ReentrantLock();
+    private static final LongAdder dropped = new LongAdder();
+    private static long droppedReported;
+    private static final StringBuilder text = new StringBuilder(); //Batch being written (with writeLock held)
+
+    private static final Thread writer;
+
+    //Text of the last second a timestamp was asked for
+    private static final class Stamp {
+        final long second;
+        final String text;
+
+        Stamp(long second, String text) {
+            this.second = second;
+            this.text = text;
+        }
+    }
+    private static volatile Stamp stamp = new Stamp(-1, "");
+
+    static {
+        for (int i = 0; i < CAPACITY; i++) {
+            ring[i] = new Slot();
+            ring[i].sequence = i;
+        }
+
+        writer = new Thread(EventLog::writeLoop, "event log");
+        writer.setDaemon(true);
+        writer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(EventLog::flush, "event log flush"));
+    }
+
+    static void level(Level level) {
+        EventLog.level = level;
+    }
+
+    static void json(boolean json) {
+        EventLog.json = json;
+    }
+
+    //Whether events of a level are logged; check before building an expensive message
+    static boolean enabled(Level level) {
+        return level.compareTo(EventLog.level) >= 0 && level != Level.OFF;
+    }
+
+    //Hand an event to the writer; never waits for it
+    static void log(Level level, String message) {
+        log(level, message, null, null, null);
+    }
+
+    //An event whose message is the parts written one after the other, which costs
+    //the thread logging it nothing to put together
+    static void log(Level level, String message, String second, String third, String fourth) {
+        if (!enabled(level)) return;
+
+        while (true) {
+            long t = tail.get();
+            Slot slot = ring[(int) t & MASK];
+            long sequence = slot.sequence;
+            if (sequence == t) {
+                if (!tail.compareAndSet(t, t + 1)) continue;
+                slot.time = System.currentTimeMillis();
+                slot.level = level;
+                slot.thread = Thread.currentThread().getName();
+                slot.message = message;
+                slot.second = second;
+                slot.third = third;
+                slot.fourth = fourth;
+                slot.sequence = t + 1; //Now the writer's
+                if ((t & (CAPACITY / 2 - 1)) == 0) LockSupport.unpark(writer); //Half the ring since the last wake up
+                return;
+            }
+            if (sequence < t) {
+                //The writer has not written the event that filled this slot last time round
+                dropped.increment();
+                return;
+            }
+            //Another thread took the slot first: try the next one
+        }
+    }
+
+    //Time as the server prints it, for a time within the current second or so
+    static String timestamp(long millis) {
+        long second = Math.floorDiv(millis, 1000);
+        Stamp s = stamp;
+        if (s.second != second) {
+            s = new Stamp(second, FORMAT.format(LocalDateTime.ofInstant(Instant.ofEpochSecond(second), ZoneId.systemDefault())));
+            stamp = s;
+        }
+        return s.text;
+    }
+
+    static String timestamp() {
+        return timestamp(System.currentTimeMillis());
+    }
+
+    //Write every event logged so far
+    static void flush() {
+        writeLock.lock();
+        try {
+            while (drain(System.out) > 0) { }
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    private static void writeLoop() {
+        while (true) {
+            writeLock.lock();
+            int written;
+            try {
+                written = drain(System.out);
+            } finally {
+                writeLock.unlock();
+            }
+            if (written < CAPACITY / 4) LockSupport.parkNanos(LINGER * 1_000_000);
+        }
+    }
+
+    //Write the events waiting in the ring (a batch at most) in one go, with writeLock held
+    //Returns the number written
+    private static int drain(PrintStream out) {
+        text.setLength(0);
+        int n = 0;
+        for (; n < CAPACITY / 4; n++, head++) {
+            Slot slot = ring[(int) head & MASK];
+            if (slot.sequence != head + 1) break;
+
+            format(text, slot);
+            slot.message = slot.second = slot.third = slot.fourth = null;
+            slot.thread = null;
+            slot.sequence = head + CAPACITY; //The producers' again, next time round
+        }
+
+        long lost = dropped.sum() - droppedReported;
+        if (lost > 0) {
+            droppedReported += lost;
+            Slot note = new Slot();
+            note.time = System.currentTimeMillis();
+            note.level = Level.WARN;
+            note.thread = writer.getName();
+            note.message = lost + " events dropped: the log could not keep up";
+            format(text, note);
+        }
+
+        if (text.length() > 0) {
+            out.append(text);
+            out.flush();
+        }
+        return n;
+    }
+
+    private static void format(StringBuilder text, Slot slot) {
+        if (!json) {
+            text.append(timestamp(slot.time)).append(": ");
+            if (slot.level != Level.INFO) text.append(slot.level).append(": ");
+            text.append(slot.message);
+            if (slot.second != null) text.append(slot.second);
+            if (slot.third != null) text.append(slot.third);
+            if (slot.fourth != null) text.append(slot.fourth);
+            text.append(System.lineSeparator());
+            return;
+        }
+
+        text.append("{\"time\":\"").append(Instant.ofEpochMilli(slot.time))
+            .append("\",\"level\":\"").append(slot.level)
+            .append("\",\"thread\":\"");
+        escape(text, slot.thread);
+        text.append("\",\"message\":\"");
+        escape(text, slot.message);
+        escape(text, slot.second);
+        escape(text, slot.third);
+        escape(text, slot.fourth);
+        text.append("\"}\n");
+    }
+
+    //Text as it goes between quotes in JSON
+    private static void escape(StringBuilder text, String value) {
+        if (value == null) return;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':  text.append("\\\""); break;
+                case '\\': text.append("\\\\"); break;
+                case '\n': text.append("\\n"); break;
+                case '\r': text.append("\\r"); break;
+                case '\t': text.append("\\t"); break;
+                default:
+                    if (c < 0x20) {
+                        text.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        text.append(c);
+                    }
+            }
+        }
+    }
+}
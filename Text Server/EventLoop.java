@@ -0,0 +1,118 @@
+/*
+ * COEN 317
+ * Distributed Editor
+ * Selector based I/O worker loop used by the server's "nio" mode
+ *
+ */
+
+import java.io.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+public class EventLoop implements Runnable {
+    private final Selector selector;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final ArrayDeque<NioConnection> flushes = new ArrayDeque<>(); //Loop thread only
+    private Thread thread;
+
+    EventLoop() throws IOException {
+        selector = Selector.open();
+    }
+
+    //Start the loop on its own thread
+    void start(String name) {
+        thread = new Thread(this, name);
+        thread.start();
+    }
+
+    boolean inLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    //Run a task on the loop thread
+    //A task queued by another task runs on the loop's next pass, after the selector
+    //has been through its cancelled keys (see NioConnection.handOff)
+    void execute(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    //Flush a connection at the end of this pass of the loop, once everything
+    //read has been handled (called on the loop thread)
+    void flushLater(NioConnection conn) {
+        flushes.add(conn);
+    }
+
+    //Hand a newly accepted connection (created for this loop) to the selector
+    void register(NioConnection conn) throws IOException {
+        SocketChannel channel = conn.channel();
+        channel.configureBlocking(false);
+
+        execute(() -> {
+            try {
+                conn.registered(channel.register(selector, SelectionKey.OP_READ, conn));
+            } catch (ClosedChannelException e) {
+                conn.close();
+            }
+        });
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            try {
+                selector.select();
+            } catch (IOException e) {
+                break;
+            }
+
+            //A task or connection that throws must not take the loop (and every
+            //other connection on it) down: a connection that does is closed
+            Runnable task;
+            for (int n = tasks.size(); n > 0 && (task = tasks.poll()) != null; n--) {
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    EventLog.log(EventLog.Level.ERROR, "Error in " + thread.getName() + " task: " + e);
+                }
+            }
+
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                NioConnection conn = (NioConnection) key.attachment();
+
+                try {
+                    if (key.isValid() && key.isWritable()) {
+                        conn.flush();
+                    }
+                    if (key.isValid() && key.isReadable()) {
+                        conn.read();
+                    }
+                } catch (RuntimeException e) {
+                    failed(conn, e);
+                }
+            }
+
+            NioConnection conn;
+            while ((conn = flushes.poll()) != null) {
+                try {
+                    conn.flush();
+                } catch (RuntimeException e) {
+                    failed(conn, e);
+                }
+            }
+        }
+    }
+
+    private void failed(NioConnection conn, RuntimeException e) {
+        EventLog.log(EventLog.Level.ERROR, "Error on " + thread.getName() + "; closing connection: " + e);
+        try {
+            conn.close();
+        } catch (RuntimeException again) {
+            /* ¯\_(ツ)_/¯ */
+        }
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * COEN 317
+ * Distributed Editor
+ * Contents of recently requested files, kept in memory
+ *
+ * The least recently used files are evicted once the cached bytes go over
+ * the capacity. Files in the BlobStore never change (a new SEND of the same
+ * name makes a new blob), so an entry is only dropped when it is evicted or
+ * when its blob is deleted.
+ */
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.locks.*;
+import java.util.zip.CRC32C;
+
+public class FileCache {
+    //Content of one file (read-only, shared by every transfer) and its CRC32C
+    static class Entry {
+        final ByteBuffer content;
+        final int checksum;
+
+        Entry(ByteBuffer content, int checksum) {
+            this.content = content;
+            this.checksum = checksum;
+        }
+    }
+
+    private final long capacity; //Bytes
+    //Bigger files are never cached, so that one cannot flush out all the others
+    //(nor can one bigger than a ByteBuffer holds, whatever the capacity)
+    private final long maxEntry;
+
+    //In access order: the eldest entry is the least recently used
+    private final LinkedHashMap<Path, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long bytes;
+
+    //A ReentrantLock rather than synchronized, so that virtual threads do not pin their carrier
+    private final ReentrantLock lock = new ReentrantLock();
+
+    FileCache(long capacity) {
+        this.capacity = capacity;
+        maxEntry = Math.min(capacity / 8, Integer.MAX_VALUE);
+    }
+
+    //Content of a file, read into the cache first if need be
+    //Returns null if the file is too big to be cached
+    Entry get(Path file) throws IOException {
+        lock.lock();
+        try {
+            Entry entry = entries.get(file);
+            if (entry != null) {
+                ServerMetrics.cacheHits.increment();
+                return entry;
+            }
+        } finally {
+            lock.unlock();
+        }
+        ServerMetrics.cacheMisses.increment();
+
+        //Read outside the lock; if two Clients miss at once, the second copy is simply dropped
+        Entry entry;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > maxEntry) return null;
+
+            ByteBuffer content = ByteBuffer.allocateDirect((int) size);
+            while (content.hasRemaining()) {
+                if (channel.read(content) < 0) throw new EOFException("File shrank while being read: " + file);
+            }
+            content.flip();
+
+            CRC32C crc = new CRC32C();
+            crc.update(content.duplicate());
+            entry = new Entry(content.asReadOnlyBuffer(), (int) crc.getValue());
+        }
+
+        lock.lock();
+        try {
+            Entry cached = entries.putIfAbsent(file, entry);
+            if (cached != null) return cached;
+
+            bytes += entry.content.capacity();
+            Iterator<Entry> eldest = entries.values().iterator();
+            while (bytes > capacity && eldest.hasNext()) {
+                Entry evicted = eldest.next();
+                if (evicted == entry) break;
+
+                eldest.remove();
+                bytes -= evicted.content.capacity();
+                ServerMetrics.cacheEvictions.increment();
+            }
+            return entry;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    //Forget a file (its blob has been deleted)
+    void invalidate(Path file) {
+        lock.lock();
+        try {
+            Entry entry = entries.remove(file);
+            if (entry != null) bytes -= entry.content.capacity();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    //Bytes held in the cache
+    long bytes() {
+        lock.lock();
+        try {
+            return bytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
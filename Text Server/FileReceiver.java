@@ -0,0 +1,227 @@
+/*
+ * This class writes a file streamed by a FileSender to disk as its chunks
+ * arrive. The content goes to "[file].part" and is only renamed to the
+ * file itself once its size and checksum match the FILE_BEGIN header.
+ *
+ * A resumable transfer keeps its part file when it is abandoned, and a later
+ * transfer of the same file carries on from the end of it. A transfer may
+ * also be just one range of the file, written to a part file of its own
+ * that is put together with the other ranges afterwards.
+ *
+ * An upload of a new version of a file can also copy blocks of the old
+ * version (FILE_COPY, see FileDelta) in between its chunks.
+ */
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.zip.CRC32C;
+
+public class FileReceiver implements Closeable {
+    final int id;
+    final String name;
+    final long size;
+    final int checksum;
+    final byte[] digest; //SHA-256 of the file, if the sender sent it (DIGEST flag)
+
+    //Range carried by this transfer (the whole file unless FILE_BEGIN has the RANGE flag)
+    private long offset, length;
+
+    private final Path target, part;
+    private final long base; //Offset in the file of the part file's first byte
+    private final boolean resumable;
+    private final FileChannel channel;
+    private final CRC32C crc = new CRC32C();
+    private long received;
+
+    private ByteBuffer basis; //Old version FILE_COPY copies from, if any
+    private int blockSize;
+
+    //Fields of a FILE_BEGIN frame
+    static class Header {
+        final int id;
+        final long size;
+        final int checksum;
+        final long offset, length; //The whole file unless the RANGE flag is set
+        final byte[] digest;       //null unless the DIGEST flag is set
+        final String name;
+
+        Header(WireCodec.Frame begin) throws StreamCorruptedException {
+            WireCodec.Reader header = new WireCodec.Reader(begin.payload);
+            id = header.varint();
+            size = header.varlong();
+            checksum = header.int32();
+            if ((begin.flags & WireCodec.RANGE) != 0) {
+                offset = header.varlong();
+                length = header.varlong();
+            } else {
+                offset = 0;
+                length = size;
+            }
+            digest = (begin.flags & WireCodec.DIGEST) != 0 ? header.bytes(32) : null;
+            name = header.text();
+        }
+    }
+
+    //Start receiving the file described by a FILE_BEGIN payload into a directory
+    //(the file keeps its name, without any directories the sender put in front of it)
+    FileReceiver(byte[] payload, Path directory) throws IOException {
+        this(new WireCodec.Frame(WireCodec.FILE_BEGIN, 0, payload), directory, null, 0, false);
+    }
+
+    //Start a resumable transfer of the file (or range) described by a FILE_BEGIN frame
+    //The part file holds the file's content from base on; what it already holds
+    //before the transfer's offset is kept
+    FileReceiver(WireCodec.Frame begin, Path target, Path part, long base) throws IOException {
+        this(begin, target, part, base, true);
+    }
+
+    //Receive into the given part file, then rename it to target; the part file is
+    //only kept for a later transfer to resume if the transfer is resumable
+    //(target is the directory to receive into when part is null)
+    FileReceiver(WireCodec.Frame begin, Path target, Path part, long base, boolean resumable) throws IOException {
+        Header header = new Header(begin);
+        id = header.id;
+        size = header.size;
+        checksum = header.checksum;
+        offset = header.offset;
+        length = header.length;
+        digest = header.digest;
+        name = header.name;
+
+        if (part == null) {
+            int index = Math.max(name.lastIndexOf("/"), name.lastIndexOf("\\"));
+            target = target.resolve(name.substring(index + 1));
+            part = target.resolveSibling(target.getFileName() + ".part");
+        }
+        this.target = target;
+        this.part = part;
+        this.base = base;
+        this.resumable = resumable;
+
+        channel = FileChannel.open(part, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        if (offset < base || offset - base > channel.size()) {
+            channel.close();
+            throw new IOException("Range does not follow on from " + part);
+        }
+    }
+
+    //Transfer id at the start of a FILE_BEGIN, FILE_CHUNK or FILE_END payload
+    static int transferId(byte[] payload) {
+        return new WireCodec.Reader(payload).varint();
+    }
+
+    Path target() {
+        return target;
+    }
+
+    Path part() {
+        return part;
+    }
+
+    //Carry on from the end of the content the part file already holds, rather
+    //than from the offset in FILE_BEGIN; returns the offset the sender must skip to
+    //(for the Server's FILE_RESUME answer to an upload)
+    long resume() throws IOException {
+        if (received == 0) {
+            long end = offset + length;
+            offset = Math.min(base + channel.size(), end);
+            length = end - offset;
+        }
+        return offset;
+    }
+
+    //Append the data of a FILE_CHUNK payload
+    void write(byte[] payload) throws IOException {
+        WireCodec.Reader chunk = new WireCodec.Reader(payload);
+        chunk.varint(); //Transfer id
+
+        ByteBuffer data = ByteBuffer.wrap(payload, chunk.pos, chunk.remaining());
+        if (received + data.remaining() > length) {
+            throw new IOException("More data than announced for " + name);
+        }
+
+        crc.update(data.duplicate());
+        while (data.hasRemaining()) {
+            received += channel.write(data, offset - base + received);
+        }
+    }
+
+    //Let FILE_COPY frames copy blocks of an older version of the file (see FileDelta)
+    void basis(ByteBuffer basis, int blockSize) {
+        this.basis = basis;
+        this.blockSize = blockSize;
+    }
+
+    //Append blocks of the older version, from a FILE_COPY payload; returns the bytes copied
+    long copy(byte[] payload) throws IOException {
+        WireCodec.Reader copy = new WireCodec.Reader(payload);
+        copy.varint(); //Transfer id
+        long from = copy.varlong() * blockSize;
+        long n = copy.varlong() * blockSize;
+
+        if (basis == null || from < 0 || n < 0 || from + n > basis.limit()) {
+            throw new IOException("Copy of blocks the old version does not have for " + name);
+        }
+        if (received + n > length) {
+            throw new IOException("More data than announced for " + name);
+        }
+
+        ByteBuffer data = basis.duplicate().limit((int) (from + n)).position((int) from);
+        crc.update(data.duplicate());
+        while (data.hasRemaining()) {
+            received += channel.write(data, offset - base + received);
+        }
+        return n;
+    }
+
+    //Complete the transfer with the FILE_END payload
+    //Once the part file holds the whole file, it is checked and renamed to the target;
+    //for a range in a part file of its own, it is left for the caller to put together
+    //Returns false (and deletes the partial file) if the sender failed or the content is wrong
+    boolean finish(byte[] payload) throws IOException {
+        WireCodec.Reader end = new WireCodec.Reader(payload);
+        end.varint(); //Transfer id
+        int status = end.varint();
+
+        if (status != 0 || received != length) {
+            channel.close();
+            if (!resumable) Files.deleteIfExists(part);
+            return false;
+        }
+
+        channel.truncate(offset - base + received); //Anything after this transfer's data is stale
+        if (base != 0 || offset + length != size) {
+            channel.close();
+            return true;
+        }
+
+        //The checksum only covers this transfer's data if it started at the beginning
+        int actual = offset == 0 ? (int) crc.getValue() : FileSender.checksum(channel);
+        channel.close();
+        return complete(part, target, size, checksum, actual);
+    }
+
+    //Rename a part file holding the whole file to the target, if it is the right file
+    static boolean complete(Path part, Path target, long size, int checksum, int actual) throws IOException {
+        if (Files.size(part) != size || actual != checksum) {
+            Files.deleteIfExists(part);
+            return false;
+        }
+
+        Files.move(part, target, StandardCopyOption.REPLACE_EXISTING);
+        return true;
+    }
+
+    //Give up on the transfer (a resumable one keeps its part file)
+    @Override
+    public void close() {
+        try {
+            channel.close();
+            if (!resumable) Files.deleteIfExists(part);
+        } catch (IOException e) {
+            /* ¯\_(ツ)_/¯ */
+        }
+    }
+}
@@ -0,0 +1,293 @@
+/*
+ * This class streams one file as WireCodec frames: FILE_BEGIN, then a
+ * FILE_CHUNK per CHUNK_SIZE bytes, then FILE_END. Only one chunk is held in
+ * memory at a time, however big the file is.
+ *
+ * When the frames go to a channel, nextHeader() leaves the chunk data in the
+ * file and transferTo() sends it with FileChannel.transferTo (sendfile), so
+ * the content never passes through the heap.
+ *
+ * A sender can also stream just a byte range of the file (FILE_GET), or skip
+ * what the receiver already has (FILE_RESUME).
+ *
+ * A file whose content is already in memory (the Server's FileCache) is sent
+ * from that buffer instead, without touching the file system at all.
+ */
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.nio.file.attribute.*;
+import java.security.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.CRC32C;
+
+public class FileSender implements Closeable {
+    final int id;
+    final String name;
+    final long size;
+    final int checksum;
+
+    //Range being sent; FILE_BEGIN only describes it (RANGE flag) if it was asked for
+    private final boolean range;
+    private final long offset, end;
+
+    private byte[] digest; //SHA-256 sent in FILE_BEGIN (DIGEST flag), once computed
+
+    private final FileChannel channel;
+    private final ByteBuffer content; //Instead of the channel, for content in memory
+    private long position;
+    private boolean begun, ended;
+
+    //File data still to be sent after the last header from nextHeader()
+    private long regionStart, regionEnd;
+
+    private static final long MAP_SEGMENT = 64 * 1024 * 1024; //Most of a file mapped at once
+
+    //Checksums of recently sent files, by path; the same file is often fetched
+    //by several Clients, or in several ranges at once
+    private static final Map<Path, long[]> checksums = new ConcurrentHashMap<>();
+    private static final int MAX_CHECKSUMS = 256;
+
+    //Reused for every chunk; the next chunk is only read once this one has been written
+    private final ByteBuffer frame = ByteBuffer.allocate(WireCodec.MAX_HEADER * 2 + WireCodec.CHUNK_SIZE);
+
+    //Opens the file and computes its checksum (one pass over the file, mapped rather than copied)
+    FileSender(int id, Path path, String name) throws IOException {
+        this(id, path, name, false, 0, Long.MAX_VALUE);
+    }
+
+    //Send length bytes from offset on (both are cut down to fit the file)
+    FileSender(int id, Path path, String name, long offset, long length) throws IOException {
+        this(id, path, name, true, offset, length);
+    }
+
+    private FileSender(int id, Path path, String name, boolean range, long offset, long length) throws IOException {
+        this.id = id;
+        this.name = name;
+        this.range = range;
+        channel = FileChannel.open(path, StandardOpenOption.READ);
+        content = null;
+        size = channel.size();
+        checksum = checksum(path, channel);
+
+        this.offset = Math.min(Math.max(offset, 0), size);
+        end = this.offset + Math.min(Math.max(length, 0), size - this.offset);
+        position = this.offset;
+    }
+
+    //Send a whole file held in memory (content's position to its limit; the buffer is not modified)
+    FileSender(int id, ByteBuffer content, int checksum, String name) {
+        this(id, content, checksum, name, false, 0, Long.MAX_VALUE);
+    }
+
+    //Send length bytes from offset on of a file held in memory
+    FileSender(int id, ByteBuffer content, int checksum, String name, long offset, long length) {
+        this(id, content, checksum, name, true, offset, length);
+    }
+
+    private FileSender(int id, ByteBuffer content, int checksum, String name, boolean range, long offset, long length) {
+        this.id = id;
+        this.name = name;
+        this.range = range;
+        this.checksum = checksum;
+        this.content = content.slice();
+        channel = null;
+        size = this.content.limit();
+
+        this.offset = Math.min(Math.max(offset, 0), size);
+        end = this.offset + Math.min(Math.max(length, 0), size - this.offset);
+        position = this.offset;
+    }
+
+    //CRC32C of a whole file, mapped a segment at a time
+    static int checksum(FileChannel channel) throws IOException {
+        CRC32C crc = new CRC32C();
+        long size = channel.size();
+        for (long pos = 0; pos < size; pos += MAP_SEGMENT) {
+            crc.update(channel.map(FileChannel.MapMode.READ_ONLY, pos, Math.min(MAP_SEGMENT, size - pos)));
+        }
+        return (int) crc.getValue();
+    }
+
+    //Checksum of a file, reused while its size and modification time stay the same
+    private static int checksum(Path path, FileChannel channel) throws IOException {
+        Path key = path.toAbsolutePath().normalize();
+        BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+        long modified = attributes.lastModifiedTime().toMillis();
+
+        long[] cached = checksums.get(key);
+        if (cached != null && cached[0] == attributes.size() && cached[1] == modified) {
+            return (int) cached[2];
+        }
+
+        int crc = checksum(channel);
+        if (checksums.size() >= MAX_CHECKSUMS) checksums.clear();
+        checksums.put(key, new long[] {attributes.size(), modified, crc});
+        return crc;
+    }
+
+    //SHA-256 of a whole file, mapped a segment at a time
+    static byte[] digest(FileChannel channel) throws IOException {
+        try {
+            MessageDigest sha = MessageDigest.getInstance("SHA-256");
+            long size = channel.size();
+            for (long pos = 0; pos < size; pos += MAP_SEGMENT) {
+                sha.update(channel.map(FileChannel.MapMode.READ_ONLY, pos, Math.min(MAP_SEGMENT, size - pos)));
+            }
+            return sha.digest();
+
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e); //Every JVM has SHA-256
+        }
+    }
+
+    //Send the file's SHA-256 in FILE_BEGIN, so the receiver can tell whether it has the content already
+    //Only takes effect before FILE_BEGIN (and only for a file on disk)
+    void addDigest() throws IOException {
+        if (channel != null) digest = digest(channel);
+    }
+
+    //Skip the part of the file the receiver already has (see FILE_RESUME)
+    //Only takes effect before the first chunk
+    void resumeFrom(long offset) {
+        if (position == this.offset) {
+            position = Math.min(Math.max(offset, this.offset), end);
+        }
+    }
+
+    //Next frame of the transfer; returns null once FILE_END has been produced
+    //A read error ends the transfer with a failed FILE_END
+    ByteBuffer nextFrame() {
+        return next(true);
+    }
+
+    //Like nextFrame(), but a FILE_CHUNK comes back as just its header: the data
+    //must then be written with transferTo() before asking for the next frame
+    ByteBuffer nextHeader() {
+        return next(false);
+    }
+
+    //Chunk data left over from the last nextHeader()
+    boolean hasRegion() {
+        return regionStart < regionEnd;
+    }
+
+    //Send chunk data straight from the file to the channel
+    //Returns the number of bytes written, which is 0 if the channel is full
+    long transferTo(WritableByteChannel target) throws IOException {
+        if (content != null) {
+            int n = target.write(slice(regionStart, regionEnd));
+            regionStart += n;
+            return n;
+        }
+
+        long n = channel.transferTo(regionStart, regionEnd - regionStart, target);
+        if (n == 0 && regionStart >= channel.size()) {
+            throw new EOFException("File shrank while being sent: " + name);
+        }
+        regionStart += n;
+        return n;
+    }
+
+    private ByteBuffer next(boolean copy) {
+        if (!begun) {
+            begun = true;
+            return begin();
+        }
+        if (ended) return null;
+
+        try {
+            if (position < end) {
+                return copy ? nextChunk() : chunkHeader();
+            }
+            return end(0);
+
+        } catch (IOException e) {
+            return end(1);
+        }
+    }
+
+    private ByteBuffer begin() {
+        WireCodec.Writer begin = new WireCodec.Writer().varint(id).varlong(size).int32(checksum);
+        int flags = 0;
+        if (range) {
+            begin.varlong(offset).varlong(end - offset);
+            flags |= WireCodec.RANGE;
+        }
+        if (digest != null) {
+            begin.bytes(digest);
+            flags |= WireCodec.DIGEST;
+        }
+        return ByteBuffer.wrap(WireCodec.encode(WireCodec.FILE_BEGIN, flags, begin.text(name).toByteArray()));
+    }
+
+    //Read the next chunk straight into the frame buffer, leaving room for the header
+    private ByteBuffer nextChunk() throws IOException {
+        int start = WireCodec.MAX_HEADER * 2;
+        frame.clear().position(start);
+        frame.limit(start + (int) Math.min(WireCodec.CHUNK_SIZE, end - position));
+        int n;
+        if (content != null) {
+            n = frame.remaining();
+            frame.put(slice(position, position + n));
+        } else {
+            n = channel.read(frame, position);
+        }
+        if (n <= 0) throw new EOFException("File shrank while being sent: " + name);
+        position += n;
+
+        //Write [header][transfer id] right in front of the data
+        byte[] idBytes = WireCodec.varint(id);
+        int length = idBytes.length + n;
+        byte[] header = new byte[2 + WireCodec.varintSize(length)];
+        WireCodec.putHeader(header, WireCodec.FILE_CHUNK, 0, length);
+
+        int begin = start - idBytes.length - header.length;
+        frame.limit(start + n).position(begin);
+        frame.put(header).put(idBytes);
+        frame.position(begin);
+        return frame;
+    }
+
+    //Header of the next chunk; the chunk itself becomes the region for transferTo()
+    private ByteBuffer chunkHeader() throws IOException {
+        int n = (int) Math.min(WireCodec.CHUNK_SIZE, end - position);
+        if (channel != null && position + n > channel.size()) {
+            throw new EOFException("File shrank while being sent: " + name);
+        }
+        regionStart = position;
+        regionEnd = position + n;
+        position += n;
+
+        byte[] idBytes = WireCodec.varint(id);
+        int length = idBytes.length + n;
+        frame.clear();
+        byte[] header = new byte[2 + WireCodec.varintSize(length)];
+        WireCodec.putHeader(header, WireCodec.FILE_CHUNK, 0, length);
+        frame.put(header).put(idBytes);
+        return frame.flip();
+    }
+
+    //View of part of the content held in memory
+    private ByteBuffer slice(long from, long to) {
+        return content.duplicate().limit((int) to).position((int) from);
+    }
+
+    private ByteBuffer end(int status) {
+        ended = true;
+        return ByteBuffer.wrap(WireCodec.encode(WireCodec.FILE_END, 0, new WireCodec.Writer()
+                .varint(id).varint(status).toByteArray()));
+    }
+
+    @Override
+    public void close() {
+        try {
+            if (channel != null) channel.close();
+        } catch (IOException e) {
+            /* ¯\_(ツ)_/¯ */
+        }
+    }
+}
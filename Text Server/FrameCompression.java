@@ -0,0 +1,146 @@
+/*
+ * This class compresses the frames of one connection (protocol version 8,
+ * when both sides ask for it in HELLO).
+ *
+ * Chat-sized frames continue one deflate stream per direction, flushed at
+ * the end of every frame (DEFLATED_STREAM flag): a message is compressed
+ * with everything sent before it as its dictionary, so even short messages
+ * shrink. Bigger payloads, file chunks above all, are deflated on their own
+ * (DEFLATED flag), and sent as they are if that does not make them smaller,
+ * as with data that is compressed already. Frames under MIN_SIZE are never
+ * worth it and always go as they are. A frame sent to many connections at
+ * once is compressed on its own, once, before it is handed to them
+ * (encodeShared), and compress() passes it through.
+ *
+ * Frames have to be compressed in the order they are written, and
+ * decompressed in the order they are read: compress() is only called by a
+ * connection's writer, and decompress() by its reader.
+ */
+
+import java.io.*;
+import java.nio.*;
+import java.util.*;
+import java.util.zip.*;
+
+public class FrameCompression {
+    static final int FEATURE = 1; //Bit of the HELLO features
+
+    static final int MIN_SIZE = 64;       //Smaller payloads are never compressed
+    static final int STREAM_LIMIT = 4096; //Larger payloads are compressed on their own
+    private static final int MAX_INFLATED = 256 * 1024 * 1024;
+
+    //What a sync flush ends with; left off on the wire, and put back to inflate
+    private static final byte[] SYNC_TAIL = {0, 0, (byte) 0xFF, (byte) 0xFF};
+
+    //Writer side
+    private final Deflater stream = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+    private final Deflater single = new Deflater(Deflater.BEST_SPEED, true);
+    private byte[] output = new byte[8192];
+
+    //Reader side
+    private final Inflater streamIn = new Inflater(true);
+    private final Inflater singleIn = new Inflater(true);
+
+    //Compressed form of an encoded frame, or the frame itself if it is not worth compressing
+    ByteBuffer compress(ByteBuffer encoded) {
+        if ((encoded.get(encoded.position() + 1) & (WireCodec.DEFLATED | WireCodec.DEFLATED_STREAM)) != 0) {
+            return encoded; //Compressed already (see encodeShared)
+        }
+
+        WireCodec.Frame frame = WireCodec.decode(encoded.duplicate());
+        byte[] payload = frame.payload;
+        if (frame.type == WireCodec.HELLO || payload.length < MIN_SIZE
+                || (frame.flags & (WireCodec.DEFLATED | WireCodec.DEFLATED_STREAM)) != 0) {
+            return encoded;
+        }
+
+        if (frame.type != WireCodec.FILE_CHUNK && payload.length <= STREAM_LIMIT) {
+            stream.setInput(payload);
+            int n = 0;
+            do {
+                if (n == output.length) output = Arrays.copyOf(output, n * 2);
+                n += stream.deflate(output, n, output.length - n, Deflater.SYNC_FLUSH);
+            } while (n == output.length);
+            return frame(frame, WireCodec.DEFLATED_STREAM, n - SYNC_TAIL.length);
+        }
+
+        int n = deflate(payload);
+        if (n >= payload.length - payload.length / 10) return encoded; //Saves too little
+        return frame(frame, WireCodec.DEFLATED, n);
+    }
+
+    //A frame for many connections, compressed on its own (DEFLATED) so that it is
+    //compressed once rather than by each of them; not with a connection's own
+    //FrameCompression. It is deflated even if that saves nothing: a stored block
+    //adds a few bytes, compressing it again for every recipient costs far more
+    byte[] encodeShared(int type, byte[] payload) {
+        if (payload.length < MIN_SIZE) return WireCodec.encode(type, 0, payload);
+        return WireCodec.encode(type, WireCodec.DEFLATED, output, 0, deflate(payload));
+    }
+
+    //Deflate a payload on its own into output; returns the compressed length
+    private int deflate(byte[] payload) {
+        single.reset();
+        single.setInput(payload);
+        single.finish();
+        int n = 0;
+        while (!single.finished()) {
+            if (n == output.length) output = Arrays.copyOf(output, n * 2);
+            n += single.deflate(output, n, output.length - n);
+        }
+        return n;
+    }
+
+    private ByteBuffer frame(WireCodec.Frame frame, int flag, int length) {
+        return ByteBuffer.wrap(WireCodec.encode(frame.type, frame.flags | flag, output, 0, length));
+    }
+
+    //A received frame with its payload decompressed (a frame that is not compressed is returned as it is)
+    WireCodec.Frame decompress(WireCodec.Frame frame) throws IOException {
+        return decompress(frame, MAX_INFLATED);
+    }
+
+    //The same, for a frame whose payload may inflate to no more than maxPayload bytes
+    WireCodec.Frame decompress(WireCodec.Frame frame, int maxPayload) throws IOException {
+        int max = Math.min(maxPayload, MAX_INFLATED);
+        byte[] payload;
+        if ((frame.flags & WireCodec.DEFLATED_STREAM) != 0) {
+            byte[] input = Arrays.copyOf(frame.payload, frame.payload.length + SYNC_TAIL.length);
+            System.arraycopy(SYNC_TAIL, 0, input, frame.payload.length, SYNC_TAIL.length);
+            streamIn.setInput(input);
+            payload = inflate(streamIn, frame.payload.length * 4, max);
+
+        } else if ((frame.flags & WireCodec.DEFLATED) != 0) {
+            singleIn.reset();
+            singleIn.setInput(frame.payload);
+            payload = inflate(singleIn, frame.payload.length * 4, max);
+
+        } else {
+            return frame;
+        }
+        return new WireCodec.Frame(frame.type, frame.flags & ~(WireCodec.DEFLATED | WireCodec.DEFLATED_STREAM), payload);
+    }
+
+    //Everything the inflater can produce from its input
+    private static byte[] inflate(Inflater inflater, int sizeHint, int max) throws IOException {
+        byte[] out = new byte[Math.min(Math.max(sizeHint, 256), max)];
+        int n = 0;
+        try {
+            while (true) {
+                if (n == out.length) {
+                    if (n >= max) throw new ZipException("Frame inflates to more than " + max + " bytes");
+                    out = Arrays.copyOf(out, Math.min(n * 2, max));
+                }
+                int k = inflater.inflate(out, n, out.length - n);
+                n += k;
+                if (k == 0) {
+                    if (inflater.needsInput() || inflater.finished()) break;
+                    throw new ZipException("Corrupt compressed frame");
+                }
+            }
+        } catch (DataFormatException e) {
+            throw new ZipException("Corrupt compressed frame: " + e.getMessage());
+        }
+        return Arrays.copyOf(out, n);
+    }
+}
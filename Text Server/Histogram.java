@@ -0,0 +1,81 @@
+/*
+ * This class counts recorded latencies in buckets, the way HdrHistogram does,
+ * so that percentiles far out in the tail (99.9%, 99.99%) come out to three
+ * significant digits without keeping every value: values under 2048 have a
+ * bucket each, and every doubling above that is split into 1024 buckets.
+ * Microseconds up to an hour then take about 24,000 counters, whatever the
+ * number of values recorded.
+ *
+ * Values can be recorded from any number of threads at once.
+ */
+
+import java.util.concurrent.atomic.*;
+
+public class Histogram {
+    private static final int SUB_BITS = 11;               //Buckets per doubling: 2^(SUB_BITS - 1)
+    private static final int HALF = 1 << (SUB_BITS - 1);
+
+    private final long highest;
+    private final AtomicLongArray counts;
+    private final AtomicLong total = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    //Histogram of values from 0 to highest (higher values are counted as highest)
+    Histogram(long highest) {
+        this.highest = highest;
+        counts = new AtomicLongArray(index(highest) + 1);
+    }
+
+    private static int index(long value) {
+        int shift = Math.max(0, 64 - Long.numberOfLeadingZeros(value) - SUB_BITS);
+        if (shift == 0) return (int) value;
+        return HALF * (shift + 1) + (int) (value >>> shift) - HALF;
+    }
+
+    //Highest value counted in the same bucket as index
+    private static long highestIn(int index) {
+        if (index < 2 * HALF) return index;
+        int shift = index / HALF - 1;
+        long lowest = (long) (index % HALF + HALF) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+
+    void record(long value) {
+        value = Math.min(Math.max(value, 0), highest);
+        counts.incrementAndGet(index(value));
+        total.incrementAndGet();
+        sum.addAndGet(value);
+        max.accumulateAndGet(value, Math::max);
+    }
+
+    long count() {
+        return total.get();
+    }
+
+    long sum() {
+        return sum.get();
+    }
+
+    double mean() {
+        long n = total.get();
+        return n == 0 ? 0 : (double) sum.get() / n;
+    }
+
+    long max() {
+        return max.get();
+    }
+
+    //Value that percentile percent of the values recorded are at or below
+    long percentile(double percent) {
+        long n = total.get();
+        if (n == 0) return 0;
+        long rank = Math.max(1, (long) Math.ceil(percent / 100 * n));
+        long seen = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            seen += counts.get(i);
+            if (seen >= rank) return Math.min(highestIn(i), max.get());
+        }
+        return max.get();
+    }
+}
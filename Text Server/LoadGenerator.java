@@ -0,0 +1,450 @@
+/*
+ * COEN 317
+ * Distributed Editor
+ * Load generator: many simulated Clients on loopback keeping a Server busy
+ *
+ * Every simulated Client is a connection speaking the current protocol, with
+ * a thread reading what the Server sends it (a virtual thread where the JVM
+ * has them). Actions are started at a fixed rate, each by a Client picked at
+ * random, in the proportions of the mix:
+ *
+ * chat     a MESSAGE, which the Server broadcasts to every Client; its latency
+ *          is from when it was meant to be sent to when each Client gets it
+ *          (the message carries that time, as one JVM has one clock)
+ * whoisin  a WHOISIN request, until its REPLY
+ * send     an upload of a file, until the REPLY saying it is stored
+ * get      a download (FILE_GET) of a file, until its FILE_END
+ *
+ * The schedule is kept whatever the Server does (an open loop): a Server that
+ * stalls does not slow the load down, and since latencies count from when an
+ * action was meant to start, the time it waited behind the stall is counted
+ * too. Latencies go in Histograms, for percentiles far out in the tail.
+ *
+ * Usage: java LoadGenerator [host] [port] [options]
+ *   --clients=1000    Clients connected
+ *   --rate=100        actions started per second, by all the Clients together
+ *   --mix=chat:90,whoisin:8,send:1,get:1   relative share of each action
+ *   --duration=30     seconds of load, once every Client has logged in
+ *   --message=64      characters of a chat message
+ *   --file=64K        size of the file sent and got
+ *   --report=5        seconds between progress lines
+ *
+ * The Server stores the files sent under the Clients' names, and deletes
+ * them when they log out at the end.
+ */
+
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
+
+public class LoadGenerator {
+    enum Action {
+        CHAT, WHOISIN, SEND, GET;
+
+        final Histogram latency = new Histogram(HIGHEST); //Microseconds
+        final AtomicLong started = new AtomicLong();
+        final AtomicLong failed = new AtomicLong();
+        final AtomicLong bytes = new AtomicLong();
+    }
+
+    private static final long HIGHEST = 3_600_000_000L; //An hour, in microseconds
+    private static final long TIMEOUT = 30; //Seconds
+
+    //Latency of each chat message to each Client
+    private static final Histogram delivery = new Histogram(HIGHEST);
+
+    private static String[] args;
+    private static String host = "localhost";
+    private static int port = 8080;
+    private static Path file;
+    private static String padding;
+    private static ExecutorService readers;
+    private static final ExecutorService uploads = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "upload");
+        t.setDaemon(true);
+        return t;
+    });
+
+    public static void main(String[] args) throws Exception {
+        LoadGenerator.args = args;
+        if (args.length > 0 && !args[0].startsWith("--")) host = args[0];
+        if (args.length > 1 && !args[1].startsWith("--")) port = Integer.parseInt(args[1]);
+
+        int clients = Integer.parseInt(option("clients", "1000"));
+        double rate = Double.parseDouble(option("rate", "100"));
+        double[] mix = mix(option("mix", "chat:90,whoisin:8,send:1,get:1"));
+        int duration = Integer.parseInt(option("duration", "30"));
+        int report = Integer.parseInt(option("report", "5"));
+        padding = "x".repeat(Math.max(0, Integer.parseInt(option("message", "64")) - 22));
+        long size = size(option("file", "64K"));
+
+        file = Files.createTempFile("load", ".bin");
+        byte[] content = new byte[(int) Math.min(size, 1 << 20)];
+        new Random(size).nextBytes(content);
+        try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(file))) {
+            for (long left = size; left > 0; left -= content.length) {
+                out.write(content, 0, (int) Math.min(left, content.length));
+            }
+        }
+        readers = readers();
+
+        SimClient[] all = new SimClient[clients];
+        try {
+            long start = System.nanoTime();
+            for (int i = 0; i < clients; i++) {
+                all[i] = new SimClient(i);
+            }
+            System.out.printf("%d Clients connected to %s:%d in %.1f s%n", clients, host, port,
+                    (System.nanoTime() - start) / 1e9);
+
+            //The file every get downloads (its upload counts as a send)
+            Pending setup = all[0].upload("load.bin", System.nanoTime());
+            if (!setup.done.get(TIMEOUT, TimeUnit.SECONDS)) throw new IOException("Could not upload the file to get");
+            String get = all[0].username + "/load.bin";
+
+            run(all, rate, mix, duration, report, get);
+            summary(clients, duration);
+
+        } catch (Exception e) {
+            System.out.println("Load test failed: " + e);
+        } finally {
+            for (SimClient client : all) {
+                if (client != null) client.close();
+            }
+            Files.deleteIfExists(file);
+            System.exit(0);
+        }
+    }
+
+    private static String option(String name, String def) {
+        for (String arg : args) {
+            if (arg.startsWith("--" + name + "=")) return arg.substring(name.length() + 3);
+        }
+        return def;
+    }
+
+    //Bytes in a size such as "64K", "1M" or "1G"
+    private static long size(String text) {
+        String upper = text.toUpperCase();
+        int shift = upper.endsWith("K") ? 10 : upper.endsWith("M") ? 20 : upper.endsWith("G") ? 30 : 0;
+        return Long.parseLong(shift == 0 ? upper : upper.substring(0, upper.length() - 1)) << shift;
+    }
+
+    //Cumulative shares of the actions, from a list such as "chat:90,whoisin:10"
+    private static double[] mix(String list) {
+        double[] shares = new double[Action.values().length];
+        for (String item : list.split(",")) {
+            String[] pair = item.split(":");
+            shares[Action.valueOf(pair[0].trim().toUpperCase()).ordinal()] = Double.parseDouble(pair[1]);
+        }
+        double total = 0;
+        for (int i = 0; i < shares.length; i++) {
+            total += shares[i];
+            shares[i] = total;
+        }
+        for (int i = 0; i < shares.length; i++) {
+            shares[i] /= total;
+        }
+        return shares;
+    }
+
+    //Threads reading from the Server: a virtual thread per Client where the JVM has them
+    private static ExecutorService readers() {
+        try {
+            //Looked up reflectively, as in TextServer
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool(r -> {
+                Thread t = new Thread(null, r, "reader", 256 * 1024);
+                t.setDaemon(true);
+                return t;
+            });
+        }
+    }
+
+    //Start actions on schedule for the duration, then wait for the last answers
+    private static void run(SimClient[] all, double rate, double[] mix, int duration, int report, String get)
+            throws InterruptedException {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        long interval = (long) (1e9 / rate);
+        long start = System.nanoTime(), end = start + duration * 1_000_000_000L;
+        long nextReport = start + report * 1_000_000_000L;
+        long delivered = 0;
+
+        for (long next = start; next < end; next += interval) {
+            long wait = next - System.nanoTime();
+            if (wait > 0) Thread.sleep(wait / 1_000_000, (int) (wait % 1_000_000));
+
+            SimClient client = all[random.nextInt(all.length)];
+            double pick = random.nextDouble();
+            Action action = Action.values()[0];
+            while (pick >= mix[action.ordinal()] && action.ordinal() < mix.length - 1) {
+                action = Action.values()[action.ordinal() + 1];
+            }
+            action.started.incrementAndGet();
+            client.start(action, next, get);
+
+            if (report > 0 && next >= nextReport) {
+                long now = delivery.count();
+                System.out.printf("%3d s: %s, %d chat deliveries/s%n", (next - start) / 1_000_000_000L,
+                        progress(), (now - delivered) / report);
+                delivered = now;
+                nextReport += report * 1_000_000_000L;
+            }
+        }
+
+        //Answers still on their way
+        long deadline = System.nanoTime() + TIMEOUT * 1_000_000_000L;
+        for (SimClient client : all) {
+            while (!client.requests.isEmpty() && System.nanoTime() < deadline) {
+                Thread.sleep(10);
+            }
+        }
+        Thread.sleep(500); //Broadcasts still on their way
+    }
+
+    private static String progress() {
+        StringJoiner line = new StringJoiner(", ");
+        for (Action action : Action.values()) {
+            line.add(action.name().toLowerCase() + " " + action.started.get()
+                    + (action.failed.get() > 0 ? " (" + action.failed.get() + " failed)" : ""));
+        }
+        return line.toString();
+    }
+
+    private static void summary(int clients, int duration) {
+        System.out.printf("%nStarted: %s%n", progress());
+        long expected = Action.CHAT.started.get() * clients;
+        System.out.printf("Chat messages delivered: %d of %d (%.2f%%)%n%n", delivery.count(), expected,
+                expected == 0 ? 100.0 : 100.0 * delivery.count() / expected);
+
+        System.out.printf("%-14s %10s %10s %8s %9s %9s %9s %9s %9s%n", "Latency (ms)", "Count", "Per sec",
+                "MB/s", "Mean", "p50", "p99", "p99.9", "Max");
+        row("chat delivery", delivery, -1, duration);
+        for (Action action : Action.values()) {
+            if (action != Action.CHAT) row(action.name().toLowerCase(), action.latency, action.bytes.get(), duration);
+        }
+    }
+
+    //One line of the summary (bytes is -1 for an action that moves no files)
+    private static void row(String name, Histogram latency, long bytes, int duration) {
+        String rate = bytes < 0 ? "" : String.format("%.2f", bytes / 1e6 / duration);
+        System.out.printf("%-14s %10d %10.1f %8s %9.3f %9.3f %9.3f %9.3f %9.3f%n", name, latency.count(),
+                (double) latency.count() / duration, rate, latency.mean() / 1000,
+                latency.percentile(50) / 1000.0, latency.percentile(99) / 1000.0,
+                latency.percentile(99.9) / 1000.0, latency.max() / 1000.0);
+    }
+
+    //A request waiting for its answer
+    private static class Pending {
+        final Action action;
+        final long start; //When it was meant to start (System.nanoTime)
+        final CompletableFuture<Long> resume = new CompletableFuture<>(); //FILE_RESUME of an upload
+        final CompletableFuture<Boolean> done = new CompletableFuture<>();
+        long bytes;
+
+        Pending(Action action, long start) {
+            this.action = action;
+            this.start = start;
+        }
+
+        void finish(boolean ok) {
+            if (ok) {
+                action.latency.record((System.nanoTime() - start) / 1000);
+                action.bytes.addAndGet(bytes);
+            } else {
+                action.failed.incrementAndGet();
+            }
+            done.complete(ok);
+        }
+    }
+
+    //One simulated Client
+    private static class SimClient implements Closeable {
+        final String username;
+        private final Socket socket;
+        private final DataInputStream in;
+        private final OutputStream out;
+        private final ReentrantLock writeLock = new ReentrantLock();
+        private final AtomicInteger nextRequestId = new AtomicInteger();
+        final Map<Integer, Pending> requests = new ConcurrentHashMap<>();
+        private final Semaphore uploadWindow = new Semaphore(WireCodec.WINDOW_CHUNKS);
+        private long chunksReceived; //Reader only
+        private volatile boolean closing;
+
+        SimClient(int index) throws IOException {
+            username = "load" + index;
+            socket = new Socket(host, port);
+            socket.setTcpNoDelay(true); //Frames are buffered, and flushed once there is nothing more to send
+            in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            out = new BufferedOutputStream(socket.getOutputStream(), WireCodec.CHUNK_SIZE);
+
+            write(WireCodec.HELLO, 0, new WireCodec.Writer().varint(WireCodec.VERSION).varint(0).toByteArray(), false);
+            write(WireCodec.LOGIN, 0, WireCodec.utf8(username), true);
+            readers.execute(this::listen);
+        }
+
+        private void write(int type, int flags, byte[] payload, boolean flush) throws IOException {
+            writeLock.lock();
+            try {
+                WireCodec.write(out, type, flags, payload);
+                if (flush) out.flush();
+            } finally {
+                writeLock.unlock();
+            }
+        }
+
+        //Start an action meant to start at the given time
+        void start(Action action, long start, String get) {
+            try {
+                switch (action) {
+                    case CHAT:
+                        write(WireCodec.MESSAGE, 0, WireCodec.utf8("#" + start + " " + padding), true);
+                        break;
+
+                    case WHOISIN:
+                        int id = request(new Pending(action, start));
+                        write(WireCodec.WHOISIN, WireCodec.REQUEST, WireCodec.varint(id), true);
+                        break;
+
+                    case GET:
+                        id = request(new Pending(action, start));
+                        write(WireCodec.FILE_GET, 0, new WireCodec.Writer().varint(id).varlong(0)
+                                .varlong(Long.MAX_VALUE).text(get).toByteArray(), true);
+                        break;
+
+                    case SEND:
+                        uploads.execute(() -> upload(null, start));
+                        break;
+                }
+            } catch (IOException e) {
+                action.failed.incrementAndGet();
+            }
+        }
+
+        private int request(Pending pending) {
+            int id = nextRequestId.incrementAndGet();
+            requests.put(id, pending);
+            return id;
+        }
+
+        //Upload the file under the given name (by default, one named after the request);
+        //the reader finishes it when the REPLY comes
+        Pending upload(String name, long start) {
+            Pending pending = new Pending(Action.SEND, start);
+            int id = request(pending);
+            try (FileSender sender = new FileSender(id, file, name != null ? name : "send-" + id + ".bin")) {
+                pending.bytes = sender.size;
+                writeFrame(sender.nextFrame(), true);
+                sender.resumeFrom(pending.resume.get(TIMEOUT, TimeUnit.SECONDS));
+
+                ByteBuffer frame;
+                while ((frame = sender.nextFrame()) != null) {
+                    if (frame.get(frame.position()) == WireCodec.FILE_CHUNK && !uploadWindow.tryAcquire()) {
+                        flush(); //What was written may be what the Server has to acknowledge
+                        if (!uploadWindow.tryAcquire(TIMEOUT, TimeUnit.SECONDS)) throw new TimeoutException();
+                    }
+                    writeFrame(frame, false);
+                }
+                flush();
+
+            } catch (Exception e) {
+                if (requests.remove(id) != null) pending.finish(false);
+            }
+            return pending;
+        }
+
+        private void writeFrame(ByteBuffer frame, boolean flush) throws IOException {
+            writeLock.lock();
+            try {
+                out.write(frame.array(), frame.arrayOffset() + frame.position(), frame.remaining());
+                if (flush) out.flush();
+            } finally {
+                writeLock.unlock();
+            }
+        }
+
+        private void flush() throws IOException {
+            writeLock.lock();
+            try {
+                out.flush();
+            } finally {
+                writeLock.unlock();
+            }
+        }
+
+        //Read what the Server sends, until the connection closes
+        private void listen() {
+            try {
+                while (true) {
+                    WireCodec.Frame frame = WireCodec.read(in);
+                    switch (frame.type) {
+                        case WireCodec.TEXT:
+                            //A chat message of ours, if it carries the time it was meant to be sent
+                            String text = frame.text();
+                            int mark = text.indexOf(": #");
+                            if (mark < 0) break;
+                            int end = text.indexOf(' ', mark + 3);
+                            long sent = Long.parseLong(text.substring(mark + 3, end < 0 ? text.length() : end));
+                            delivery.record((System.nanoTime() - sent) / 1000);
+                            break;
+
+                        case WireCodec.REPLY:
+                            WireCodec.Reader reply = new WireCodec.Reader(frame.payload);
+                            Pending pending = requests.remove(reply.varint());
+                            if (pending != null) pending.finish(reply.varint() == 0);
+                            break;
+
+                        case WireCodec.FILE_RESUME:
+                            WireCodec.Reader resume = new WireCodec.Reader(frame.payload);
+                            pending = requests.get(resume.varint());
+                            if (pending != null) pending.resume.complete(resume.varlong());
+                            break;
+
+                        case WireCodec.WINDOW:
+                            uploadWindow.release(WireCodec.readVarint(frame.payload));
+                            break;
+
+                        case WireCodec.FILE_CHUNK:
+                            WireCodec.Reader chunk = new WireCodec.Reader(frame.payload);
+                            pending = requests.get(chunk.varint());
+                            if (pending != null) pending.bytes += chunk.remaining();
+                            //Acknowledged as soon as it is read: nothing is written to disk here
+                            if (++chunksReceived % WireCodec.WINDOW_UPDATE == 0) {
+                                write(WireCodec.WINDOW, 0, WireCodec.varint(WireCodec.WINDOW_UPDATE), true);
+                            }
+                            break;
+
+                        case WireCodec.FILE_END:
+                            WireCodec.Reader status = new WireCodec.Reader(frame.payload);
+                            pending = requests.remove(status.varint());
+                            if (pending != null) pending.finish(status.varint() == 0);
+                            break;
+                    }
+                }
+            } catch (IOException e) {
+                if (!closing) System.out.println(username + " lost its connection: " + e);
+                for (Integer id : requests.keySet()) {
+                    Pending pending = requests.remove(id);
+                    if (pending != null) pending.finish(false);
+                }
+            }
+        }
+
+        @Override
+        public void close() {
+            closing = true;
+            try {
+                write(WireCodec.LOGOUT, 0, new byte[0], true);
+                socket.shutdownOutput();
+            } catch (IOException e) {
+                /* ¯\_(ツ)_/¯ */
+            }
+        }
+    }
+}
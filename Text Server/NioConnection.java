@@ -0,0 +1,332 @@
+/*
+ * COEN 317
+ * Distributed Editor
+ * Non-blocking connection used by the server's "nio" mode
+ *
+ */
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.IntUnaryOperator;
+
+public class NioConnection {
+    //Callbacks run on the connection's event loop thread
+    interface Handler {
+        void frameReceived(WireCodec.Frame frame);
+        void closed();
+
+        //Largest payload accepted in a frame of a type (see ClientSession.maxPayload)
+        int maxPayload(int type);
+
+        //The Client speaks the original serialization stream (see TextServer.BaselineClient):
+        //the connection has left the loop with its channel still open, which the handler
+        //now serves, starting with the bytes already read
+        void handedOff(byte[] unread);
+    }
+
+    private static final int BUFFER_SIZE = 8192;
+
+    //Bytes written to one connection before the loop moves on to the others
+    //(a big file transfer must not starve the rest of the loop's Clients)
+    private static final int MAX_WRITE_PER_FLUSH = 1024 * 1024;
+
+    private final SocketChannel channel;
+    private final EventLoop loop;
+    private final Handler handler;
+    private final IntUnaryOperator maxPayload;
+    private SelectionKey key;
+
+    private ByteBuffer in = ByteBuffer.allocate(BUFFER_SIZE);
+    private final OutboundQueue outbound;
+
+    //Frames drained from the queue to be written together; batch[batchStart..batchEnd)
+    //are still (partly) unwritten when the socket last filled up
+    private final ByteBuffer[] batch = new ByteBuffer[OutboundQueue.BATCH_FRAMES];
+    private int batchStart, batchEnd;
+
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    private boolean flushPending; //Waiting for the end of the loop's pass (loop thread only)
+    private volatile boolean open = true;
+    private boolean suspended; //Not reading while a frame is handled off the loop (loop thread only)
+
+    //Protocol version of the Client's frames: 0 until its first byte arrives,
+    //1 for ObjectFrames (always starts with a 0 byte), 2 for WireCodec
+    //(a serialization stream, 0xAC, is handed off instead)
+    private volatile int version;
+
+    NioConnection(SocketChannel channel, EventLoop loop, Handler handler, OutboundQueue outbound) {
+        this.channel = channel;
+        this.loop = loop;
+        this.handler = handler;
+        this.maxPayload = handler::maxPayload;
+        this.outbound = outbound;
+    }
+
+    //Called by the event loop once the channel is registered with its selector
+    void registered(SelectionKey key) {
+        this.key = key;
+        flush(); //Anything queued before registration
+    }
+
+    boolean isOpen() {
+        return open;
+    }
+
+    SocketChannel channel() {
+        return channel;
+    }
+
+    int version() {
+        return version;
+    }
+
+    OutboundQueue outbound() {
+        return outbound;
+    }
+
+    //Queue a complete frame for the Client; safe to call from any thread
+    //The frame is written by the loop, so a slow Client never holds up the sender
+    void send(ByteBuffer frame, OutboundQueue.Channel channel) {
+        if (!open) return;
+
+        if (!outbound.offer(frame, channel)) {
+            close(); //Queue overflowed with the DISCONNECT (or timed out BLOCK) policy
+            return;
+        }
+        scheduleFlush();
+    }
+
+    //Stream a file to the Client in between its other frames
+    void stream(FileSender sender) {
+        outbound.addSource(sender);
+        scheduleFlush();
+    }
+
+    //Run a task on the connection's loop thread
+    void execute(Runnable task) {
+        loop.execute(task);
+    }
+
+    //Stop reading frames, until resume(), while the one just received is handled
+    //off the loop (called on the loop thread, from the handler)
+    void suspend() {
+        suspended = true;
+        if (key != null && key.isValid()) key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+    }
+
+    //Carry on with the frames read before suspend(), then read again (loop thread only)
+    void resume() {
+        if (!open || !suspended) return;
+        suspended = false;
+
+        in.flip();
+        handleFrames();
+        if (open && !suspended && key.isValid()) key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+    }
+
+    //Frames queued on the loop thread (replies, mostly) are flushed once the loop has
+    //handled everything it read, so that they go out together; or at once if there
+    //are enough of them for a batch, so that the queue does not fill up meanwhile
+    void scheduleFlush() {
+        if (loop.inLoop()) {
+            if (outbound.size() >= OutboundQueue.BATCH_FRAMES) {
+                flush();
+            } else if (!flushPending) {
+                flushPending = true;
+                loop.flushLater(this);
+            }
+            return;
+        }
+
+        if (flushScheduled.compareAndSet(false, true)) {
+            //One pending flush task drains everything queued before it runs
+            loop.execute(() -> {
+                flushScheduled.set(false);
+                flush();
+            });
+        }
+    }
+
+    //Write what is queued now, rather than at the end of the loop's pass
+    void flushNow() {
+        if (loop.inLoop()) {
+            flush();
+        } else {
+            scheduleFlush();
+        }
+    }
+
+    //Read whatever is available and hand every complete frame to the handler
+    void read() {
+        try {
+            int n = channel.read(in);
+            if (n < 0) {
+                close();
+                return;
+            }
+        } catch (IOException e) {
+            close();
+            return;
+        }
+
+        in.flip();
+        handleFrames();
+    }
+
+    //The Client has had TextServer.BASELINE_GRACE to send something: one that has not
+    //is an original Client, waiting for the Server's stream header before it sends its own
+    void silent() {
+        if (!open || version != 0) return;
+        read(); //Unless its first bytes have only just arrived
+        if (open && version == 0) handOff(new byte[0]);
+    }
+
+    //Hand every complete frame in the (flipped) buffer to the handler, stopping early
+    //if it suspends the connection
+    private void handleFrames() {
+        if (version == 0 && in.hasRemaining()) {
+            int first = in.get(in.position()) & 0xFF;
+            if (first == TextServer.BASELINE_FIRST_BYTE) {
+                byte[] unread = new byte[in.remaining()];
+                in.get(unread);
+                handOff(unread);
+                return;
+            }
+            version = first == 0 ? 1 : WireCodec.VERSION;
+        }
+
+        try {
+            while (open && !suspended && in.hasRemaining()) {
+                int size = frameSize();
+                if (size < 0) break;
+
+                if (in.remaining() < size) {
+                    //Frame is incomplete; make sure the buffer can hold all of it
+                    if (size > in.capacity()) {
+                        ByteBuffer bigger = ByteBuffer.allocate(size);
+                        bigger.put(in);
+                        bigger.flip();
+                        in = bigger;
+                    }
+                    break;
+                }
+
+                handler.frameReceived(nextFrame());
+            }
+
+        } catch (IOException | ClassNotFoundException | RuntimeException e) {
+            close();
+        }
+
+        if (!open) return;
+        in.compact();
+
+        //Shrink back once a large frame has been consumed
+        if (in.capacity() > BUFFER_SIZE && in.position() == 0) {
+            in = ByteBuffer.allocate(BUFFER_SIZE);
+        }
+    }
+
+    //Size of the frame at the buffer's position, or -1 if not known yet
+    private int frameSize() throws IOException {
+        if (version == 1) {
+            if (in.remaining() < 4) return -1;
+
+            int length = in.getInt(in.position());
+            if (length < 0 || length > handler.maxPayload(WireCodec.FILE)) {
+                throw new StreamCorruptedException("Invalid frame length: " + length);
+            }
+            return length + 4;
+        }
+        return WireCodec.frameSize(in, maxPayload);
+    }
+
+    //Decode the complete frame at the buffer's position
+    private WireCodec.Frame nextFrame() throws IOException, ClassNotFoundException {
+        if (version == 1) {
+            byte[] body = new byte[in.getInt()];
+            in.get(body);
+            return ObjectFrames.toFrame(ObjectFrames.decode(body));
+        }
+        return WireCodec.decode(in);
+    }
+
+    //Write queued frames until the socket would block
+    //The frames queued at the time go out in one gathering write
+    void flush() {
+        flushPending = false;
+        if (!open || key == null) return;
+
+        try {
+            long written = 0;
+            while (written < MAX_WRITE_PER_FLUSH) {
+                long n;
+                FileSender region;
+                if (batchStart < batchEnd) {
+                    n = channel.write(batch, batchStart, batchEnd - batchStart);
+                    while (batchStart < batchEnd && !batch[batchStart].hasRemaining()) {
+                        batch[batchStart++] = null;
+                    }
+                } else if ((region = outbound.region()) != null) {
+                    //Chunk data goes from the file to the socket without being copied
+                    n = region.transferTo(channel);
+                    ServerMetrics.bytesTransferred.add(n);
+                } else if ((batchEnd = outbound.drain(batch, 0)) > 0) {
+                    batchStart = 0;
+                    ServerMetrics.framesWritten.add(batchEnd);
+                    continue;
+                } else {
+                    key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+                    return;
+                }
+
+                ServerMetrics.bytesWritten.add(n);
+                ServerMetrics.socketWrites.increment();
+                written += n;
+                if (n == 0) break;
+            }
+
+            //Socket buffer is full (or this Client has had its share); carry on
+            //once the selector reports the socket writable again
+            key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+
+        } catch (IOException | RuntimeException e) {
+            close(); //CancelledKeyException included
+        }
+    }
+
+    //Stop serving the channel, without closing it, and give it to the handler once it
+    //has left the selector (a channel registered with one cannot be made blocking)
+    private void handOff(byte[] unread) {
+        open = false;
+        outbound.close();
+        if (key != null) key.cancel();
+        loop.execute(() -> handler.handedOff(unread)); //On the loop's next pass, which deregisters the key
+    }
+
+    //SHUT DOWN EVERYTHING
+    void close() {
+        if (!loop.inLoop()) {
+            loop.execute(this::close);
+            return;
+        }
+
+        if (!open) return;
+        open = false;
+        outbound.close();
+        Arrays.fill(batch, null);
+        batchStart = batchEnd = 0;
+
+        if (key != null) key.cancel();
+        try {
+            channel.close();
+        } catch (IOException e) {
+            /* ¯\_(ツ)_/¯ */
+        }
+
+        handler.closed();
+    }
+}
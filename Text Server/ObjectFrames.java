@@ -0,0 +1,77 @@
+/*
+ * This class frames the objects that are exchanged between the Clients and
+ * the Server in protocol version 1. Every frame is a 4 byte length followed by
+ * one object written with its own ObjectOutputStream, so each frame can be
+ * decoded on its own (the non-blocking server cannot stop halfway through
+ * reading an object). Version 2 replaced these with WireCodec frames; the
+ * Server still accepts version 1 Clients by translating their objects.
+ */
+
+import java.io.*;
+
+public class ObjectFrames {
+    //Encode an object as a complete frame (length prefix included)
+    static byte[] encode(Object obj) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        bytes.write(new byte[4]); //Placeholder for the length
+
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(obj);
+        out.close();
+
+        byte[] frame = bytes.toByteArray();
+        int length = frame.length - 4;
+        frame[0] = (byte) (length >>> 24);
+        frame[1] = (byte) (length >>> 16);
+        frame[2] = (byte) (length >>> 8);
+        frame[3] = (byte) length;
+        return frame;
+    }
+
+    //Decode the object carried in the body of a frame (without the length prefix)
+    static Object decode(byte[] body) throws IOException, ClassNotFoundException {
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(body))) {
+            return in.readObject();
+        }
+    }
+
+    //Write one object as a frame; the frame goes out in a single write
+    //Callers sharing a stream between threads must serialize their writes
+    static void write(DataOutputStream out, Object obj) throws IOException {
+        out.write(encode(obj));
+        out.flush();
+    }
+
+    //Block until a whole frame (of no more than maxLength bytes) has been read and return its object
+    static Object read(DataInputStream in, int maxLength) throws IOException, ClassNotFoundException {
+        int length = in.readInt();
+        if (length < 0 || length > maxLength) {
+            throw new StreamCorruptedException("Invalid frame length: " + length);
+        }
+
+        byte[] body = new byte[length];
+        in.readFully(body);
+        return decode(body);
+    }
+
+    //Translate an object sent by a version 1 Client into a WireCodec frame
+    //(its first String is the username, a byte[] is the content of a file)
+    static WireCodec.Frame toFrame(Object obj) {
+        if (obj instanceof ChatMessage) {
+            ChatMessage cm = (ChatMessage) obj;
+            return new WireCodec.Frame(WireCodec.frameType(cm.getType()), 0, WireCodec.utf8(cm.getMessage()));
+        }
+        if (obj instanceof byte[]) {
+            return new WireCodec.Frame(WireCodec.FILE, 0, (byte[]) obj);
+        }
+        return new WireCodec.Frame(WireCodec.LOGIN, 0, WireCodec.utf8((String) obj));
+    }
+
+    //Translate a WireCodec frame into the object a version 1 Client expects
+    static Object toObject(int type, byte[] payload) {
+        if (type == WireCodec.FILE) {
+            return payload;
+        }
+        return new WireCodec.Frame(type, 0, payload).text();
+    }
+}
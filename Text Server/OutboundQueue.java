@@ -0,0 +1,427 @@
+/*
+ * COEN 317
+ * Distributed Editor
+ * Bounded queue of encoded frames waiting to be written to one Client
+ *
+ * The connection carries three logical channels, in order of priority:
+ * CONTROL (answers, edits, anything the Client's state depends on), CHAT and
+ * BULK (file transfers). Control frames always go first, and are never
+ * dropped. File transfers are not queued frame by frame: a FileSender is
+ * added as a source and asked for its next chunk whenever no other frame is
+ * waiting, so chat keeps flowing during a transfer and only one chunk is in
+ * memory. So that a flood of chat cannot hold transfers up for good, a waiting
+ * transfer gets a chunk in after every CHAT_BURST chat frames, and transfers
+ * take turns chunk by chunk.
+ *
+ * Chunks come out as just their header; the writer then sends the data
+ * straight from the file with region().transferTo().
+ *
+ * From protocol version 10 the BULK channel has a flow control window: no
+ * more than window() chunks are sent that the Client has not acknowledged,
+ * so file data never fills the socket's buffers ahead of the chat behind it.
+ *
+ * Once the Client has asked for compression, frames are compressed as they
+ * leave the queue, which is the order they are written in; chunks then come
+ * out whole, to be compressed like any other frame.
+ *
+ * The writer takes out everything queued at once (drain) and hands it to the
+ * socket in one gathering write, so a burst of small frames costs one system
+ * call and goes out in as few packets as TCP can manage. While one of the
+ * Client's frames is being handled the queue can be corked, as with TCP_CORK:
+ * the replies then wait for the handler to finish (or for a full batch), and go
+ * out together. A WINDOW is pushed out at once instead, as the peer's next file
+ * chunks are waiting for it.
+ */
+
+import java.io.*;
+import java.nio.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.*;
+
+public class OutboundQueue {
+    //What to do when a Client falls so far behind that its queue is full
+    enum Overflow {
+        DROP_OLDEST, //Discard the oldest queued frame to make room
+        DISCONNECT,  //Disconnect the Client
+        BLOCK;       //Make the sender wait for room (up to BLOCK_TIMEOUT, then disconnect);
+                     //not in nio mode, whose senders are the I/O loops (DISCONNECT is used instead)
+
+        static Overflow parse(String name) {
+            return valueOf(name.trim().toUpperCase().replace('-', '_'));
+        }
+    }
+
+    //Logical channels of the connection, in order of priority
+    enum Channel {
+        CONTROL, //Never dropped
+        CHAT,    //What DROP_OLDEST discards
+        BULK     //File transfers, added as sources
+    }
+
+    //Channel a frame of the given type goes on
+    static Channel channel(int frameType) {
+        switch (frameType) {
+            case WireCodec.TEXT:
+            case WireCodec.MESSAGE:
+            case WireCodec.WHOISIN:
+                return Channel.CHAT;
+            default:
+                return Channel.CONTROL;
+        }
+    }
+
+    static final long BLOCK_TIMEOUT = 5000; //Milliseconds
+
+    //Chat frames sent in a row before a waiting transfer gets a chunk in
+    static final int CHAT_BURST = 16;
+
+    //Most frames (and bytes, give or take a frame) drained for one write
+    static final int BATCH_FRAMES = 64;
+    static final int BATCH_BYTES = 64 * 1024;
+
+    private final ArrayDeque<ByteBuffer> control = new ArrayDeque<>();
+    private final ArrayDeque<ByteBuffer> chat = new ArrayDeque<>();
+    private final ArrayDeque<FileSender> sources = new ArrayDeque<>();
+    private int chatInARow; //Chat frames polled since the last chunk, while a transfer was waiting
+
+    //Chunks sent that the Client has not acknowledged yet, and how many it may have (0: no limit)
+    private int inFlight, window;
+
+    private final int capacity;
+    private final Overflow overflow;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+    private boolean closed;
+    private boolean corked; //take() waits for a full batch
+    private boolean pushed; //take() returns what is queued, corked or not
+    private long dropped;
+
+    //Transfer whose chunk data follows the last frame polled (only used by the writer)
+    private FileSender region;
+
+    private volatile FrameCompression compression; //Once the Client has asked for it
+
+    OutboundQueue(int capacity, Overflow overflow) {
+        this.capacity = capacity;
+        this.overflow = overflow;
+    }
+
+    //Queue a frame for the Client's writer
+    //Returns false if the queue is closed and the Client should be disconnected
+    boolean offer(ByteBuffer frame, Channel channel) {
+        return offer(frame, channel, true);
+    }
+
+    //Queue a frame without waiting for room, for a sender holding a lock that others
+    //wait on: with the BLOCK policy a full queue disconnects the Client at once
+    boolean offerNow(ByteBuffer frame, Channel channel) {
+        return offer(frame, channel, false);
+    }
+
+    private boolean offer(ByteBuffer frame, Channel channel, boolean wait) {
+        lock.lock();
+        try {
+            if (closed) return false;
+
+            if (queued() >= capacity) {
+                switch (overflow) {
+                    case DROP_OLDEST:
+                        if (!chat.isEmpty()) {
+                            chat.poll();
+                            dropped++;
+                            ServerMetrics.framesDropped.increment();
+                            break;
+                        }
+                        //Nothing left to drop but frames that must not be: the Client is too far behind
+                        closed = true;
+                        notEmpty.signalAll();
+                        return false;
+
+                    case DISCONNECT:
+                        closed = true;
+                        notEmpty.signalAll();
+                        return false;
+
+                    case BLOCK:
+                        long nanos = wait ? TimeUnit.MILLISECONDS.toNanos(BLOCK_TIMEOUT) : 0;
+                        while (queued() >= capacity && !closed && nanos > 0) {
+                            nanos = notFull.awaitNanos(nanos);
+                        }
+                        if (closed || queued() >= capacity) {
+                            closed = true;
+                            notEmpty.signalAll();
+                            return false;
+                        }
+                        break;
+                }
+            }
+
+            (channel == Channel.CHAT ? chat : control).add(frame);
+            notEmpty.signal();
+            return true;
+
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    //Stream a file after (and between) the queued frames
+    //File frames are never dropped, whatever the overflow policy
+    void addSource(FileSender source) {
+        lock.lock();
+        try {
+            ServerMetrics.downloadsStarted.increment();
+            if (closed) {
+                source.close();
+                ServerMetrics.downloadsFailed.increment();
+                return;
+            }
+            sources.add(source);
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    //Hold frames back from take() until uncork(), unless a full batch builds up
+    void cork() {
+        lock.lock();
+        try {
+            corked = true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    //Let the writer take what is queued now even if corked (a WINDOW the peer is waiting for)
+    void push() {
+        lock.lock();
+        try {
+            pushed = true;
+            if (queued() > 0) notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void uncork() {
+        lock.lock();
+        try {
+            corked = false;
+            if (queued() > 0) notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    //Compress the frames polled from now on
+    void compress(FrameCompression compression) {
+        this.compression = compression;
+    }
+
+    //Whether the Client has asked for compression, and may be sent compressed frames
+    boolean compressing() {
+        return compression != null;
+    }
+
+    //Limit the chunks sent that the Client has not acknowledged (protocol version 10)
+    void window(int chunks) {
+        lock.lock();
+        try {
+            window = chunks;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    //The Client has written chunks to disk (WINDOW frame): room for as many more
+    void acknowledged(int chunks) {
+        lock.lock();
+        try {
+            inFlight = Math.max(inFlight - chunks, 0);
+            if (bulkReady()) notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    //Next frame, or null if there is none (or only transfers that must wait for the window)
+    ByteBuffer poll() {
+        ByteBuffer frame;
+        FileSender source = null;
+        lock.lock();
+        try {
+            frame = control.poll();
+            if (frame == null && !(chatInARow >= CHAT_BURST && bulkReady())) {
+                frame = chat.poll();
+                if (frame != null) chatInARow = bulkReady() ? chatInARow + 1 : 0;
+            }
+
+            if (frame != null) {
+                notFull.signal();
+            } else {
+                chatInARow = 0;
+                if (!bulkReady()) return null;
+                source = sources.poll();
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        return frame != null ? compressed(frame) : nextChunk(source);
+    }
+
+    private ByteBuffer compressed(ByteBuffer frame) {
+        FrameCompression compression = this.compression;
+        if (compression == null) return frame;
+
+        ByteBuffer compressed = compression.compress(frame);
+        if (compressed != frame) {
+            ServerMetrics.bytesBeforeCompression.add(frame.remaining());
+            ServerMetrics.bytesAfterCompression.add(compressed.remaining());
+        }
+        return compressed;
+    }
+
+    //Wait for the next frame; returns null once the queue is closed
+    ByteBuffer take() throws InterruptedException {
+        while (true) {
+            lock.lock();
+            try {
+                while (!closed && !bulkReady()
+                        && (queued() == 0 || corked && !pushed && queued() < BATCH_FRAMES)) {
+                    notEmpty.await();
+                }
+                pushed = false;
+                if (closed && queued() == 0) return null;
+            } finally {
+                lock.unlock();
+            }
+
+            //A transfer that just finished yields nothing; wait again
+            ByteBuffer frame = poll();
+            if (frame != null) return frame;
+        }
+    }
+
+    //Poll frames into batch from index from on, to be written together; stops early
+    //at BATCH_BYTES, or at a chunk header whose data must follow it (see region())
+    //Returns the number of frames the batch then holds
+    int drain(ByteBuffer[] batch, int from) {
+        int n = from;
+        long bytes = 0;
+        for (int i = 0; i < from; i++) {
+            bytes += batch[i].remaining();
+        }
+
+        while (n < batch.length && bytes < BATCH_BYTES && region() == null) {
+            ByteBuffer frame = poll();
+            if (frame == null) break;
+            batch[n++] = frame;
+            bytes += frame.remaining();
+        }
+        return n;
+    }
+
+    //File data the writer must send (with transferTo) before the next frame, or null
+    FileSender region() {
+        if (region != null && !region.hasRegion()) region = null;
+        return region;
+    }
+
+    //Next frame of a file transfer (outside the lock, since it may touch the disk)
+    //and put the transfer back at the end of the line
+    private ByteBuffer nextChunk(FileSender source) {
+        boolean whole = compression != null;
+        ByteBuffer frame = whole ? source.nextFrame() : source.nextHeader();
+        if (!whole) region = source;
+        if (frame == null) {
+            source.close();
+            return poll();
+        }
+        count(frame);
+
+        lock.lock();
+        try {
+            if (frame.get(frame.position()) == WireCodec.FILE_CHUNK) inFlight++;
+            if (closed) {
+                source.close();
+                ServerMetrics.downloadsFailed.increment();
+            } else {
+                sources.add(source);
+            }
+        } finally {
+            lock.unlock();
+        }
+        return whole ? compressed(frame) : frame;
+    }
+
+    //Count a frame of a transfer in the metrics: the bytes of its chunks, and how it ended
+    private static void count(ByteBuffer frame) {
+        int type = frame.get(frame.position());
+        if (type == WireCodec.FILE_CHUNK) {
+            try {
+                ServerMetrics.bytesDownloaded.add(WireCodec.frameSize(frame)); //Data included, even if it follows the header
+            } catch (IOException e) { /* ¯\_(ツ)_/¯ */ }
+
+        } else if (type == WireCodec.FILE_END) {
+            WireCodec.Reader end = new WireCodec.Reader(WireCodec.decode(frame.duplicate()).payload);
+            end.varint(); //Transfer id
+            (end.varint() == 0 ? ServerMetrics.downloadsCompleted : ServerMetrics.downloadsFailed).increment();
+        }
+    }
+
+    //A transfer is waiting and the window has room for its next chunk (with the lock held)
+    private boolean bulkReady() {
+        return !sources.isEmpty() && (window == 0 || inFlight < window);
+    }
+
+    //Frames queued on the CONTROL and CHAT channels (with the lock held)
+    private int queued() {
+        return control.size() + chat.size();
+    }
+
+    int size() {
+        lock.lock();
+        try {
+            return queued();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    //Frames discarded by DROP_OLDEST
+    long dropped() {
+        lock.lock();
+        try {
+            return dropped;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    //Stop accepting frames and wake up anyone waiting on the queue
+    void close() {
+        lock.lock();
+        try {
+            closed = true;
+            control.clear();
+            chat.clear();
+            for (FileSender source : sources) {
+                source.close();
+            }
+            ServerMetrics.downloadsFailed.add(sources.size());
+            sources.clear();
+            notEmpty.signalAll();
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,417 @@
+/*
+ * COEN 317
+ * Distributed Editor
+ * Counters describing the server's traffic
+ *
+ * The counters are updated where the traffic happens; sample() turns a few of
+ * them into rates once a second. All of it can be read over JMX (the MBean
+ * TextServer:type=ServerMetrics, see ServerMetricsMBean) and, with
+ * --metrics=<port>, scraped as text from http://localhost:<port>/metrics in the
+ * format Prometheus reads.
+ */
+
+import com.sun.net.httpserver.*;
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+import javax.management.*;
+
+public class ServerMetrics implements ServerMetricsMBean {
+    //Frames read from Clients, and their bytes as they came off the network
+    static final LongAdder framesRead = new LongAdder();
+    static final LongAdder bytesRead = new LongAdder();
+
+    //Messages received from Clients (chat and commands), and the copies of chat messages queued for recipients
+    static final LongAdder messagesReceived = new LongAdder();
+    static final LongAdder messagesSent = new LongAdder();
+
+    //Bytes of frames encoded (a broadcast is encoded once for all its recipients)
+    static final LongAdder bytesEncoded = new LongAdder();
+
+    //Bytes actually written to Client sockets
+    static final LongAdder bytesWritten = new LongAdder();
+
+    //Frames written, and the socket writes it took (frames queued together share a gathering write)
+    static final LongAdder framesWritten = new LongAdder();
+    static final LongAdder socketWrites = new LongAdder();
+
+    //Part of bytesWritten sent straight from files with transferTo
+    static final LongAdder bytesTransferred = new LongAdder();
+
+    static final LongAdder broadcasts = new LongAdder();
+
+    //Time a broadcast takes to reach every recipient's queue (microseconds)
+    static final Histogram broadcastMicros = new Histogram(60_000_000);
+
+    //Chat frames discarded because a Client's queue was full (DROP_OLDEST)
+    static final LongAdder framesDropped = new LongAdder();
+
+    //Files received from Clients and sent to them, and the bytes of their chunks
+    static final LongAdder uploadsCompleted = new LongAdder();
+    static final LongAdder uploadsFailed = new LongAdder();
+    static final LongAdder bytesUploaded = new LongAdder();
+    static final LongAdder downloadsStarted = new LongAdder();
+    static final LongAdder downloadsCompleted = new LongAdder();
+    static final LongAdder downloadsFailed = new LongAdder();
+    static final LongAdder bytesDownloaded = new LongAdder();
+
+    //Uploads skipped because the file store already had their content
+    static final LongAdder uploadsDeduplicated = new LongAdder();
+    static final LongAdder bytesDeduplicated = new LongAdder();
+
+    //Uploads sent as changes to the version already stored, and the bytes they took from it
+    static final LongAdder uploadsDelta = new LongAdder();
+    static final LongAdder bytesDeltaCopied = new LongAdder();
+
+    //Frames compressed for Clients that asked for it: their size before and after
+    static final LongAdder bytesBeforeCompression = new LongAdder();
+    static final LongAdder bytesAfterCompression = new LongAdder();
+
+    //File contents served from the FileCache, read into it, and dropped from it to make room
+    static final LongAdder cacheHits = new LongAdder();
+    static final LongAdder cacheMisses = new LongAdder();
+    static final LongAdder cacheEvictions = new LongAdder();
+
+    //Edits applied to shared documents (each one relayed to every other editor)
+    static final LongAdder editsApplied = new LongAdder();
+
+    //Rates over the last RATE_WINDOW seconds, kept up to date by sample()
+    private static final int RATE_WINDOW = 10;
+    static final Rate messagesReceivedRate = new Rate(messagesReceived);
+    static final Rate messagesSentRate = new Rate(messagesSent);
+    static final Rate bytesReadRate = new Rate(bytesRead);
+    static final Rate bytesWrittenRate = new Rate(bytesWritten);
+    static final Rate bytesUploadedRate = new Rate(bytesUploaded);
+    static final Rate bytesDownloadedRate = new Rate(bytesDownloaded);
+    private static final Rate[] RATES = {
+        messagesReceivedRate, messagesSentRate, bytesReadRate, bytesWrittenRate, bytesUploadedRate, bytesDownloadedRate
+    };
+
+    //Per second rate of a counter, from the samples of the last RATE_WINDOW seconds
+    static class Rate {
+        private final LongAdder counter;
+        private final long[] values = new long[RATE_WINDOW + 1];
+        private final long[] times = new long[RATE_WINDOW + 1];
+        private int samples;
+        private volatile double perSecond;
+
+        Rate(LongAdder counter) {
+            this.counter = counter;
+        }
+
+        //Only called by the one thread running sample()
+        private void sample(long now) {
+            int i = samples++ % values.length;
+            values[i] = counter.sum();
+            times[i] = now;
+
+            int oldest = samples <= values.length ? 0 : samples % values.length;
+            long elapsed = now - times[oldest];
+            perSecond = elapsed <= 0 ? 0 : (values[i] - values[oldest]) * 1e9 / elapsed;
+        }
+
+        double perSecond() {
+            return perSecond;
+        }
+    }
+
+    //Take a sample of the counters for their rates; call once a second
+    static void sample() {
+        long now = System.nanoTime();
+        for (Rate rate : RATES) {
+            rate.sample(now);
+        }
+    }
+
+    //One line summary for the server console
+    static String report() {
+        long encoded = bytesEncoded.sum();
+        long written = bytesWritten.sum();
+        long transferred = bytesTransferred.sum();
+        return TextServer.clients().size() + " clients, "
+                + String.format("%.1f messages/s in, %.1f out, %.0f bytes/s in, %.0f out, ",
+                        messagesReceivedRate.perSecond(), messagesSentRate.perSecond(),
+                        bytesReadRate.perSecond(), bytesWrittenRate.perSecond())
+                + broadcasts.sum() + " broadcasts (p99 " + broadcastMicros.percentile(99) + " us to queue), " + encoded + " bytes encoded, " + written + " bytes written"
+                + (encoded == 0 ? "" : String.format(" (%.1f bytes written per byte encoded)", (double) (written - transferred) / encoded))
+                + ", " + framesWritten.sum() + " frames in " + socketWrites.sum() + " socket writes, "
+                + transferred + " file bytes sent zero-copy, "
+                + uploadsCompleted.sum() + " uploads (" + uploadsFailed.sum() + " failed), "
+                + downloadsCompleted.sum() + " downloads (" + downloadsFailed.sum() + " failed), "
+                + uploadsDeduplicated.sum() + " duplicate uploads skipped (" + bytesDeduplicated.sum() + " bytes), "
+                + uploadsDelta.sum() + " delta uploads (" + bytesDeltaCopied.sum() + " bytes reused), "
+                + bytesBeforeCompression.sum() + " bytes compressed to " + bytesAfterCompression.sum() + ", "
+                + "file cache " + cacheHits.sum() + " hits / " + cacheMisses.sum() + " misses / "
+                + cacheEvictions.sum() + " evictions, "
+                + editsApplied.sum() + " shared edits";
+    }
+
+    //Frames waiting in the connected Clients' outbound queues: in all of them, and in the fullest
+    //(/metrics has no series per Client: usernames come and go, and a series once scraped never goes away)
+    static int[] queueDepths() {
+        int total = 0, max = 0;
+        for (int depth : queueDepthsByClient().values()) {
+            total += depth;
+            max = Math.max(max, depth);
+        }
+        return new int[] {total, max};
+    }
+
+    //Frames waiting in each connected Client's outbound queue, by username
+    static Map<String, Integer> queueDepthsByClient() {
+        Map<String, Integer> depths = new TreeMap<>();
+        for (TextServer.ClientSession client : TextServer.clients()) {
+            OutboundQueue queue = client.outbound();
+            if (client.username != null && queue != null) depths.put(client.username, queue.size());
+        }
+        return depths;
+    }
+
+    //Publish the metrics over JMX, as TextServer:type=ServerMetrics
+    static void register() throws JMException {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName("TextServer:type=ServerMetrics");
+        if (!server.isRegistered(name)) server.registerMBean(new ServerMetrics(), name);
+    }
+
+    //Serve the metrics as text on http://localhost:<port>/metrics
+    //Only on the loopback address: anyone who should see them can reach it through ssh
+    static HttpServer serve(int port) throws IOException {
+        HttpServer http = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        http.createContext("/metrics", exchange -> {
+            try {
+                byte[] body = scrape().getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+                exchange.sendResponseHeaders(200, body.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(body);
+                }
+            } finally {
+                exchange.close();
+            }
+        });
+        http.setExecutor(null); //Requests are handled on the server's own thread, one at a time
+        http.start();
+        return http;
+    }
+
+    //All of the metrics, in the Prometheus text format
+    static String scrape() {
+        StringBuilder text = new StringBuilder(4096);
+        int[] depths = queueDepths();
+
+        gauge(text, "clients", "Clients connected", TextServer.clients().size());
+        counter(text, "frames_read_total", "Frames read from Clients", framesRead.sum());
+        counter(text, "frames_written_total", "Frames written to Clients", framesWritten.sum());
+        counter(text, "socket_writes_total", "Socket writes the frames written took", socketWrites.sum());
+        counter(text, "bytes_read_total", "Bytes read from Clients", bytesRead.sum());
+        counter(text, "bytes_written_total", "Bytes written to Clients", bytesWritten.sum());
+        gauge(text, "bytes_read_per_second", "Bytes read from Clients per second", bytesReadRate.perSecond());
+        gauge(text, "bytes_written_per_second", "Bytes written to Clients per second", bytesWrittenRate.perSecond());
+        counter(text, "bytes_encoded_total", "Bytes of frames encoded", bytesEncoded.sum());
+        counter(text, "messages_received_total", "Messages received from Clients", messagesReceived.sum());
+        counter(text, "messages_sent_total", "Chat messages queued for recipients", messagesSent.sum());
+        gauge(text, "messages_received_per_second", "Messages received from Clients per second", messagesReceivedRate.perSecond());
+        gauge(text, "messages_sent_per_second", "Chat messages queued for recipients per second", messagesSentRate.perSecond());
+        counter(text, "broadcasts_total", "Chat messages broadcast", broadcasts.sum());
+
+        text.append("# HELP textserver_broadcast_fanout_microseconds Time a broadcast takes to reach every recipient's queue\n")
+            .append("# TYPE textserver_broadcast_fanout_microseconds summary\n");
+        for (String quantile : new String[] {"0.5", "0.99", "0.999"}) {
+            text.append("textserver_broadcast_fanout_microseconds{quantile=\"").append(quantile).append("\"} ")
+                .append(broadcastMicros.percentile(Double.parseDouble(quantile) * 100)).append('\n');
+        }
+        text.append("textserver_broadcast_fanout_microseconds_sum ").append(broadcastMicros.sum()).append('\n')
+            .append("textserver_broadcast_fanout_microseconds_count ").append(broadcastMicros.count()).append('\n');
+
+        gauge(text, "outbound_queue_depth", "Frames waiting in all of the Clients' outbound queues", depths[0]);
+        gauge(text, "outbound_queue_depth_max", "Frames waiting in the fullest outbound queue", depths[1]);
+        counter(text, "frames_dropped_total", "Chat frames dropped from full outbound queues", framesDropped.sum());
+
+        counter(text, "uploads_completed_total", "Files received from Clients", uploadsCompleted.sum());
+        counter(text, "uploads_failed_total", "Files Clients failed to upload", uploadsFailed.sum());
+        counter(text, "uploads_deduplicated_total", "Uploads skipped because the store had their content", uploadsDeduplicated.sum());
+        counter(text, "uploads_delta_total", "Uploads sent as changes to the stored version", uploadsDelta.sum());
+        counter(text, "bytes_uploaded_total", "Bytes of file chunks received", bytesUploaded.sum());
+        gauge(text, "bytes_uploaded_per_second", "Bytes of file chunks received per second", bytesUploadedRate.perSecond());
+        counter(text, "bytes_deduplicated_total", "Bytes of uploads skipped", bytesDeduplicated.sum());
+        counter(text, "bytes_delta_copied_total", "Bytes of delta uploads taken from the stored version", bytesDeltaCopied.sum());
+        counter(text, "downloads_started_total", "File transfers to Clients started", downloadsStarted.sum());
+        counter(text, "downloads_completed_total", "File transfers to Clients completed", downloadsCompleted.sum());
+        counter(text, "downloads_failed_total", "File transfers to Clients that failed or were cut short", downloadsFailed.sum());
+        counter(text, "bytes_downloaded_total", "Bytes of file chunks sent", bytesDownloaded.sum());
+        gauge(text, "bytes_downloaded_per_second", "Bytes of file chunks sent per second", bytesDownloadedRate.perSecond());
+        counter(text, "bytes_transferred_total", "Bytes sent straight from files with transferTo", bytesTransferred.sum());
+
+        counter(text, "bytes_before_compression_total", "Bytes of frames compressed, before", bytesBeforeCompression.sum());
+        counter(text, "bytes_after_compression_total", "Bytes of frames compressed, after", bytesAfterCompression.sum());
+        counter(text, "cache_hits_total", "Files served from the cache", cacheHits.sum());
+        counter(text, "cache_misses_total", "Files read into the cache", cacheMisses.sum());
+        counter(text, "cache_evictions_total", "Files dropped from the cache", cacheEvictions.sum());
+        counter(text, "edits_applied_total", "Edits applied to shared documents", editsApplied.sum());
+        return text.toString();
+    }
+
+    private static void counter(StringBuilder text, String name, String help, long value) {
+        metric(text, name, help, "counter").append(value).append('\n');
+    }
+
+    private static void gauge(StringBuilder text, String name, String help, long value) {
+        metric(text, name, help, "gauge").append(value).append('\n');
+    }
+
+    private static void gauge(StringBuilder text, String name, String help, double value) {
+        metric(text, name, help, "gauge").append(String.format("%.3f", value)).append('\n');
+    }
+
+    private static StringBuilder metric(StringBuilder text, String name, String help, String type) {
+        return text.append("# HELP textserver_").append(name).append(' ').append(help).append('\n')
+            .append("# TYPE textserver_").append(name).append(' ').append(type).append('\n')
+            .append("textserver_").append(name).append(' ');
+    }
+
+    //ServerMetricsMBean
+
+    @Override
+    public int getClients() {
+        return TextServer.clients().size();
+    }
+
+    @Override
+    public long getFramesRead() {
+        return framesRead.sum();
+    }
+
+    @Override
+    public long getFramesWritten() {
+        return framesWritten.sum();
+    }
+
+    @Override
+    public long getBytesRead() {
+        return bytesRead.sum();
+    }
+
+    @Override
+    public long getBytesWritten() {
+        return bytesWritten.sum();
+    }
+
+    @Override
+    public double getBytesReadPerSecond() {
+        return bytesReadRate.perSecond();
+    }
+
+    @Override
+    public double getBytesWrittenPerSecond() {
+        return bytesWrittenRate.perSecond();
+    }
+
+    @Override
+    public long getMessagesReceived() {
+        return messagesReceived.sum();
+    }
+
+    @Override
+    public long getMessagesSent() {
+        return messagesSent.sum();
+    }
+
+    @Override
+    public double getMessagesReceivedPerSecond() {
+        return messagesReceivedRate.perSecond();
+    }
+
+    @Override
+    public double getMessagesSentPerSecond() {
+        return messagesSentRate.perSecond();
+    }
+
+    @Override
+    public long getBroadcasts() {
+        return broadcasts.sum();
+    }
+
+    @Override
+    public double getBroadcastMeanMicros() {
+        return broadcastMicros.mean();
+    }
+
+    @Override
+    public long getBroadcastP99Micros() {
+        return broadcastMicros.percentile(99);
+    }
+
+    @Override
+    public long getBroadcastMaxMicros() {
+        return broadcastMicros.max();
+    }
+
+    @Override
+    public Map<String, Integer> getQueueDepths() {
+        return queueDepthsByClient();
+    }
+
+    @Override
+    public int getQueueDepth() {
+        return queueDepths()[0];
+    }
+
+    @Override
+    public int getQueueDepthMax() {
+        return queueDepths()[1];
+    }
+
+    @Override
+    public long getFramesDropped() {
+        return framesDropped.sum();
+    }
+
+    @Override
+    public long getUploadsCompleted() {
+        return uploadsCompleted.sum();
+    }
+
+    @Override
+    public long getUploadsFailed() {
+        return uploadsFailed.sum();
+    }
+
+    @Override
+    public long getBytesUploaded() {
+        return bytesUploaded.sum();
+    }
+
+    @Override
+    public double getBytesUploadedPerSecond() {
+        return bytesUploadedRate.perSecond();
+    }
+
+    @Override
+    public long getDownloadsCompleted() {
+        return downloadsCompleted.sum();
+    }
+
+    @Override
+    public long getDownloadsFailed() {
+        return downloadsFailed.sum();
+    }
+
+    @Override
+    public long getBytesDownloaded() {
+        return bytesDownloaded.sum();
+    }
+
+    @Override
+    public double getBytesDownloadedPerSecond() {
+        return bytesDownloadedRate.perSecond();
+    }
+
+    @Override
+    public String getReport() {
+        return report();
+    }
+}
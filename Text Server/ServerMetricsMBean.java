@@ -0,0 +1,51 @@
+/*
+ * COEN 317
+ * Distributed Editor
+ * The server's metrics as JMX shows them (jconsole, VisualVM...): attributes of
+ * the MBean TextServer:type=ServerMetrics (see ServerMetrics)
+ *
+ * Rates are per second, over the last 10 seconds.
+ */
+
+import java.util.Map;
+
+public interface ServerMetricsMBean {
+    int getClients();
+
+    long getFramesRead();
+    long getFramesWritten();
+    long getBytesRead();
+    long getBytesWritten();
+    double getBytesReadPerSecond();
+    double getBytesWrittenPerSecond();
+
+    long getMessagesReceived();
+    long getMessagesSent();
+    double getMessagesReceivedPerSecond();
+    double getMessagesSentPerSecond();
+
+    //Time a broadcast takes to reach every recipient's queue
+    long getBroadcasts();
+    double getBroadcastMeanMicros();
+    long getBroadcastP99Micros();
+    long getBroadcastMaxMicros();
+
+    //Frames waiting in the Clients' outbound queues: in each, by username, in all of
+    //them, and in the fullest
+    Map<String, Integer> getQueueDepths();
+    int getQueueDepth();
+    int getQueueDepthMax();
+    long getFramesDropped();
+
+    long getUploadsCompleted();
+    long getUploadsFailed();
+    long getBytesUploaded();
+    double getBytesUploadedPerSecond();
+    long getDownloadsCompleted();
+    long getDownloadsFailed();
+    long getBytesDownloaded();
+    double getBytesDownloadedPerSecond();
+
+    //The summary printed on the console
+    String getReport();
+}
@@ -0,0 +1,204 @@
+/*
+ * COEN 317
+ * Distributed Editor
+ * A file in the BlobStore being edited by several Clients at once (protocol version 6)
+ *
+ * The Server keeps the text and puts the batches of edits in one order (it is
+ * the sequencer). Every batch makes a new revision: the other editors get the
+ * batch relayed (encoded once for all of them), and its sender only gets the
+ * new revision back. So a keystroke costs a frame the size of the keystroke,
+ * not of the document.
+ *
+ * A batch says which revision it was made on. If others came in since, it is
+ * transformed against them (EditOp.transform) before being applied, so
+ * concurrent edits merge instead of being lost or sending their editor back to
+ * the start. An editor keeps one batch on the way at a time (see
+ * SharedSession), so those in between are never its own. The batches of the
+ * last MAX_HISTORY revisions are kept for this; one made on an older revision
+ * gets its editor a fresh copy of the text instead.
+ *
+ * The text goes back to the store every so often while it is being edited,
+ * and once the last editor has left. Files are taken to be UTF-8.
+ */
+
+import java.io.*;
+import java.nio.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.locks.*;
+
+public class SharedDocument {
+    static final int MAX_HISTORY = 4096;
+
+    final int id;
+    final String owner, name;
+
+    private final StringBuilder text;
+    private long revision;
+    private boolean dirty; //Edited since the last snapshot
+
+    //Batches as applied: history.get(i) made revision historyStart + i + 1
+    private final ArrayList<List<EditOp>> history = new ArrayList<>();
+    private long historyStart;
+
+    private final List<TextServer.ClientSession> editors = new ArrayList<>();
+
+    //A ReentrantLock rather than synchronized, so that virtual threads do not pin their carrier
+    private final ReentrantLock lock = new ReentrantLock();
+    private final ReentrantLock snapshotLock = new ReentrantLock(); //Keeps snapshots in order
+
+    SharedDocument(int id, String owner, String name, Path file) throws IOException {
+        this.id = id;
+        this.owner = owner;
+        this.name = name;
+
+        //The same line endings the editor uses, so that offsets agree
+        String content = new String(Files.readAllBytes(file), StandardCharsets.UTF_8);
+        text = new StringBuilder(content.replace("\r\n", "\n").replace('\r', '\n'));
+    }
+
+    String path() {
+        return owner + "/" + name;
+    }
+
+    //Add an editor, and send it the text to start from
+    void join(TextServer.ClientSession editor) {
+        lock.lock();
+        try {
+            if (!editors.contains(editor)) editors.add(editor);
+            sendText(editor);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    //Remove an editor; returns true if it was the last one
+    boolean leave(TextServer.ClientSession editor) {
+        lock.lock();
+        try {
+            editors.remove(editor);
+            return editors.isEmpty();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    //Whether the document can be let go: nobody is editing it, and its text is in the
+    //store (false while a snapshot is being taken: whoever takes it checks again)
+    boolean saved() {
+        if (!snapshotLock.tryLock()) return false;
+        try {
+            lock.lock();
+            try {
+                return editors.isEmpty() && !dirty;
+            } finally {
+                lock.unlock();
+            }
+        } finally {
+            snapshotLock.unlock();
+        }
+    }
+
+    //Send the whole text at its revision (EDIT_OPEN answer), e.g. to an editor whose edits no longer fit
+    void sendText(TextServer.ClientSession editor) {
+        lock.lock();
+        try {
+            relay(editor, WireCodec.EDIT_OPEN, new WireCodec.Writer().varint(id).varlong(revision)
+                    .text(text.toString()).toByteArray());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    //Apply a batch of edits one editor made on revision base, and pass it on to the others
+    //Returns false (and changes nothing) if the edits do not fit the text
+    boolean apply(TextServer.ClientSession from, long base, List<EditOp> ops) {
+        lock.lock();
+        try {
+            if (base > revision || base < historyStart) return false;
+            for (long r = base; r < revision; r++) {
+                ops = EditOp.transform(ops, history.get((int) (r - historyStart)))[0];
+            }
+            if (!EditOp.apply(ops, text)) return false;
+
+            if (ops.isEmpty()) {
+                //Nothing left of it (say, deleting what someone else just deleted)
+                relay(from, WireCodec.EDIT, EditOp.encode(id, revision, ops));
+                return true;
+            }
+            revision++;
+            dirty = true;
+            ServerMetrics.editsApplied.add(ops.size());
+
+            history.add(ops);
+            if (history.size() > 2 * MAX_HISTORY) {
+                history.subList(0, MAX_HISTORY).clear();
+                historyStart += MAX_HISTORY;
+            }
+
+            //Sent while holding the lock, so every editor gets the batches in the same order
+            ByteBuffer relay = null;
+            for (TextServer.ClientSession editor : editors) {
+                if (editor == from) {
+                    relay(editor, WireCodec.EDIT, EditOp.encode(id, revision, Collections.emptyList()));
+                    continue;
+                }
+
+                if (relay == null) {
+                    byte[] frame = WireCodec.encode(WireCodec.EDIT, 0, EditOp.encode(id, revision, ops));
+                    ServerMetrics.bytesEncoded.add(frame.length);
+                    relay = ByteBuffer.wrap(frame).asReadOnlyBuffer();
+                }
+                editor.relayFrame(relay.duplicate(), OutboundQueue.Channel.CONTROL);
+            }
+            return true;
+
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    //Queue a frame for an editor (with the lock held), without waiting for room in its
+    //queue: one editor slow to read must not hold up every other editor of the document,
+    //so its queue's overflow policy deals with it at once (see OutboundQueue.offerNow)
+    private static void relay(TextServer.ClientSession editor, int type, byte[] payload) {
+        byte[] frame = WireCodec.encode(type, 0, payload);
+        ServerMetrics.bytesEncoded.add(frame.length);
+        editor.relayFrame(ByteBuffer.wrap(frame), OutboundQueue.channel(type));
+    }
+
+    //Write the text back to the store, if it changed since the last time
+    //(unless the owner has logged out, which deleted their files)
+    void snapshot(BlobStore store) throws IOException {
+        snapshotLock.lock();
+        try {
+            String content;
+            lock.lock();
+            try {
+                if (!dirty) return;
+                content = text.toString();
+                dirty = false;
+            } finally {
+                lock.unlock();
+            }
+
+            if (store.find(path()) != null) {
+                try {
+                    store.add(owner, name, WireCodec.utf8(content));
+                } catch (IOException e) {
+                    lock.lock();
+                    try {
+                        dirty = true; //Try again next time
+                    } finally {
+                        lock.unlock();
+                    }
+                    throw e;
+                }
+            }
+
+        } finally {
+            snapshotLock.unlock();
+        }
+    }
+}
@@ -7,70 +7,350 @@
 
 import java.io.*;
 import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
 import java.nio.file.*;
 import java.util.*;
-import java.text.SimpleDateFormat;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
+import javax.management.JMException;
 
 public class TextServer {
     private static int uniqueID;
     
     private static ServerSocket serverSocket;
     private static int port;
+    private static String mode = "threads"; //"threads", "virtual" (one thread per client) or "nio"
+
+    //Per-client outbound queue: capacity in frames, and what to do when it fills up
+    private static int queueSize = 1024;
+    private static OutboundQueue.Overflow overflow = OutboundQueue.Overflow.DROP_OLDEST;
+
+    //File chunks sent to a Client that it has not acknowledged yet (protocol version 10):
+    //a transfer goes no faster than this much per round trip
+    private static int window = WireCodec.WINDOW_CHUNKS;
+
+    //Seconds between traffic reports on the console (0 = never)
+    private static int statsInterval = 60;
+
+    //Local port serving the metrics as text for scraping (0 = none; see ServerMetrics)
+    private static int metricsPort;
+
+    //Uploads that have not finished yet, named after their content ("[CRC32C]-[size].part")
+    //so that a Client can resume one after reconnecting, whatever its username is now
+    private static final Path PARTIAL = Paths.get(".partial");
+    private static final long PARTIAL_EXPIRY = 24 * 60 * 60 * 1000; //Milliseconds
+    private static final Set<Path> partialsInUse = ConcurrentHashMap.newKeySet();
+
+    //Every user's files, each distinct content stored once
+    private static final Path BLOBS = Paths.get(".blobs");
+    private static BlobStore store;
+
+    //Files being edited together, by path ("[username]/[file name]"), and how often
+    //their text is written back to the store (seconds)
+    //sharedLock guards the map only: files are read and saved without it
+    private static final Map<String, SharedDocument> sharedDocuments = new HashMap<>();
+    private static final ReentrantLock sharedLock = new ReentrantLock();
+    private static final AtomicInteger nextDocumentId = new AtomicInteger();
+    private static final int SNAPSHOT_INTERVAL = 10;
+
+    //Whether frames are compressed for Clients that ask for it (protocol version 8)
+    private static boolean compress = true;
+    private static final FrameCompression sharedCompression = new FrameCompression(); //For broadcasts
+    private static final ReentrantLock sharedCompressionLock = new ReentrantLock();
+
+    //Largest frame payloads accepted from a Client (see ClientSession.maxPayload): before
+    //it logs in, after, and (megabytes) in frames that carry a whole file or pasted text
+    private static final int MAX_LOGIN_PAYLOAD = 4096;
+    private static final int MAX_PAYLOAD = WireCodec.CHUNK_SIZE + 4096;
+    private static int maxFrameSize = 64;
+
+    //Recently requested files kept in memory (megabytes; 0 = no cache)
+    private static int cacheSize = 64;
+    private static FileCache cache;
+
+    //Broadcast frames at least this big are copied once into a direct buffer, which
+    //every recipient's channel write then uses as is (smaller heap frames are cheaper to
+    //copy than a direct buffer is to allocate)
+    private static final int DIRECT_BROADCAST = 4096;
+
+    //Clients of the original protocol, which wrote Java objects to an ObjectOutputStream,
+    //are told apart from the rest by their first byte (a serialization stream starts
+    //0xACED), or, since they wait for the Server's stream header before sending their
+    //own, by saying nothing for BASELINE_GRACE milliseconds after connecting
+    static final int BASELINE_FIRST_BYTE = 0xAC;
+    static final int BASELINE_GRACE = 500;
+    private static final int SILENT = -2;
 
     //Keep track of clients
-    private static ArrayList<ClientThread> list;
-    private SimpleDateFormat sdf;
+    //Copy-on-write, so broadcasts iterate a snapshot without holding any lock
+    private static CopyOnWriteArrayList<ClientSession> list;
+
+    //Serializes username checks at login; a ReentrantLock rather than
+    //synchronized so that virtual threads holding it do not pin their carrier
+    private final ReentrantLock loginLock = new ReentrantLock();
+    private ExecutorService executor;
+
+    //Threads that read and hash files for the nio loops, which must not wait on the disk
+    private ExecutorService workers;
+
+    //Checks, BASELINE_GRACE after a nio Client connects, whether it has said anything yet
+    private ScheduledExecutorService handshakes;
 
     public TextServer(int port) {
         this.port = port;
-        
-        //Date Format: Year.Month.Day, time in 24 hour clock format
-        sdf = new SimpleDateFormat("YYYY.MM/dd, HH:mm:ss a");
-        list = new ArrayList<>();
+        list = new CopyOnWriteArrayList<>();
     }
     
-    //Print out message to console with time stamp
+    //Print out message to console with time stamp (by EventLog's writer, so it never waits for the console)
     private void event(String msg) {
-        String message = sdf.format(new Date())+ ": " + msg;
-        System.out.println(message);
+        EventLog.log(EventLog.Level.INFO, msg);
+    }
+
+    private void warn(String msg) {
+        EventLog.log(EventLog.Level.WARN, msg);
+    }
+
+    private void error(String msg) {
+        EventLog.log(EventLog.Level.ERROR, msg);
     }
     
     //Broadcast a message to all Clients
-    private synchronized void broadcast(String message, String username) {
-        event(username + " has sent the message: \"" + message + "\"");
+    //Only queues the message for each Client's writer, so a slow Client
+    //cannot hold up the sender or the other recipients
+    private void broadcast(String message, String username) {
+        EventLog.log(EventLog.Level.INFO, username, " has sent the message: \"", message, "\"");
+        ServerMetrics.broadcasts.increment();
+        long start = System.nanoTime();
+
+        //Time stamp and encode the message once; every recipient is handed a
+        //read-only view of the same buffer (one per protocol version in use, and
+        //one compressed for the Clients that asked for compression)
+        byte[] payload = WireCodec.utf8(EventLog.timestamp() + ":\n" + username + ": " + message);
+        ByteBuffer[] encoded = new ByteBuffer[WireCodec.VERSION + 1];
+        ByteBuffer compressed = null;
+        int plainSize = 2 + WireCodec.varintSize(payload.length) + payload.length;
+
+        ClientSession[] clients = list.toArray(new ClientSession[0]);
+        for(int i = clients.length - 1; i >= 0; i--) {
+            ClientSession ct = clients[i];
+            if (EventLog.enabled(EventLog.Level.DEBUG)) {
+                EventLog.log(EventLog.Level.DEBUG, "Sending a message to client " + i);
+            }
+
+            boolean compressing = ct.outbound().compressing();
+            ByteBuffer frame = compressing ? compressed : encoded[ct.version];
+            if (compressing && frame == null) {
+                frame = compressed = sharedFrame(compressShared(payload));
+            } else if (frame == null) {
+                try {
+                    frame = encoded[ct.version] = sharedFrame(ct.encode(WireCodec.TEXT, payload));
+                } catch (IOException e) {
+                    warn("Error encoding message for " + ct.username);
+                    continue;
+                }
+            }
 
-        //Loop in reverse order in case we would have to remove a Client
-        for(int i = list.size() - 1; i >= 0; i--) {
-            ClientThread ct = list.get(i);
-            System.out.println("Sending a message to client " + i);
-            
             //Try to write to the Client; if it fails remove Client from the list
-            if(!ct.writeMsg(username + ": " + message)) {
-                list.remove(i);
+            if(!ct.writeFrame(frame.duplicate(), OutboundQueue.Channel.CHAT)) {
+                list.remove(ct);
                 event("Disconnected Client " + i + ": " + ct.username + " removed from list");
+            } else {
+                ServerMetrics.messagesSent.increment();
+                if (compressing && frame.remaining() != plainSize) {
+                    ServerMetrics.bytesBeforeCompression.add(plainSize);
+                    ServerMetrics.bytesAfterCompression.add(frame.remaining());
+                }
             }
         }
+        ServerMetrics.broadcastMicros.record((System.nanoTime() - start) / 1000);
+    }
+
+    //A broadcast TEXT frame compressed once for all the Clients that asked for compression
+    private static byte[] compressShared(byte[] payload) {
+        sharedCompressionLock.lock();
+        try {
+            return sharedCompression.encodeShared(WireCodec.TEXT, payload);
+        } finally {
+            sharedCompressionLock.unlock();
+        }
+    }
+
+    //Clients connected (or none, before a server has been created)
+    static List<ClientSession> clients() {
+        List<ClientSession> clients = list;
+        return clients == null ? Collections.emptyList() : clients;
     }
     
+    //Immutable buffer holding a frame shared by several recipients
+    private ByteBuffer sharedFrame(byte[] frame) {
+        ServerMetrics.bytesEncoded.add(frame.length);
+
+        if (frame.length < DIRECT_BROADCAST) {
+            return ByteBuffer.wrap(frame).asReadOnlyBuffer();
+        }
+
+        ByteBuffer direct = ByteBuffer.allocateDirect(frame.length);
+        direct.put(frame).flip();
+        return direct.asReadOnlyBuffer();
+    }
+
+    //Print a traffic summary every statsInterval seconds
+    private void startStats() {
+        if (statsInterval <= 0) return;
+
+        ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "stats");
+            t.setDaemon(true);
+            return t;
+        });
+        timer.scheduleAtFixedRate(() -> event(ServerMetrics.report()), statsInterval, statsInterval, TimeUnit.SECONDS);
+    }
+
+    //Keep the metrics' rates up to date, and publish the metrics over JMX
+    //(and on metricsPort, if there is one)
+    private void startMetrics() {
+        ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "metrics");
+            t.setDaemon(true);
+            return t;
+        });
+        timer.scheduleAtFixedRate(ServerMetrics::sample, 0, 1, TimeUnit.SECONDS);
+
+        try {
+            ServerMetrics.register();
+        } catch (JMException e) {
+            warn("Error registering the metrics with JMX: " + e);
+        }
+
+        if (metricsPort <= 0) return;
+        try {
+            ServerMetrics.serve(metricsPort);
+            event("Metrics served on http://localhost:" + metricsPort + "/metrics");
+        } catch (IOException e) {
+            warn("Error serving metrics on port " + metricsPort + ": " + e);
+        }
+    }
+
+    //Write the shared documents' text back to the store every SNAPSHOT_INTERVAL seconds
+    private void startSnapshots() {
+        ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "snapshots");
+            t.setDaemon(true);
+            return t;
+        });
+        timer.scheduleWithFixedDelay(() -> {
+            SharedDocument[] documents;
+            sharedLock.lock();
+            try {
+                documents = sharedDocuments.values().toArray(new SharedDocument[0]);
+            } finally {
+                sharedLock.unlock();
+            }
+
+            for (SharedDocument document : documents) {
+                try {
+                    document.snapshot(store);
+                } catch (IOException e) {
+                    warn("Error saving " + document.path() + ": " + e);
+                }
+                release(document);
+            }
+        }, SNAPSHOT_INTERVAL, SNAPSHOT_INTERVAL, TimeUnit.SECONDS);
+    }
+
+    //Forget a shared document once nobody is editing it and its text is saved
+    //(until then it is kept, so that whoever opens it gets its text rather than the file's)
+    private static void release(SharedDocument document) {
+        sharedLock.lock();
+        try {
+            if (document.saved()) sharedDocuments.remove(document.path(), document);
+        } finally {
+            sharedLock.unlock();
+        }
+    }
+
     //Remove Client who logs out (using the LOGOUT message)
-    private synchronized void remove(int id) {
-        for(int i = 0; i < list.size(); ++i) {
-            ClientThread ct = list.get(i);
-            
+    private void remove(int id) {
+        ClientSession[] clients = list.toArray(new ClientSession[0]);
+        for(int i = 0; i < clients.length; ++i) {
+            ClientSession ct = clients[i];
+
             if(ct.id == id) {
-                list.remove(i);
+                list.remove(ct);
                 event("Disconnected Client " + (i + 1) + ": " + ct.username + " removed from list");
                 return;
             }
         }
     }
     
+    //Add a newly accepted Client to the list
+    void add(ClientSession cs) {
+        list.add(cs);
+    }
+
+    //Create the directory of unfinished uploads, and delete those abandoned long ago
+    private void cleanPartials() {
+        try {
+            Files.createDirectories(PARTIAL);
+
+            File[] partials = PARTIAL.toFile().listFiles();
+            if (partials != null) {
+                for (File f : partials) {
+                    if (System.currentTimeMillis() - f.lastModified() > PARTIAL_EXPIRY) {
+                        f.delete();
+                    }
+                }
+            }
+        } catch (IOException e) {
+            warn("Error creating " + PARTIAL + ": " + e);
+        }
+    }
+
+    //Executor that runs one ClientThread per task: a platform thread each in
+    //"threads" mode, a virtual thread each in "virtual" mode
+    private ExecutorService clientExecutor() {
+        if (mode.equals("virtual")) {
+            try {
+                //Looked up reflectively so the server still builds and runs on JDKs without virtual threads
+                return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            } catch (ReflectiveOperationException e) {
+                event("Virtual threads are not available on this JVM; using platform threads");
+            }
+        }
+        return Executors.newCachedThreadPool();
+    }
+
     //Start and run the server
     public void start() {
+        startMetrics();
+        startStats();
+        cleanPartials();
+
         try {
-            //Start listening on port
-            serverSocket = new ServerSocket(port);
-            
+            cache = cacheSize > 0 ? new FileCache(cacheSize * 1024L * 1024) : null;
+            store = new BlobStore(BLOBS, cache);
+        } catch (IOException e) {
+            error("Exception in starting server: " + e);
+            return;
+        }
+        startSnapshots();
+
+        if (mode.equals("nio")) {
+            startSelector();
+            return;
+        }
+
+        executor = clientExecutor();
+
+        try {
+            //Start listening on port (a blocking channel, so that every Client's
+            //socket has a channel to write shared buffers to)
+            ServerSocketChannel server = ServerSocketChannel.open();
+            server.bind(new InetSocketAddress(port));
+            serverSocket = server.socket();
+
             event("Web Server running on Inet Address " + serverSocket.getInetAddress()
                     + " port: " + serverSocket.getLocalPort());
             
@@ -79,17 +359,76 @@ public class TextServer {
             
             //Server infinite loop and wait for clients to connect
             while (true) {
-                Socket socket = serverSocket.accept(); //Accept Client connection
-                event("Connection accepted " + socket.getInetAddress() + ":" + socket.getPort());
+                SocketChannel channel = server.accept(); //Accept Client connection
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true); //Frames are batched by the writer already
+                event("Connection accepted " + channel.getRemoteAddress());
                 
                 //Create a new thread and handle the connection
-                ClientThread ct = new ClientThread(socket);
-                list.add(ct);
-                ct.start();
+                ClientThread ct = new ClientThread(channel);
+                add(ct);
+                executor.execute(ct);
+            }
+
+        } catch (Exception e) {
+            error("Exception in starting server: " + e);
+        }
+    }
+
+    //Start the server in non-blocking mode: one acceptor and a small pool of
+    //selector loops (one per core) that service every Client
+    private void startSelector() {
+        try {
+            ServerSocketChannel server = ServerSocketChannel.open();
+            server.bind(new InetSocketAddress(port));
+
+            EventLoop[] loops = new EventLoop[Runtime.getRuntime().availableProcessors()];
+            for (int i = 0; i < loops.length; i++) {
+                loops[i] = new EventLoop();
+                loops[i].start("io-loop-" + i);
+            }
+
+            workers = Executors.newFixedThreadPool(Math.max(2, loops.length), new ThreadFactory() {
+                private int next;
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "file-worker-" + next++);
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+
+            //Original Clients get threads of their own, as in threads mode (see BaselineClient)
+            executor = Executors.newCachedThreadPool();
+            handshakes = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "handshakes");
+                t.setDaemon(true);
+                return t;
+            });
+
+            event("Web Server running (nio, " + loops.length + " I/O loops) on port: "
+                    + server.socket().getLocalPort());
+
+            System.out.println("Working Directory: \"" +
+                        System.getProperty("user.dir").replace('\\', '/') + "\"\n");
+
+            //Accept Clients and hand them to the loops in turn
+            for (int next = 0; ; next = (next + 1) % loops.length) {
+                SocketChannel channel = server.accept();
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true); //Frames are batched by the writer already
+                event("Connection accepted " + channel.getRemoteAddress());
+
+                NioClient nc = new NioClient();
+                nc.conn = new NioConnection(channel, loops[next], nc, new OutboundQueue(queueSize, overflow));
+                add(nc);
+                loops[next].register(nc.conn);
+
+                NioConnection conn = nc.conn;
+                handshakes.schedule(() -> conn.execute(conn::silent), BASELINE_GRACE, TimeUnit.MILLISECONDS);
             }
             
         } catch (Exception e) {
-            event("Exception in starting server: " + e);
+            error("Exception in starting server: " + e);
         }
     }
     
@@ -106,228 +445,1273 @@ public class TextServer {
                     "using port number 8080\n");
         }
          
+        //Optional I/O mode: --mode=threads (default), --mode=virtual or --mode=nio
+        //Outbound queue: --queue=<frames per client>, --overflow=drop-oldest|disconnect|block (not with nio)
+        //File cache: --cache=<megabytes> (0 turns it off)
+        //Compression: --compress=on (default) or --compress=off
+        //Largest file sent whole by version 1 and 2 Clients, or edit to a shared document: --max-frame=<megabytes>
+        //Flow control window of file transfers: --window=<kilobytes> (about bandwidth x round trip time)
+        //Metrics: --stats=<seconds between console reports>, --metrics=<local port to scrape them from>
+        //Event log: --log=debug|info|warn|error|off, --log-format=text|json
+        for (String arg : args) {
+            try {
+                if (arg.startsWith("--mode=")) {
+                    mode = arg.substring(7).toLowerCase();
+                    System.out.println("Server mode set to " + mode + "\n");
+
+                } else if (arg.startsWith("--queue=")) {
+                    queueSize = Integer.parseInt(arg.substring(8));
+                    System.out.println("Outbound queue size set to " + queueSize + "\n");
+
+                } else if (arg.startsWith("--overflow=")) {
+                    overflow = OutboundQueue.Overflow.parse(arg.substring(11));
+                    System.out.println("Outbound queue overflow policy set to " + overflow + "\n");
+
+                } else if (arg.startsWith("--stats=")) {
+                    statsInterval = Integer.parseInt(arg.substring(8));
+
+                } else if (arg.startsWith("--metrics=")) {
+                    metricsPort = Integer.parseInt(arg.substring(10));
+                    System.out.println("Metrics served on local port " + metricsPort + "\n");
+
+                } else if (arg.startsWith("--log=")) {
+                    EventLog.level(EventLog.Level.valueOf(arg.substring(6).toUpperCase()));
+
+                } else if (arg.startsWith("--log-format=")) {
+                    EventLog.json(arg.substring(13).equalsIgnoreCase("json"));
+
+                } else if (arg.startsWith("--cache=")) {
+                    cacheSize = Integer.parseInt(arg.substring(8));
+                    System.out.println("File cache size set to " + cacheSize + " MB\n");
+
+                } else if (arg.startsWith("--max-frame=")) {
+                    maxFrameSize = Integer.parseInt(arg.substring(12));
+                    System.out.println("Largest frame set to " + maxFrameSize + " MB\n");
+
+                } else if (arg.startsWith("--window=")) {
+                    window = Math.max(1, (int) ((Long.parseLong(arg.substring(9)) * 1024 + WireCodec.CHUNK_SIZE - 1) / WireCodec.CHUNK_SIZE));
+                    System.out.println("Flow control window set to " + window + " chunks\n");
+
+                } else if (arg.startsWith("--compress=")) {
+                    compress = !arg.substring(11).equalsIgnoreCase("off");
+                    System.out.println("Compression turned " + (compress ? "on" : "off") + "\n");
+                }
+            } catch (IllegalArgumentException e) {
+                System.out.println("Ignoring invalid option " + arg + "\n");
+            }
+        }
+
+        //In nio mode broadcasts run on the I/O loops, which must never wait: the Client
+        //whose queue is full may only be drained by the very loop that would be waiting
+        if (mode.equals("nio") && overflow == OutboundQueue.Overflow.BLOCK) {
+            overflow = OutboundQueue.Overflow.DISCONNECT;
+            System.out.println("The block overflow policy would stall the nio I/O loops; "
+                    + "disconnecting Clients that fall behind instead\n");
+        }
+
         TextServer server = new TextServer(port);
         server.start();
     }
  
-    //Class to handle the Clients (each in their own thread)
-    class ClientThread extends Thread {
-        Socket socket;
-        ObjectInputStream in;
-        ObjectOutputStream out;
-        
+    //Protocol handling for one Client; subclasses only move frames on and off the network
+    abstract class ClientSession {
         //Client info
         int id;
         String username;
         String date; //Timestamp of when the client has connected
         
-        //Messages
-        ChatMessage cm;
-        
-        //Creates input/output object streams and reads in the username
-        //Creates directory named "[username]"
-        //Disconnects user if username is already in use (directory already exists)
-        ClientThread(Socket socket) {
-            id = ++uniqueID;
-            this.socket = socket;
+        //Set by a "SEND /fileName" message; the next frame is the file's content
+        String pendingFile;
+        private boolean loggedOut;
 
-            //Create both input/output data streams
-            try {
-                out = new ObjectOutputStream(socket.getOutputStream());
-                in  = new ObjectInputStream(socket.getInputStream());
-                
-                //Read the username
-                username = (String) in.readObject();
-                
-                //Check to see if the username is already in use
-                synchronized(list) {
-                    for (int i = 0; i < list.size(); i++) {
-                        if (list.get(i).username.equals(this.username)) {
-                            writeMsg("Username already taken");
-                            username = username + id; //update the username to the username plus the unique id number
-                            out.writeObject("Username is now: " + username);
-                        }
-                    }
-                }
-                
-                //Create directory for the client's files
-                if (!new File(username).exists()) {
-                    new File(username).mkdir();
-                    event("Directory created");
-                }
-                
-                event(username + " has connected");
-                
-            } catch (IOException e) {
-                event("Exception creating new input/output streams");
-                remove(id);
-                close();
-                return;
-                
-            } catch (ClassNotFoundException e) {
-                event("¯\\_(ツ)_/¯");
-            }
+        //Files being streamed up by the Client, by transfer id
+        private final Map<Integer, FileReceiver> uploads = new HashMap<>();
+        private int nextTransferId = WireCodec.SERVER_IDS - 1; //Downloads started by a "GET /" message
+        private long chunksReceived;
 
-            date = new Date().toString() + "\n";
+        //Uploads of content the store already had, waiting for their FILE_END
+        private final Map<Integer, FileReceiver.Header> duplicates = new HashMap<>();
+
+        //Shared documents the Client is editing, by document id
+        private final Map<Integer, SharedDocument> editing = new HashMap<>();
+
+        //Protocol version spoken by the Client (0 = the original serialization stream,
+        //1 = ObjectFrames, 2 = WireCodec, 3 = files streamed in chunks, 4 = byte ranges and resume,
+        //5 = deduplicated uploads, 6 = shared editing, 7 = delta uploads, 8 = compression,
+        //9 = requests answered with REPLY, 10 = flow control of file transfers)
+        volatile int version = WireCodec.VERSION;
+
+        //Compresses frames once the Client asks for it in HELLO
+        private final FrameCompression compression = new FrameCompression();
+
+        ClientSession() {
+            id = ++uniqueID;
         }
-        
-        @Override
-        public void run() {
-            boolean loggedIn = true;
-            
-            while(loggedIn) {
-                //Read in from the input stream (which is a ChatMessage object)
-                try {
-                    cm = (ChatMessage) in.readObject();
-                    
-                } catch (IOException e) {
-                    event(username + " Exception Reading Streams: " + e);
-                    break;			
-                } catch(ClassNotFoundException e) {
-                    break;
-                }
-                
-                //Get messaage part of the ChatMessage object
-                String message = cm.getMessage();
 
-                //Switch on the type of message
-                switch(cm.getType()) {
-                    case ChatMessage.MESSAGE:
-                        processMessage(message);
-                        break;
+        //Queue one encoded frame for the Client's writer, on one of the connection's channels
+        abstract void sendFrame(ByteBuffer frame, OutboundQueue.Channel channel);
 
-                    case ChatMessage.LOGOUT:
-                        event(username + " disconnected with a LOGOUT message.");
-                        loggedIn = false;
-                        break;
+        //Queue of frames waiting for the Client's writer
+        abstract OutboundQueue outbound();
 
-                    case ChatMessage.WHOISIN:
-                        //Print all Clients that are connected to the server
-                        for(int i = 0; i < list.size(); ++i) {
-                            ClientThread ct = list.get(i);
-                            writeMsg((i+1) + ") " + ct.username + " since " + ct.date);
-                        }
-                        break;
-                }
+        //Stream a file to the Client in between its other frames
+        abstract void stream(FileSender sender);
+
+        //Encode a frame in the protocol version the Client speaks
+        byte[] encode(int type, byte[] payload) throws IOException {
+            if (version == 1) {
+                return ObjectFrames.encode(ObjectFrames.toObject(type, payload));
             }
-            
-            //Client has decided to log out
-            remove(id);
-            close();
-            deleteDirectory(new File(username));
+            return WireCodec.encode(type, 0, payload);
         }
 
-        //SHUT DOWN EVERYTHING
-        private void close() {
-            try {
-                if(out != null) out.close();
-            } catch(Exception e) {
-                /* ¯\_(ツ)_/¯ */
-            }
-            
-            try {
-                if(in != null) in.close();
-            } catch(Exception e) {
-                /* ¯\_(ツ)_/¯ */
-            }
-            
-            try {
-                if(socket != null) socket.close();
-            } catch (Exception e) {
-                /* ¯\_(ツ)_/¯ */
-            }
+        //Write one frame to the Client
+        void send(int type, byte[] payload) throws IOException {
+            send(type, payload, OutboundQueue.channel(type));
         }
-        
-        //Delete the client's directory
-        private void deleteDirectory(File file) {
-            File[] contents = file.listFiles();
-            if (contents != null) {
-                for (File f : contents) {
-                    deleteDirectory(f);
-                }
-            }
-            file.delete();
-            event(username + "'s Directory Deleted");
+
+        void send(int type, byte[] payload, OutboundQueue.Channel channel) throws IOException {
+            byte[] frame = encode(type, payload);
+            ServerMetrics.bytesEncoded.add(frame.length);
+            sendFrame(ByteBuffer.wrap(frame), channel);
         }
-        
-        //Write message to the Client
-        private boolean writeMsg(String msg) {
-            //If Client is not connected, SHUT DOWN EVERYTHING
-            if(!socket.isConnected()) {
+
+        //Queue an already encoded frame (see broadcast)
+        //Returns false if the Client is no longer connected
+        boolean writeFrame(ByteBuffer frame, OutboundQueue.Channel channel) {
+            if(!isConnected()) {
                 close();
                 return false;
             }
-            
-            try {
-                out.writeObject(sdf.format(new Date())+ ":\n" + msg);
-            } catch(IOException e) {
-                event("Error sending message to " + username);
-            }
-            
+
+            sendFrame(frame, channel);
             return true;
         }
-        
-        //Process message from client
-        private void processMessage(String message) {
-            if (message.toLowerCase().startsWith("SEND /".toLowerCase())) {
-                //Prepare to receive the file /fileName
-                int index = Math.max(message.lastIndexOf("/"), message.lastIndexOf("\\"));
-                String fileName = message.substring(index + 1);
-                receiveFile(fileName);
-                
-            } else if (message.toLowerCase().startsWith("GET /".toLowerCase())) {
-                //Send the /directory/fileName to user
-                String fileName = message.substring(5);
-                
-                if (new File(fileName).exists()) {
-                    sendFile(fileName);
-                    
-                } else {
-                    writeMsg("File Not Found on Server: " + fileName);
-                    event("File Not Found on Server: " + fileName);
-                }
-                
-            } else {
-                broadcast(message, username);
+
+        //Queue an already encoded frame without waiting for room in the queue (see
+        //OutboundQueue.offerNow), for senders holding a lock, as SharedDocument does
+        //Returns false if the Client is no longer connected
+        boolean relayFrame(ByteBuffer frame, OutboundQueue.Channel channel) {
+            if (!isConnected() || !outbound().offerNow(frame, channel)) {
+                close();
+                return false;
             }
+            return true;
         }
-        
-        //Receive File from Client
-        private void receiveFile(String fileName) {
-            try {
-                //Place file in /username/directory
-                File f = new File(username + "/" + fileName);
-                byte[] content = (byte[]) in.readObject();
-                Files.write(f.toPath(), content);
 
-                event("File Received: " + fileName);
-                writeMsg("Server Successfully Received File: \"" + fileName + "\"");
+        //The Client has written file chunks we sent to disk (WINDOW frame, protocol version 10)
+        void acknowledged(int chunks) {
+            outbound().acknowledged(chunks);
+        }
 
-            } catch (IOException | ClassNotFoundException | ClassCastException ex) {
-                event("Error receiving file " + fileName);
-                writeMsg("Error Receiving File: \"" + fileName + "\"");
+        //Acknowledge a file chunk the Client uploaded, now that it is written (version 10)
+        private void chunkReceived() throws IOException {
+            if (version >= 10 && ++chunksReceived % WireCodec.WINDOW_UPDATE == 0) {
+                send(WireCodec.WINDOW, WireCodec.varint(WireCodec.WINDOW_UPDATE));
+                push(); //The Client's next chunks wait for it
             }
         }
-        
-        //Send file to Client
-        private void sendFile(String fileName) {
-            try {
-                out.writeObject("Receiving " + fileName);
-                
-                File f = new File(fileName);
-                byte[] content = Files.readAllBytes(f.toPath());
-                out.writeObject(content);
-                
-                event("File successfully sent: " + fileName);
 
-            } catch (FileNotFoundException e ) {
-                event("File Not Found: " + fileName);
-                writeMsg("File Not Found: \"" + fileName + "\"");
+        //Write a text frame without the time stamp added by writeMsg
+        void sendText(String text) throws IOException {
+            send(WireCodec.TEXT, WireCodec.utf8(text));
+        }
 
-            } catch (IOException e) {
-                event("Error sending file " + fileName);
-                writeMsg("Error Sending File: \"" + fileName + "\"");
+        //Answer a request (protocol version 9): a WHOISIN or MESSAGE sent with the
+        //REQUEST flag, or an upload, whose transfer id is its request id
+        void reply(int request, boolean done, String text) throws IOException {
+            send(WireCodec.REPLY, new WireCodec.Writer().varint(request).varint(done ? 0 : 1)
+                    .text(text).toByteArray());
+        }
+
+        abstract boolean isConnected();
+
+        //Send what is queued now, rather than once the frame being handled is done
+        abstract void push();
+
+        //SHUT DOWN EVERYTHING
+        abstract void close();
+
+        //Largest payload accepted in a frame of a type, checked before anything is allocated
+        //for it: next to nothing before login, and no more than a file chunk's worth after,
+        //except in the frames that carry a whole file (FILE, versions 1 and 2, whose
+        //ObjectFrames are all checked as FILE) or whatever text was pasted (EDIT)
+        public int maxPayload(int type) {
+            if (username == null) return MAX_LOGIN_PAYLOAD;
+            if (type == WireCodec.FILE || type == WireCodec.EDIT) {
+                return (int) Math.min(Math.max(maxFrameSize * 1024L * 1024, MAX_PAYLOAD), WireCodec.MAX_PAYLOAD);
             }
+            return MAX_PAYLOAD;
+        }
+
+        //Handle one frame read from the Client
+        //Returns false once the Client has logged out
+        boolean handle(WireCodec.Frame frame) throws IOException {
+            return dispatch(received(frame));
+        }
+
+        //Count a frame read from the Client and undo its compression
+        //(in the order the frames arrived: the stream compression depends on it)
+        WireCodec.Frame received(WireCodec.Frame frame) throws IOException {
+            int length = frame.payload.length;
+            ServerMetrics.framesRead.increment();
+            ServerMetrics.bytesRead.add(2 + WireCodec.varintSize(length) + length);
+            return compression.decompress(frame, maxPayload(frame.type));
+        }
+
+        //Whether handling a (decompressed) frame may read or hash a whole file: an upload
+        //being started or stored, a download being started, or a shared document being
+        //read to be opened or saved as it is closed
+        boolean blocking(WireCodec.Frame frame) {
+            switch (frame.type) {
+                case WireCodec.FILE:
+                case WireCodec.FILE_BEGIN:
+                case WireCodec.FILE_END:
+                case WireCodec.FILE_GET:
+                case WireCodec.EDIT_OPEN:
+                case WireCodec.EDIT_CLOSE:
+                    return true;
+
+                case WireCodec.MESSAGE:
+                    WireCodec.Reader message = new WireCodec.Reader(frame.payload);
+                    if ((frame.flags & WireCodec.REQUEST) != 0) message.varint();
+                    return message.text().regionMatches(true, 0, "GET /", 0, 5);
+
+                default:
+                    return false;
+            }
+        }
+
+        //Handle one frame once received
+        //Returns false once the Client has logged out
+        boolean dispatch(WireCodec.Frame frame) throws IOException {
+            //Nothing but the version and the username is accepted before login
+            if (username == null) {
+                switch (frame.type) {
+                    case WireCodec.HELLO:
+                        //Answer with the highest version both sides speak, and the features both want
+                        WireCodec.Reader hello = new WireCodec.Reader(frame.payload);
+                        version = Math.min(WireCodec.VERSION, hello.varint());
+                        int wanted = version >= 8 && hello.remaining() > 0 ? hello.varint() : 0;
+                        int features = wanted & (compress ? FrameCompression.FEATURE : 0);
+                        send(WireCodec.HELLO, new WireCodec.Writer().varint(version).varint(features).toByteArray());
+
+                        if ((features & FrameCompression.FEATURE) != 0) outbound().compress(compression);
+                        return true;
+
+                    case WireCodec.LOGIN:
+                        login(frame.text());
+                        return true;
+
+                    case WireCodec.FILE_GET:
+                        //A connection that only fetches file ranges for a logged in
+                        //Client: it is not a Client itself, so it gets no chat
+                        list.remove(this);
+                        sendRange(frame);
+                        return true;
+
+                    case WireCodec.LOGOUT:
+                        return false;
+
+                    default:
+                        warn("Frame received before login; closing connection");
+                        return false;
+                }
+            }
+
+            //A request to answer with a REPLY: its id comes before the usual payload
+            int request = 0;
+            if ((frame.flags & WireCodec.REQUEST) != 0) {
+                WireCodec.Reader reader = new WireCodec.Reader(frame.payload);
+                request = reader.varint();
+                frame = new WireCodec.Frame(frame.type, frame.flags & ~WireCodec.REQUEST,
+                        reader.bytes(reader.remaining()));
+            }
+
+            //Switch on the type of message
+            switch(frame.type) {
+                case WireCodec.FILE:
+                    //Content of a file announced by "SEND /"
+                    if (pendingFile != null) {
+                        String fileName = pendingFile;
+                        pendingFile = null;
+                        receiveFile(fileName, frame.payload);
+                    }
+                    break;
+
+                case WireCodec.FILE_BEGIN:
+                case WireCodec.FILE_CHUNK:
+                case WireCodec.FILE_COPY:
+                case WireCodec.FILE_END:
+                    if (frame.type == WireCodec.FILE_CHUNK) ServerMetrics.bytesUploaded.add(frame.payload.length);
+                    receiveChunk(frame);
+                    if (frame.type == WireCodec.FILE_CHUNK) chunkReceived();
+                    break;
+
+                case WireCodec.WINDOW:
+                    acknowledged(WireCodec.readVarint(frame.payload));
+                    break;
+
+                case WireCodec.FILE_GET:
+                    sendRange(frame);
+                    break;
+
+                case WireCodec.EDIT_OPEN:
+                    openShared(frame.text());
+                    break;
+
+                case WireCodec.EDIT:
+                    edit(frame);
+                    break;
+
+                case WireCodec.EDIT_CLOSE:
+                    closeShared(WireCodec.readVarint(frame.payload));
+                    break;
+
+                case WireCodec.MESSAGE:
+                    ServerMetrics.messagesReceived.increment();
+                    processMessage(frame.text());
+                    if (request != 0) reply(request, true, "");
+                    break;
+
+                case WireCodec.LOGOUT:
+                    event(username + " disconnected with a LOGOUT message.");
+                    return false;
+
+                case WireCodec.WHOISIN:
+                    //Print all Clients that are connected to the server
+                    ClientSession[] clients = list.toArray(new ClientSession[0]);
+
+                    if (request != 0) {
+                        //All of them in one REPLY, a username per line
+                        StringJoiner names = new StringJoiner("\n");
+                        for (ClientSession ct : clients) {
+                            names.add(ct.username);
+                        }
+                        reply(request, true, names.toString());
+                        break;
+                    }
+
+                    for(int i = 0; i < clients.length; ++i) {
+                        ClientSession ct = clients[i];
+                        writeMsg((i+1) + ") " + ct.username + " since " + ct.date);
+                    }
+                    break;
+            }
+            return true;
+        }
+
+        //Reads in the username
+        //Creates directory named "[username]"
+        //Renames user if username is already in use
+        void login(String name) {
+            username = name;
+
+            //Check to see if the username is already in use
+            loginLock.lock();
+            try {
+                for (ClientSession cs : list) {
+                    if (cs != this && username.equals(cs.username)) {
+                        writeMsg("Username already taken");
+                        username = username + id; //update the username to the username plus the unique id number
+                        try {
+                            sendText("Username is now: " + username);
+                        } catch (IOException e) {
+                            warn("Error sending message to " + username);
+                        }
+                    }
+                }
+            } finally {
+                loginLock.unlock();
+            }
+
+            event(username + " has connected");
+            date = new Date().toString() + "\n";
+
+            //From version 10 the Client acknowledges the file chunks it is sent (WINDOW)
+            if (version >= 10) outbound().window(window);
+        }
+        
+        //Run work that reads or writes whole files (see blocking): here, on the Client's
+        //own thread
+        void runBlocking(Runnable work) {
+            work.run();
+        }
+
+        //Client has decided to log out (or the connection dropped)
+        void logout() {
+            if (loggedOut) return;
+            loggedOut = true;
+            
+            remove(id);
+            close();
+
+            //Drop uploads that never finished (resumable ones keep what they received)
+            for (FileReceiver receiver : uploads.values()) {
+                receiver.close();
+                partialsInUse.remove(receiver.part());
+            }
+            uploads.clear();
+
+            runBlocking(() -> {
+                for (Integer document : editing.keySet().toArray(new Integer[0])) {
+                    closeShared(document);
+                }
+
+                //Delete the client's files (the content stays for as long as other users have it too)
+                if (username != null) {
+                    try {
+                        int files = store.removeUser(username);
+                        if (files > 0) event(username + "'s " + files + " Files Deleted");
+                    } catch (IOException e) {
+                        warn("Error deleting " + username + "'s files: " + e);
+                    }
+                }
+            });
+        }
+        
+        //Write message to the Client
+        boolean writeMsg(String msg) {
+            //If Client is not connected, SHUT DOWN EVERYTHING
+            if(!isConnected()) {
+                close();
+                return false;
+            }
+            
+            try {
+                sendText(EventLog.timestamp() + ":\n" + msg);
+            } catch(IOException e) {
+                warn("Error sending message to " + username);
+            }
+            
+            return true;
+        }
+        
+        //Process message from client
+        private void processMessage(String message) {
+            if (message.toLowerCase().startsWith("SEND /".toLowerCase())) {
+                //Prepare to receive the file /fileName
+                pendingFile = baseName(message);
+                
+            } else if (message.toLowerCase().startsWith("GET /".toLowerCase())) {
+                //Send the /directory/fileName to user
+                String fileName = message.substring(5);
+                Path blob = store.find(fileName);
+                
+                if (blob != null) {
+                    sendFile(fileName, blob);
+                    
+                } else {
+                    writeMsg("File Not Found on Server: " + fileName);
+                    warn("File Not Found on Server: " + fileName);
+                }
+                
+            } else {
+                broadcast(message, username);
+            }
+        }
+        
+        //Start editing a file ("[username]/[file name]") together with whoever else is editing it
+        private void openShared(String path) {
+            SharedDocument document;
+            SharedDocument read = null;
+            try {
+                //A document nobody has open is read from the store without the lock, and
+                //added unless someone opened it meanwhile (then theirs is the one edited)
+                while (true) {
+                    sharedLock.lock();
+                    try {
+                        document = sharedDocuments.get(path);
+                        if (document == null && read != null) {
+                            document = read;
+                            sharedDocuments.put(path, document);
+                        }
+                        if (document != null) {
+                            document.join(this);
+                            break;
+                        }
+                    } finally {
+                        sharedLock.unlock();
+                    }
+
+                    Path blob = store.find(path);
+                    if (blob == null) {
+                        writeMsg("File Not Found on Server: " + path);
+                        warn("File Not Found on Server: " + path);
+                        return;
+                    }
+
+                    int index = path.indexOf('/');
+                    read = new SharedDocument(nextDocumentId.incrementAndGet(), path.substring(0, index),
+                            path.substring(index + 1), blob);
+                }
+
+            } catch (IOException e) {
+                warn("Error opening " + path + " for editing: " + e);
+                writeMsg("Error Opening File: \"" + path + "\"");
+                return;
+            }
+
+            editing.put(document.id, document);
+            event(username + " is editing " + path);
+        }
+
+        //Apply a batch of edits to a shared document
+        private void edit(WireCodec.Frame frame) throws IOException {
+            WireCodec.Reader edit = new WireCodec.Reader(frame.payload);
+            SharedDocument document = editing.get(edit.varint());
+            long base = edit.varlong(); //Revision the Client made the edits on
+            if (document == null) return;
+
+            if (!document.apply(this, base, EditOp.decode(edit))) {
+                //The Client's copy no longer matches the Server's: it starts again from this one
+                event(username + "'s edits do not fit " + document.path() + "; sending the text again");
+                document.sendText(this);
+            }
+        }
+
+        //Stop editing a shared document; the last editor to leave saves it
+        private void closeShared(int id) {
+            SharedDocument document = editing.remove(id);
+            if (document == null || !document.leave(this)) return;
+
+            try {
+                document.snapshot(store);
+            } catch (IOException e) {
+                warn("Error saving " + document.path() + ": " + e);
+            }
+            release(document);
+        }
+
+        //File name without any directories in front of it
+        private String baseName(String path) {
+            int index = Math.max(path.lastIndexOf("/"), path.lastIndexOf("\\"));
+            return path.substring(index + 1);
+        }
+
+        //Receive one frame of a file streamed by the Client
+        //The file is written to /.partial as its chunks arrive, then added to the store
+        private void receiveChunk(WireCodec.Frame frame) {
+            int transferId = FileReceiver.transferId(frame.payload);
+            FileReceiver receiver = uploads.get(transferId);
+            String fileName = receiver == null ? "#" + transferId : receiver.name;
+
+            try {
+                switch (frame.type) {
+                    case WireCodec.FILE_BEGIN:
+                        pendingFile = null;
+                        if (version < 4) {
+                            Path part = PARTIAL.resolve("upload-" + id + "-" + transferId + ".part");
+                            uploads.put(transferId, new FileReceiver(frame, store.incoming(), part, 0, false));
+                            break;
+                        }
+
+                        //Content the store already has is not sent again: FILE_RESUME
+                        //tells the Client to skip straight to FILE_END
+                        FileReceiver.Header header = new FileReceiver.Header(frame);
+                        long resumeFrom;
+                        if (header.digest != null
+                                && store.link(username, baseName(header.name), header.digest, header.size)) {
+                            duplicates.put(transferId, header);
+                            resumeFrom = header.size;
+                            ServerMetrics.uploadsDeduplicated.increment();
+                            ServerMetrics.bytesDeduplicated.add(header.size);
+                        } else {
+                            receiver = resumableUpload(frame, header);
+                            uploads.put(transferId, receiver);
+                            resumeFrom = receiver.resume(); //0 unless an earlier upload was cut short
+                            if (resumeFrom == 0 && version >= 7 && offerDelta(receiver, header)) break;
+                        }
+
+                        send(WireCodec.FILE_RESUME, new WireCodec.Writer().varint(transferId)
+                                .varlong(resumeFrom).toByteArray());
+                        break;
+
+                    case WireCodec.FILE_CHUNK:
+                        if (receiver != null) receiver.write(frame.payload);
+                        break;
+
+                    case WireCodec.FILE_COPY:
+                        if (receiver != null) ServerMetrics.bytesDeltaCopied.add(receiver.copy(frame.payload));
+                        break;
+
+                    case WireCodec.FILE_END:
+                        FileReceiver.Header duplicate = duplicates.remove(transferId);
+                        if (duplicate != null) {
+                            finishDuplicate(duplicate, frame);
+                            break;
+                        }
+
+                        if (receiver == null) break;
+                        uploads.remove(transferId);
+                        partialsInUse.remove(receiver.part());
+
+                        if (receiver.finish(frame.payload)) {
+                            store.add(username, baseName(fileName), receiver.target());
+                            event("File Received: " + fileName);
+                            uploaded(transferId, true, "Server Successfully Received File: \"" + fileName + "\"");
+                        } else {
+                            warn("Error receiving file " + fileName + " (incomplete or corrupt)");
+                            uploaded(transferId, false, "Error Receiving File: \"" + fileName + "\"");
+                        }
+                        break;
+                }
+
+            } catch (IOException ex) {
+                if (receiver != null) {
+                    receiver.close();
+                    uploads.remove(transferId);
+                    partialsInUse.remove(receiver.part());
+                }
+                warn("Error receiving file " + fileName);
+                uploaded(transferId, false, "Error Receiving File: \"" + fileName + "\"");
+            }
+        }
+
+        //Complete an upload whose content the store already had
+        private void finishDuplicate(FileReceiver.Header header, WireCodec.Frame end) throws IOException {
+            WireCodec.Reader status = new WireCodec.Reader(end.payload);
+            status.varint(); //Transfer id
+
+            if (status.varint() == 0) {
+                event("File Received: " + header.name + " (already stored)");
+                uploaded(header.id, true, "Server Successfully Received File: \"" + header.name + "\"");
+            } else {
+                store.remove(username, baseName(header.name));
+                warn("Error receiving file " + header.name);
+                uploaded(header.id, false, "Error Receiving File: \"" + header.name + "\"");
+            }
+        }
+
+        //Tell the Client how an upload went; from version 9 as the REPLY to it
+        private void uploaded(int transferId, boolean done, String message) {
+            (done ? ServerMetrics.uploadsCompleted : ServerMetrics.uploadsFailed).increment();
+            if (version < 9) {
+                writeMsg(message);
+                return;
+            }
+
+            try {
+                reply(transferId, done, message);
+            } catch (IOException e) {
+                warn("Error sending message to " + username);
+            }
+        }
+
+        //Answer an upload of a new version of one of the user's files with the checksums
+        //of the old version's blocks (FILE_SIGNATURES), so that only what changed is sent
+        //Returns false, leaving the answer to the caller, if there is no old version to use
+        private boolean offerDelta(FileReceiver receiver, FileReceiver.Header header) throws IOException {
+            Path blob = store.find(username + "/" + baseName(header.name));
+            if (blob == null || header.size < FileDelta.MIN_FILE) return false;
+
+            //Mapped, so the blocks stay readable even if the blob is deleted meanwhile
+            ByteBuffer basis;
+            try (FileChannel channel = FileChannel.open(blob, StandardOpenOption.READ)) {
+                if (channel.size() < FileDelta.MIN_FILE || channel.size() > Integer.MAX_VALUE) return false;
+                basis = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            } catch (NoSuchFileException e) {
+                return false; //Replaced or removed meanwhile
+            }
+
+            int blockSize = FileDelta.blockSize(basis.remaining());
+            receiver.basis(basis, blockSize);
+            send(WireCodec.FILE_SIGNATURES, FileDelta.signatures(header.id, basis, blockSize));
+            ServerMetrics.uploadsDelta.increment();
+            return true;
+        }
+
+        //Start an upload into /.partial, carrying on from an earlier upload of the
+        //same content that was cut short, if there is one
+        private FileReceiver resumableUpload(WireCodec.Frame begin, FileReceiver.Header header) throws IOException {
+            //Another Client uploading the same content at the same time starts from scratch
+            Path part = PARTIAL.resolve(String.format("%08x-%d.part", header.checksum, header.size));
+            if (!partialsInUse.add(part)) {
+                part = PARTIAL.resolve(String.format("%08x-%d-%d-%d.part", header.checksum, header.size, id, header.id));
+                Files.deleteIfExists(part);
+                partialsInUse.add(part);
+            }
+
+            try {
+                return new FileReceiver(begin, store.incoming(), part, 0);
+            } catch (IOException e) {
+                partialsInUse.remove(part);
+                throw e;
+            }
+        }
+
+        //Receive File from Client
+        private void receiveFile(String fileName, byte[] content) {
+            try {
+                store.add(username, fileName, content);
+                ServerMetrics.uploadsCompleted.increment();
+                ServerMetrics.bytesUploaded.add(content.length);
+
+                event("File Received: " + fileName);
+                writeMsg("Server Successfully Received File: \"" + fileName + "\"");
+
+            } catch (IOException ex) {
+                ServerMetrics.uploadsFailed.increment();
+                warn("Error receiving file " + fileName);
+                writeMsg("Error Receiving File: \"" + fileName + "\"");
+            }
+        }
+        
+        //Send file to Client
+        private void sendFile(String fileName, Path blob) {
+            if (version >= 3) {
+                streamFile(fileName, blob);
+                return;
+            }
+
+            try {
+                //On the same channel as the file, which must come right after it
+                send(WireCodec.TEXT, WireCodec.utf8("Receiving " + fileName), OutboundQueue.Channel.CONTROL);
+
+                FileCache.Entry cached = cache == null ? null : cache.get(blob);
+                byte[] content;
+                if (cached != null) {
+                    content = new byte[cached.content.remaining()];
+                    cached.content.duplicate().get(content);
+                } else {
+                    content = Files.readAllBytes(blob);
+                }
+                send(WireCodec.FILE, content);
+                ServerMetrics.downloadsStarted.increment();
+                ServerMetrics.downloadsCompleted.increment();
+                ServerMetrics.bytesDownloaded.add(content.length);
+                
+                event("File successfully sent: " + fileName);
+
+            } catch (FileNotFoundException e ) {
+                ServerMetrics.downloadsFailed.increment();
+                warn("File Not Found: " + fileName);
+                writeMsg("File Not Found: \"" + fileName + "\"");
+
+            } catch (IOException e) {
+                ServerMetrics.downloadsFailed.increment();
+                warn("Error sending file " + fileName);
+                writeMsg("Error Sending File: \"" + fileName + "\"");
+            }
+        }
+
+        //Stream the range of a file asked for with FILE_GET
+        private void sendRange(WireCodec.Frame frame) throws IOException {
+            WireCodec.Reader get = new WireCodec.Reader(frame.payload);
+            int transferId = get.varint();
+            long offset = get.varlong();
+            long length = get.varlong();
+            String fileName = get.text();
+            Path blob = store.find(fileName);
+
+            try {
+                if (blob == null) throw new NoSuchFileException(fileName);
+                stream(sender(transferId, blob, fileName, true, offset, length));
+                event("File transfer started: " + fileName + " (" + length + " bytes from " + offset + ")");
+
+            } catch (IOException e) {
+                //A FILE_END without a FILE_BEGIN: the file cannot be sent
+                warn("File Not Found on Server: " + fileName);
+                ServerMetrics.downloadsFailed.increment();
+                send(WireCodec.FILE_END, new WireCodec.Writer().varint(transferId).varint(1).toByteArray());
+            }
+        }
+
+        //Sender for a file in the store, serving it from the cache when it can
+        private FileSender sender(int transferId, Path blob, String fileName, boolean range,
+                long offset, long length) throws IOException {
+            FileCache.Entry cached = cache == null ? null : cache.get(blob);
+            if (cached == null) {
+                return range ? new FileSender(transferId, blob, fileName, offset, length)
+                        : new FileSender(transferId, blob, fileName);
+            }
+            return range ? new FileSender(transferId, cached.content, cached.checksum, fileName, offset, length)
+                    : new FileSender(transferId, cached.content, cached.checksum, fileName);
+        }
+
+        //Stream file to Client one chunk at a time
+        private void streamFile(String fileName, Path blob) {
+            try {
+                stream(sender(++nextTransferId, blob, fileName, false, 0, 0));
+                event("File transfer started: " + fileName);
+
+            } catch (IOException e) {
+                ServerMetrics.downloadsFailed.increment();
+                warn("Error sending file " + fileName);
+                writeMsg("Error Sending File: \"" + fileName + "\"");
+            }
+        }
+    }
+
+    //Class to handle the Clients (each in their own thread)
+    class ClientThread extends ClientSession implements Runnable {
+        //Idle clients only need a small read buffer; large frames are read straight into their array
+        private static final int READ_BUFFER = 1024;
+
+        SocketChannel channel;
+        Socket socket;
+        DataInputStream in;
+
+        //Frames waiting to be written by this Client's writer task
+        final OutboundQueue outbound = new OutboundQueue(queueSize, overflow);
+
+        //Creates input/output frame streams; the username is read by run()
+        //Frames are written straight to the channel by writeLoop
+        ClientThread(SocketChannel channel) {
+            this.channel = channel;
+            this.socket = channel.socket();
+
+            //Create the input data stream
+            try {
+                in  = new DataInputStream(new BufferedInputStream(socket.getInputStream(), READ_BUFFER));
+
+            } catch (IOException e) {
+                error("Exception creating new input/output streams");
+                close();
+            }
+        }
+
+        @Override
+        public void run() {
+            boolean loggedIn = in != null;
+
+            //Version 1 Clients start with an ObjectFrames length, whose first byte is 0;
+            //original Clients with a serialization stream, or with nothing at all
+            if (loggedIn) {
+                try {
+                    int first = firstByte();
+                    if (first == BASELINE_FIRST_BYTE || first == SILENT) {
+                        list.remove(this);
+                        BaselineClient original = new BaselineClient(channel, in);
+                        add(original);
+                        original.run(); //On this Client's thread, which it takes over
+                        return;
+                    }
+                    version = first == 0 ? 1 : WireCodec.VERSION;
+                } catch (IOException e) {
+                    loggedIn = false;
+                }
+            }
+            if (loggedIn) {
+                executor.execute(this::writeLoop);
+            }
+
+            //However the loop ends (a bug in a handler included), the Client is logged out
+            try {
+                while(loggedIn) {
+                    //Read in from the input stream (version, username, chat message or file content)
+                    try {
+                        WireCodec.Frame frame;
+                        if (version == 1) {
+                            frame = ObjectFrames.toFrame(ObjectFrames.read(in, maxPayload(WireCodec.FILE)));
+                        } else {
+                            frame = WireCodec.read(in, this::maxPayload);
+                        }
+
+                        //The replies to this frame go out together, and as soon as it is handled:
+                        //frames queued for the Client meanwhile (chat, WINDOWs) must not wait
+                        //for the next ones, which during an upload are always there
+                        outbound.cork();
+                        try {
+                            loggedIn = handle(frame);
+                        } finally {
+                            outbound.uncork();
+                        }
+
+                    } catch (IOException e) {
+                        warn(username + " Exception Reading Streams: " + e);
+                        break;
+                    } catch(ClassNotFoundException | ClassCastException e) {
+                        warn(username + " sent an unexpected object: " + e);
+                        break;
+                    } catch (RuntimeException e) {
+                        error("Error handling a frame from " + username + "; closing connection: " + e);
+                        break;
+                    }
+                }
+            } finally {
+                outbound.uncork();
+                logout();
+            }
+        }
+
+        //The first byte the Client sends (left to be read), or SILENT if it sends
+        //nothing for BASELINE_GRACE
+        private int firstByte() throws IOException {
+            socket.setSoTimeout(BASELINE_GRACE);
+            in.mark(1);
+            try {
+                return in.read();
+            } catch (SocketTimeoutException e) {
+                return SILENT;
+            } finally {
+                in.reset();
+                socket.setSoTimeout(0);
+            }
+        }
+
+        //Write queued frames to the socket until the queue is closed
+        //Whatever is queued by the time the writer wakes up goes out in one gathering write
+        private void writeLoop() {
+            try {
+                ByteBuffer[] batch = new ByteBuffer[OutboundQueue.BATCH_FRAMES];
+                while ((batch[0] = outbound.take()) != null) {
+                    int count = outbound.drain(batch, 1);
+                    ServerMetrics.framesWritten.add(count);
+                    while (batch[count - 1].hasRemaining()) {
+                        ServerMetrics.bytesWritten.add(channel.write(batch, 0, count));
+                        ServerMetrics.socketWrites.increment();
+                    }
+                    Arrays.fill(batch, 0, count, null);
+
+                    //Chunk data goes from the file to the socket without being copied
+                    FileSender region;
+                    while ((region = outbound.region()) != null) {
+                        long n = region.transferTo(channel);
+                        ServerMetrics.bytesWritten.add(n);
+                        ServerMetrics.bytesTransferred.add(n);
+                        ServerMetrics.socketWrites.increment();
+                    }
+                }
+            } catch (IOException | InterruptedException e) {
+                close();
+            } catch (RuntimeException e) {
+                error("Error writing to " + username + "; closing connection: " + e);
+                close();
+            }
+        }
+
+        @Override
+        void sendFrame(ByteBuffer frame, OutboundQueue.Channel channel) {
+            if (!outbound.offer(frame, channel)) {
+                close(); //Queue overflowed with the DISCONNECT (or timed out BLOCK) policy
+            }
+        }
+
+        @Override
+        void stream(FileSender sender) {
+            outbound.addSource(sender);
+        }
+
+        @Override
+        void push() {
+            outbound.push();
+        }
+
+        @Override
+        OutboundQueue outbound() {
+            return outbound;
+        }
+
+        @Override
+        boolean isConnected() {
+            return socket.isConnected() && !socket.isClosed();
+        }
+
+        @Override
+        void close() {
+            outbound.close();
+
+            try {
+                if(in != null) in.close();
+            } catch(Exception e) {
+                /* ¯\_(ツ)_/¯ */
+            }
+
+            try {
+                if(socket != null) socket.close();
+            } catch (Exception e) {
+                /* ¯\_(ツ)_/¯ */
+            }
+        }
+    }
+
+    //Client of the original protocol: a Java serialization stream each way, the Client's
+    //carrying its username (a String), then ChatMessages, and a byte[] after "SEND /",
+    //and the Server's Strings, and a byte[] after "Receiving". It is served as a version 0
+    //Client, on a thread of its own in every mode: frames are queued for it as for any
+    //other Client, and its writer turns each into the object the Client expects
+    class BaselineClient extends ClientSession implements Runnable {
+        SocketChannel channel; //Blocking
+        Socket socket;
+        private final InputStream input;
+
+        //Frames waiting to be written by this Client's writer task
+        final OutboundQueue outbound = new OutboundQueue(queueSize, overflow);
+        private ObjectOutputStream out;
+
+        //input: what the Client sends, from its first byte on (some of it may have
+        //been read from the channel already)
+        BaselineClient(SocketChannel channel, InputStream input) {
+            this.channel = channel;
+            this.socket = channel.socket();
+            this.input = input;
+            version = 0;
+        }
+
+        @Override
+        public void run() {
+            ObjectInputStream in;
+            try {
+                //The Server's stream header goes first: the Client waits for it
+                out = new ObjectOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                out.flush();
+                in = new ObjectInputStream(input);
+                in.setObjectInputFilter(this::check);
+            } catch (IOException e) {
+                warn("Exception creating new input/output streams: " + e);
+                logout();
+                return;
+            }
+            executor.execute(this::writeLoop);
+
+            //However the loop ends (a bug in a handler included), the Client is logged out
+            try {
+                boolean loggedIn = true;
+                while (loggedIn) {
+                    try {
+                        WireCodec.Frame frame = ObjectFrames.toFrame(in.readObject());
+                        outbound.cork();
+                        try {
+                            loggedIn = handle(frame);
+                        } finally {
+                            outbound.uncork();
+                        }
+
+                    } catch (IOException e) {
+                        warn(username + " Exception Reading Streams: " + e);
+                        break;
+                    } catch(ClassNotFoundException | ClassCastException e) {
+                        warn(username + " sent an unexpected object: " + e);
+                        break;
+                    } catch (RuntimeException e) {
+                        error("Error handling a frame from " + username + "; closing connection: " + e);
+                        break;
+                    }
+                }
+            } finally {
+                outbound.uncork();
+                logout();
+            }
+        }
+
+        //Only what an original Client sends is read from its stream (a String, a
+        //ChatMessage, or a byte[] no bigger than a whole file frame may be)
+        private ObjectInputFilter.Status check(ObjectInputFilter.FilterInfo info) {
+            Class<?> type = info.serialClass();
+            if (info.depth() > 2 || info.arrayLength() > maxPayload(WireCodec.FILE)) {
+                return ObjectInputFilter.Status.REJECTED;
+            }
+            if (type == null || type == String.class || type == ChatMessage.class || type == byte[].class) {
+                return ObjectInputFilter.Status.ALLOWED;
+            }
+            return ObjectInputFilter.Status.REJECTED;
+        }
+
+        //Write the frames queued for the Client as the objects it expects, until the queue is closed
+        private void writeLoop() {
+            try {
+                ByteBuffer frame;
+                while ((frame = outbound.take()) != null) {
+                    WireCodec.Frame decoded = WireCodec.decode(frame);
+                    out.writeObject(ObjectFrames.toObject(decoded.type, decoded.payload));
+                    out.reset(); //Otherwise the stream keeps every object it has written
+                    ServerMetrics.framesWritten.increment();
+                    if (outbound.size() == 0) out.flush();
+                }
+            } catch (IOException | InterruptedException e) {
+                close();
+            } catch (RuntimeException e) {
+                error("Error writing to " + username + "; closing connection: " + e);
+                close();
+            }
+        }
+
+        @Override
+        void sendFrame(ByteBuffer frame, OutboundQueue.Channel channel) {
+            if (!outbound.offer(frame, channel)) {
+                close(); //Queue overflowed with the DISCONNECT (or timed out BLOCK) policy
+            }
+        }
+
+        @Override
+        void stream(FileSender sender) {
+            //Files go to version 0 Clients whole (see sendFile), never streamed
+            sender.close();
+            throw new IllegalStateException("Cannot stream a file to an original Client");
+        }
+
+        @Override
+        void push() {
+            outbound.push();
+        }
+
+        @Override
+        OutboundQueue outbound() {
+            return outbound;
+        }
+
+        @Override
+        boolean isConnected() {
+            return socket.isConnected() && !socket.isClosed();
+        }
+
+        @Override
+        void close() {
+            outbound.close();
+
+            try {
+                if(socket != null) socket.close();
+            } catch (Exception e) {
+                /* ¯\_(ツ)_/¯ */
+            }
+        }
+    }
+
+    //Client serviced by one of the selector loops (no thread of its own)
+    //A frame that has to read or hash a file (see ClientSession.blocking) is handled by
+    //one of the workers instead, so that the loop's other Clients are not held up: the
+    //connection stops reading until it is done, so the Client's frames are still handled
+    //one at a time and in order, and its replies are queued as from the loop
+    class NioClient extends ClientSession implements NioConnection.Handler {
+        NioConnection conn;
+        private boolean detected;
+        private boolean working;        //A worker is handling a frame (loop thread only)
+        private boolean closedMeanwhile; //The connection closed while it was
+
+        @Override
+        public void frameReceived(WireCodec.Frame frame) {
+            //Start from the version detected from the first byte; HELLO then settles it
+            if (!detected) {
+                detected = true;
+                version = conn.version();
+            }
+
+            try {
+                frame = received(frame);
+            } catch (IOException e) {
+                warn(username + " Exception Reading Streams: " + e);
+                logout();
+                return;
+            }
+
+            if (!blocking(frame)) {
+                if (!dispatchSafely(frame)) logout();
+                return;
+            }
+
+            WireCodec.Frame work = frame;
+            working = true;
+            conn.suspend();
+            workers.execute(() -> {
+                boolean loggedIn = dispatchSafely(work);
+                conn.execute(() -> worked(loggedIn));
+            });
+        }
+
+        //On a worker, so that the loop's other Clients are not held up
+        @Override
+        void runBlocking(Runnable work) {
+            workers.execute(work);
+        }
+
+        //Back on the loop once a worker has handled a frame
+        private void worked(boolean loggedIn) {
+            working = false;
+            if (!loggedIn || closedMeanwhile) {
+                logout();
+                return;
+            }
+            conn.resume();
+        }
+
+        //Handle a frame, on the loop or a worker
+        //Returns false if the Client has logged out or its connection has to go
+        private boolean dispatchSafely(WireCodec.Frame frame) {
+            try {
+                return dispatch(frame);
+            } catch (IOException e) {
+                warn(username + " Exception Reading Streams: " + e);
+                return false;
+            } catch (RuntimeException e) {
+                //Only this Client's connection goes; the loop carries on with the others
+                error("Error handling a frame from " + username + "; closing connection: " + e);
+                return false;
+            }
+        }
+
+        @Override
+        public void handedOff(byte[] unread) {
+            list.remove(this);
+            SocketChannel channel = conn.channel();
+            try {
+                channel.configureBlocking(true);
+                InputStream input = new SequenceInputStream(new ByteArrayInputStream(unread),
+                        new BufferedInputStream(channel.socket().getInputStream()));
+                BaselineClient original = new BaselineClient(channel, input);
+                add(original);
+                executor.execute(original);
+
+            } catch (IOException | RuntimeException e) {
+                warn("Error serving an original Client: " + e);
+                try {
+                    channel.close();
+                } catch (IOException again) {
+                    /* ¯\_(ツ)_/¯ */
+                }
+            }
+        }
+
+        @Override
+        public void closed() {
+            //Not while a worker is still using the Client's uploads and documents
+            if (working) {
+                closedMeanwhile = true;
+                return;
+            }
+            logout();
+        }
+
+        @Override
+        void sendFrame(ByteBuffer frame, OutboundQueue.Channel channel) {
+            conn.send(frame, channel);
+        }
+
+        //The loops' queues never wait for room (BLOCK is not used in nio mode)
+        @Override
+        boolean relayFrame(ByteBuffer frame, OutboundQueue.Channel channel) {
+            return writeFrame(frame, channel);
+        }
+
+        @Override
+        void acknowledged(int chunks) {
+            super.acknowledged(chunks);
+            conn.scheduleFlush(); //Chunks may have been waiting for the window
+        }
+
+        @Override
+        void stream(FileSender sender) {
+            conn.stream(sender);
+        }
+
+        @Override
+        OutboundQueue outbound() {
+            return conn.outbound();
+        }
+
+        @Override
+        void push() {
+            conn.flushNow();
+        }
+
+        @Override
+        boolean isConnected() {
+            return conn.isOpen();
+        }
+
+        @Override
+        void close() {
+            conn.close();
         }
     }
-}
\ No newline at end of file
+}
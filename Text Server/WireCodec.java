@@ -0,0 +1,380 @@
+/*
+ * This class defines the binary frames exchanged between the Clients and the
+ * Server (protocol version 2 and later).
+ *
+ * Frame: [type: 1 byte][flags: 1 byte][payload length: varint][payload]
+ * Text payloads are UTF-8. Version 1 is the older ObjectFrames protocol, whose
+ * frames always start with a 0 byte, so the Server can tell them apart.
+ *
+ * Version 3 streams files as FILE_BEGIN, FILE_CHUNK... and FILE_END frames
+ * instead of a single FILE frame.
+ *
+ * Version 4 adds byte ranges: FILE_GET asks for part of a file (the answer's
+ * FILE_BEGIN carries the RANGE flag), and the Server answers an upload's
+ * FILE_BEGIN with FILE_RESUME, so an interrupted transfer carries on where it
+ * stopped. FILE_GET is also accepted before LOGIN, so a Client can open extra
+ * connections that only fetch ranges.
+ *
+ * Version 5 uploads carry the file's SHA-256 in FILE_BEGIN (DIGEST flag); if
+ * the Server already stores that content, FILE_RESUME skips the whole file.
+ *
+ * Version 6 adds shared editing: a Client opens a file on the Server with
+ * EDIT_OPEN, then sends its changes to it as EDIT frames (see EditOp), which
+ * the Server applies to its copy and relays to the other Clients editing it.
+ * An EDIT's revision is the one its edits were made on, so that edits made
+ * at the same time can be merged (see SharedDocument).
+ *
+ * Version 7 sends only what changed when a file the Server already has an
+ * older version of is uploaded again: the Server may answer FILE_BEGIN with
+ * FILE_SIGNATURES instead of FILE_RESUME, and the data then comes as
+ * FILE_CHUNKs mixed with FILE_COPYs of blocks of the old version (see FileDelta).
+ *
+ * Version 8 adds features to HELLO, which the Server answers with those both
+ * sides want. With compression, a frame of any type may have its payload
+ * deflated (DEFLATED or DEFLATED_STREAM flag, see FrameCompression).
+ *
+ * Version 9 lets a Client have many requests on the way at once and tell the
+ * answers apart. A WHOISIN or MESSAGE with the REQUEST flag starts with a
+ * request id, and the Server answers it with a REPLY carrying the same id.
+ * Uploads and FILE_GETs are requests too, whose id is their transfer id: an
+ * upload is answered with a REPLY once it is stored (instead of a TEXT), and
+ * a FILE_GET with the file's frames. A Client numbers all of its requests
+ * from one counter, so that their ids never clash; and the transfers the
+ * Server starts itself (a file asked for with "GET /" in a MESSAGE) are
+ * numbered from SERVER_IDS up, where a Client's ids never get to.
+ *
+ * Version 10 adds flow control to file transfers, so that chat is not stuck
+ * behind megabytes of file data in the sockets' buffers: a side sends at most
+ * a window of FILE_CHUNKs to a logged in peer that the peer has not yet
+ * acknowledged with a WINDOW frame, which it sends once it has written every
+ * WINDOW_UPDATE chunks to disk. Only the sender needs to know its window, so
+ * each side picks its own: WINDOW_CHUNKS unless set otherwise, and about the
+ * link's bandwidth times its round trip time for a transfer to run at full
+ * speed. Connections that only fetch ranges (no LOGIN) carry nothing else, and
+ * are not limited.
+ */
+
+import java.io.*;
+import java.nio.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.function.IntUnaryOperator;
+
+public class WireCodec {
+    static final int VERSION = 10;
+
+    //Frame types
+    static final int HELLO = 1;   //Client -> Server: [highest version spoken][features wanted]; Server -> Client: [version chosen][features agreed]
+    static final int LOGIN = 2;   //Username
+    static final int WHOISIN = 3, MESSAGE = 4, LOGOUT = 5; //ChatMessage types
+    static final int TEXT = 6;    //Server -> Client: text to display
+    static final int FILE = 7;    //File content (versions 1 and 2)
+    static final int FILE_BEGIN = 8; //[transfer id][size: varlong][CRC32C: 4 bytes][file name]
+    static final int FILE_CHUNK = 9; //[transfer id][file bytes]
+    static final int FILE_END = 10;  //[transfer id][status: 0 = complete, 1 = failed]
+    static final int FILE_GET = 11;  //Client -> Server: [transfer id][offset: varlong][length: varlong][path]
+    static final int FILE_RESUME = 12; //Server -> Client: [transfer id][offset to continue the upload from: varlong]
+    static final int EDIT_OPEN = 13;  //Client -> Server: [path]; Server -> Client: [document id][revision: varlong][text]
+    static final int EDIT = 14;       //[document id][revision: varlong][edits] (see EditOp)
+    static final int EDIT_CLOSE = 15; //Client -> Server: [document id]
+    static final int FILE_SIGNATURES = 16; //Server -> Client: [transfer id][block checksums of the old version]
+    static final int FILE_COPY = 17;       //Client -> Server: [transfer id][first block: varlong][blocks: varlong]
+    static final int REPLY = 18;  //Server -> Client: [request id][status: 0 = done, 1 = failed][text]
+    static final int WINDOW = 19; //[FILE_CHUNKs received and written since the last WINDOW]
+
+    //Flags
+    static final int RANGE = 1; //FILE_BEGIN: [transfer id][size][CRC32C][offset: varlong][length: varlong][file name]
+    static final int DIGEST = 2; //FILE_BEGIN: [SHA-256: 32 bytes] before the file name (after the range, if any)
+    static final int REQUEST = 4; //WHOISIN, MESSAGE: [request id] before the payload, to be answered with a REPLY
+    static final int DEFLATED = 0x40;        //Any frame: payload deflated on its own
+    static final int DEFLATED_STREAM = 0x80; //Any frame: payload continues the connection's deflate stream
+
+    //File bytes carried by one FILE_CHUNK
+    static final int CHUNK_SIZE = 64 * 1024;
+
+    //FILE_CHUNKs that may be on their way to a logged in peer at once unless set
+    //otherwise (version 10), and how many the peer acknowledges in each WINDOW frame
+    static final int WINDOW_CHUNKS = 8;
+    static final int WINDOW_UPDATE = 2;
+
+    //First transfer id of the files the Server sends unasked by id (see version 9)
+    static final int SERVER_IDS = 1 << 30;
+
+    static final int MAX_HEADER = 7; //type + flags + 5 byte varint
+
+    //Largest payload accepted from the network, unless the reader sets a lower limit
+    //(the Server does, by frame type, for what it accepts from Clients)
+    static final int MAX_PAYLOAD = Integer.MAX_VALUE - MAX_HEADER;
+    private static final IntUnaryOperator NO_LIMIT = type -> MAX_PAYLOAD;
+
+    //One decoded frame
+    static class Frame {
+        final int type;
+        final int flags;
+        final byte[] payload;
+
+        Frame(int type, int flags, byte[] payload) {
+            this.type = type;
+            this.flags = flags;
+            this.payload = payload;
+        }
+
+        String text() {
+            return new String(payload, StandardCharsets.UTF_8);
+        }
+    }
+
+    //Frame type used for a ChatMessage type
+    static int frameType(int chatType) {
+        switch (chatType) {
+            case ChatMessage.WHOISIN: return WHOISIN;
+            case ChatMessage.LOGOUT: return LOGOUT;
+            default: return MESSAGE;
+        }
+    }
+
+    //ChatMessage type carried by a frame type
+    static int chatType(int frameType) {
+        switch (frameType) {
+            case WHOISIN: return ChatMessage.WHOISIN;
+            case LOGOUT: return ChatMessage.LOGOUT;
+            default: return ChatMessage.MESSAGE;
+        }
+    }
+
+    static byte[] utf8(String text) {
+        return text.getBytes(StandardCharsets.UTF_8);
+    }
+
+    //Encode a complete frame
+    static byte[] encode(int type, int flags, byte[] payload) {
+        return encode(type, flags, payload, 0, payload.length);
+    }
+
+    static byte[] encode(int type, int flags, byte[] payload, int off, int len) {
+        byte[] frame = new byte[2 + varintSize(len) + len];
+        int pos = putHeader(frame, type, flags, len);
+        System.arraycopy(payload, off, frame, pos, len);
+        return frame;
+    }
+
+    static byte[] encode(int type, String text) {
+        return encode(type, 0, utf8(text));
+    }
+
+    //Write a frame header into dst; returns the offset of the payload
+    static int putHeader(byte[] dst, int type, int flags, int length) {
+        dst[0] = (byte) type;
+        dst[1] = (byte) flags;
+        int pos = 2;
+        while ((length & ~0x7F) != 0) {
+            dst[pos++] = (byte) ((length & 0x7F) | 0x80);
+            length >>>= 7;
+        }
+        dst[pos++] = (byte) length;
+        return pos;
+    }
+
+    static int varintSize(int value) {
+        int size = 1;
+        while ((value & ~0x7F) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    //Write one frame; the frame goes out in a single write
+    //Callers sharing a stream between threads must serialize their writes
+    static void write(OutputStream out, int type, int flags, byte[] payload) throws IOException {
+        out.write(encode(type, flags, payload));
+        out.flush();
+    }
+
+    //Block until a whole frame has been read
+    static Frame read(InputStream in) throws IOException {
+        return read(in, NO_LIMIT);
+    }
+
+    //Read a frame whose payload may be no bigger than maxPayload gives for its type
+    //Throws before allocating anything for a frame that is too big
+    static Frame read(InputStream in, IntUnaryOperator maxPayload) throws IOException {
+        int type = in.read();
+        int flags = in.read();
+        if (type < 0 || flags < 0) {
+            throw new EOFException();
+        }
+
+        int length = 0;
+        for (int shift = 0; ; shift += 7) {
+            int b = in.read();
+            if (b < 0) throw new EOFException();
+            if (shift > 28) throw new StreamCorruptedException("Frame length too long");
+
+            length |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) break;
+        }
+
+        if (length < 0 || length > maxPayload.applyAsInt(type)) {
+            throw new StreamCorruptedException("Invalid frame length: " + length + " (frame type " + type + ")");
+        }
+
+        byte[] payload = new byte[length];
+        new DataInputStream(in).readFully(payload);
+        return new Frame(type, flags, payload);
+    }
+
+    //Size of the frame at the buffer's position, or -1 if its header is not complete yet
+    //Throws if the header is corrupt
+    static int frameSize(ByteBuffer buf) throws IOException {
+        return frameSize(buf, NO_LIMIT);
+    }
+
+    //Size of the frame at the buffer's position, as above, with a limit on its payload by type
+    static int frameSize(ByteBuffer buf, IntUnaryOperator maxPayload) throws IOException {
+        int pos = buf.position() + 2;
+        int length = 0;
+        for (int shift = 0; ; shift += 7) {
+            if (pos >= buf.limit()) return -1;
+            if (shift > 28) throw new StreamCorruptedException("Frame length too long");
+
+            int b = buf.get(pos++);
+            length |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) break;
+        }
+
+        int type = buf.get(buf.position()) & 0xFF;
+        if (length < 0 || length > maxPayload.applyAsInt(type)) {
+            throw new StreamCorruptedException("Invalid frame length: " + length + " (frame type " + type + ")");
+        }
+        return pos - buf.position() + length;
+    }
+
+    //Decode the complete frame at the buffer's position (see frameSize)
+    static Frame decode(ByteBuffer buf) {
+        int type = buf.get() & 0xFF;
+        int flags = buf.get() & 0xFF;
+
+        int length = 0;
+        for (int shift = 0; ; shift += 7) {
+            int b = buf.get();
+            length |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) break;
+        }
+
+        byte[] payload = new byte[length];
+        buf.get(payload);
+        return new Frame(type, flags, payload);
+    }
+
+    //Read a varint from the start of a payload
+    static int readVarint(byte[] data) {
+        int value = 0;
+        for (int i = 0, shift = 0; i < data.length && shift <= 28; i++, shift += 7) {
+            value |= (data[i] & 0x7F) << shift;
+            if ((data[i] & 0x80) == 0) break;
+        }
+        return value;
+    }
+
+    static byte[] varint(int value) {
+        byte[] data = new byte[varintSize(value)];
+        int pos = 0;
+        while ((value & ~0x7F) != 0) {
+            data[pos++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        data[pos] = (byte) value;
+        return data;
+    }
+
+    //Builds a payload made of several fields
+    static class Writer {
+        private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        Writer varint(int value) {
+            return varlong(value & 0xFFFFFFFFL);
+        }
+
+        Writer varlong(long value) {
+            while ((value & ~0x7FL) != 0) {
+                out.write((int) ((value & 0x7F) | 0x80));
+                value >>>= 7;
+            }
+            out.write((int) value);
+            return this;
+        }
+
+        Writer int32(int value) {
+            out.write(value >>> 24);
+            out.write(value >>> 16);
+            out.write(value >>> 8);
+            out.write(value);
+            return this;
+        }
+
+        Writer bytes(byte[] data) {
+            out.write(data, 0, data.length);
+            return this;
+        }
+
+        Writer text(String text) {
+            return bytes(utf8(text));
+        }
+
+        byte[] toByteArray() {
+            return out.toByteArray();
+        }
+    }
+
+    //Reads the fields of a payload in order
+    static class Reader {
+        final byte[] data;
+        int pos;
+
+        Reader(byte[] data) {
+            this.data = data;
+        }
+
+        int varint() {
+            return (int) varlong();
+        }
+
+        long varlong() {
+            long value = 0;
+            for (int shift = 0; pos < data.length && shift < 64; shift += 7) {
+                int b = data[pos++];
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) break;
+            }
+            return value;
+        }
+
+        int int32() {
+            int value = 0;
+            for (int i = 0; i < 4 && pos < data.length; i++) {
+                value = (value << 8) | (data[pos++] & 0xFF);
+            }
+            return value;
+        }
+
+        //The next length bytes; throws if the payload does not have that many
+        byte[] bytes(int length) throws StreamCorruptedException {
+            if (length < 0 || length > remaining()) throw new StreamCorruptedException("Invalid field length: " + length);
+            byte[] bytes = Arrays.copyOfRange(data, pos, pos + length);
+            pos += length;
+            return bytes;
+        }
+
+        int remaining() {
+            return data.length - pos;
+        }
+
+        //The rest of the payload as text
+        String text() {
+            String text = new String(data, pos, remaining(), StandardCharsets.UTF_8);
+            pos = data.length;
+            return text;
+        }
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ * COEN 317
+ * Distributed Editor
+ * Clients of the original protocol (a Java serialization stream each way) and
+ * version 10 Clients sharing one Server, in each of its modes
+ */
+
+import org.junit.jupiter.api.*;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.CsvSource;
+
+import java.io.*;
+import java.net.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BaselineClientTest {
+    private static final int TIMEOUT = 10_000;
+
+    private Path dir;
+    private Process server;
+    private int port;
+
+    //The two Clients each see the other's message, whether the original one waits
+    //for the Server's stream header (as it always has) or sends its own first
+    @ParameterizedTest
+    @CsvSource({"threads, false", "threads, true", "nio, false", "nio, true"})
+    void chat(String mode, boolean headerFirst) throws Exception {
+        start(mode);
+        try (Original original = new Original(port, "original", headerFirst);
+             Current current = new Current(port, "current")) {
+            //Each is logged in by the time the Server answers its WHOISIN, which
+            //the current Client sends once the original one is listed
+            original.writeObject(new ChatMessage(ChatMessage.WHOISIN, ""));
+            original.until(") original since");
+            current.send(WireCodec.WHOISIN, "");
+            current.until(") original since");
+
+            original.writeObject(new ChatMessage(ChatMessage.MESSAGE, "hello from the original"));
+            current.send(WireCodec.MESSAGE, "hello from the current");
+            assertTrue(current.until("original: hello from the original").contains(":\n"));
+            assertTrue(original.until("current: hello from the current").contains(":\n"));
+        }
+    }
+
+    //Run a Server in the given mode in a scratch directory
+    private void start(String mode) throws Exception {
+        dir = Files.createTempDirectory("baseline");
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+        server = new ProcessBuilder(java, "-cp", Paths.get("target", "classes").toAbsolutePath().toString(),
+                "TextServer", String.valueOf(port), "--mode=" + mode, "--stats=0", "--log=warn")
+                .directory(dir.toFile())
+                .redirectErrorStream(true)
+                .redirectOutput(dir.resolve("server.log").toFile())
+                .start();
+    }
+
+    @AfterEach
+    void stop() throws Exception {
+        if (server != null) {
+            server.destroy();
+            server.waitFor(5, TimeUnit.SECONDS);
+        }
+        if (dir != null) {
+            try (java.util.stream.Stream<Path> files = Files.walk(dir)) {
+                files.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+            }
+        }
+    }
+
+    //Connect once the Server is listening
+    private static Socket connect(int port) throws Exception {
+        for (int attempt = 0; ; attempt++) {
+            try {
+                Socket socket = new Socket(InetAddress.getLoopbackAddress(), port);
+                socket.setSoTimeout(TIMEOUT);
+                return socket;
+            } catch (ConnectException e) {
+                if (attempt == 100) throw e;
+                Thread.sleep(50);
+            }
+        }
+    }
+
+    //A Client as it was first written: it waits for the Server's stream header
+    //before sending its own (unless headerFirst), then its username, then ChatMessages
+    private static class Original implements Closeable {
+        private final Socket socket;
+        private final ObjectInputStream in;
+        private final ObjectOutputStream out;
+
+        Original(int port, String username, boolean headerFirst) throws Exception {
+            socket = connect(port);
+            if (headerFirst) {
+                out = new ObjectOutputStream(socket.getOutputStream());
+                out.flush();
+                in = new ObjectInputStream(socket.getInputStream());
+            } else {
+                in = new ObjectInputStream(socket.getInputStream());
+                out = new ObjectOutputStream(socket.getOutputStream());
+            }
+            writeObject(username);
+        }
+
+        void writeObject(Object obj) throws IOException {
+            out.writeObject(obj);
+            out.flush();
+        }
+
+        //The first String from the Server containing text
+        String until(String text) throws Exception {
+            while (true) {
+                Object obj = in.readObject();
+                if (obj instanceof String && ((String) obj).contains(text)) return (String) obj;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+
+    //A version 10 Client, without any features
+    private static class Current implements Closeable {
+        private final Socket socket;
+        private final DataInputStream in;
+        private final OutputStream out;
+
+        Current(int port, String username) throws Exception {
+            socket = connect(port);
+            in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            out = new BufferedOutputStream(socket.getOutputStream());
+            WireCodec.write(out, WireCodec.HELLO, 0, new WireCodec.Writer().varint(WireCodec.VERSION).varint(0).toByteArray());
+            WireCodec.write(out, WireCodec.LOGIN, 0, WireCodec.utf8(username));
+            out.flush();
+        }
+
+        void send(int type, String text) throws IOException {
+            WireCodec.write(out, type, 0, WireCodec.utf8(text));
+            out.flush();
+        }
+
+        //The first TEXT frame from the Server containing text
+        String until(String text) throws IOException {
+            while (true) {
+                WireCodec.Frame frame = WireCodec.read(in);
+                if (frame.type == WireCodec.TEXT && frame.text().contains(text)) return frame.text();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * COEN 317
+ * Distributed Editor
+ * The operations the Client's benchmarks measure (see benchmarks.ClientWorkloads)
+ *
+ * The files are written to the temporary directory first, and deleted afterwards.
+ */
+
+import benchmarks.ClientWorkloads;
+import benchmarks.Workload;
+
+import java.io.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.util.*;
+
+public class Workloads implements ClientWorkloads {
+    private static final String[] WORDS = {
+        "the", "quick", "brown", "fox", "jumps", "over", "lazy", "dog", "editor", "server",
+        "client", "message", "\tindented", "file", "transfer", "a", "of", "distributed"
+    };
+
+    @Override
+    public Workload read(long size) throws IOException {
+        if (size > TextEditor.LARGE_FILE) {
+            throw new IllegalArgumentException("The editor does not read files over " + TextEditor.LARGE_FILE + " bytes");
+        }
+        Path file = write(size);
+        return new Workload() {
+            @Override
+            public Object run() throws IOException {
+                try (Reader in = new InputStreamReader(new FileInputStream(file.toFile()), Charset.defaultCharset())) {
+                    return PieceTableDocument.read(in, size, n -> { });
+                }
+            }
+
+            @Override
+            public void close() throws IOException {
+                Files.delete(file);
+            }
+        };
+    }
+
+    @Override
+    public Workload index(long size) throws IOException {
+        Path file = write(size);
+        return new Workload() {
+            @Override
+            public Object run() throws Exception {
+                try (LargeFileModel model = new LargeFileModel(file)) {
+                    while (!model.indexed()) {
+                        Thread.sleep(1);
+                    }
+                    return model.getElementAt(0);
+                }
+            }
+
+            @Override
+            public void close() throws IOException {
+                Files.delete(file);
+            }
+        };
+    }
+
+    //A temporary text file of lines of words, of about 60 characters each
+    private static Path write(long size) throws IOException {
+        Path file = Files.createTempFile("text-", ".txt");
+        Random random = new Random(size);
+        try (Writer out = new BufferedWriter(new OutputStreamWriter(Files.newOutputStream(file), Charset.defaultCharset()))) {
+            StringBuilder line = new StringBuilder();
+            for (long written = 0; written < size; ) {
+                line.setLength(0);
+                int length = random.nextInt(120);
+                while (line.length() < length) {
+                    line.append(WORDS[random.nextInt(WORDS.length)]).append(' ');
+                }
+                line.append('\n');
+                int n = (int) Math.min(line.length(), size - written);
+                out.append(line, 0, n);
+                written += n;
+            }
+        }
+        return file;
+    }
+}
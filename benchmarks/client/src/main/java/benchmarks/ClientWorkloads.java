@@ -0,0 +1,22 @@
+/*
+ * COEN 317
+ * Distributed Editor
+ * The operations the Client's benchmarks measure, made by Workloads in the
+ * default package (see Workload)
+ */
+
+package benchmarks;
+
+public interface ClientWorkloads {
+    //A text file of size bytes read into a PieceTableDocument, as the editor opens
+    //files it can edit (up to TextEditor.LARGE_FILE); returns the document
+    Workload read(long size) throws Exception;
+
+    //A text file of size bytes mapped and all of its lines found (LargeFileModel),
+    //as the editor opens files too big to edit; returns the first line
+    Workload index(long size) throws Exception;
+
+    static ClientWorkloads load() throws ReflectiveOperationException {
+        return (ClientWorkloads) Class.forName("Workloads").getDeclaredConstructor().newInstance();
+    }
+}
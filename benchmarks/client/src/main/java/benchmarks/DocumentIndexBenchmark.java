@@ -0,0 +1,55 @@
+/*
+ * COEN 317
+ * Distributed Editor
+ * Mapping a text file and finding all of its lines (LargeFileModel), as the
+ * editor opens files too big to edit. The score is files indexed per second;
+ * the bytes counter is the same in bytes per second.
+ */
+
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = "-Djava.awt.headless=true")
+@State(Scope.Thread)
+public class DocumentIndexBenchmark {
+    @Param({"1M", "16M", "256M"})
+    String size;
+
+    //Bytes indexed, reported per second
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Bytes {
+        public long bytes;
+
+        @Setup(Level.Iteration)
+        public void clear() {
+            bytes = 0;
+        }
+    }
+
+    private long bytes;
+    private Workload index;
+
+    @Setup
+    public void setup() throws Exception {
+        bytes = Workload.bytes(size);
+        index = ClientWorkloads.load().index(bytes);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        index.close();
+    }
+
+    @Benchmark
+    public Object index(Bytes counter) throws Exception {
+        counter.bytes += bytes;
+        return index.run();
+    }
+}
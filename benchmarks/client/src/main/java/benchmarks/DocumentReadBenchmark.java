@@ -0,0 +1,55 @@
+/*
+ * COEN 317
+ * Distributed Editor
+ * Reading a text file into a PieceTableDocument, as the editor opens files it
+ * can edit (up to TextEditor.LARGE_FILE, 32M). The score is files read per
+ * second; the bytes counter is the same in bytes per second.
+ */
+
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = "-Djava.awt.headless=true")
+@State(Scope.Thread)
+public class DocumentReadBenchmark {
+    @Param({"1M", "16M"})
+    String size;
+
+    //Bytes read, reported per second
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Bytes {
+        public long bytes;
+
+        @Setup(Level.Iteration)
+        public void clear() {
+            bytes = 0;
+        }
+    }
+
+    private long bytes;
+    private Workload read;
+
+    @Setup
+    public void setup() throws Exception {
+        bytes = Workload.bytes(size);
+        read = ClientWorkloads.load().read(bytes);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        read.close();
+    }
+
+    @Benchmark
+    public Object read(Bytes counter) throws Exception {
+        counter.bytes += bytes;
+        return read.run();
+    }
+}
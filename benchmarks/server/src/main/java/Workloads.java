@@ -0,0 +1,367 @@
+/*
+ * COEN 317
+ * Distributed Editor
+ * The operations the Server's benchmarks measure (see benchmarks.ServerWorkloads)
+ *
+ * The transfers run a real Server, which keeps its files in .blobs and
+ * .partial in the working directory: run the benchmarks from an empty one.
+ */
+
+import benchmarks.ServerWorkloads;
+import benchmarks.Workload;
+
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.file.*;
+import java.util.*;
+
+public class Workloads implements ServerWorkloads {
+    private static final String TEXT = "The quick brown fox jumps over the lazy dog. ";
+
+    //Port of the Server the transfers use, once started (one per JVM: its state is static)
+    private static int port;
+
+    //A chat message of about length characters
+    private static String message(int length) {
+        StringBuilder text = new StringBuilder(length + TEXT.length());
+        while (text.length() < length) {
+            text.append(TEXT);
+        }
+        return text.substring(0, length);
+    }
+
+    @Override
+    public Workload encode(int length) {
+        String text = message(length);
+        return () -> WireCodec.encode(WireCodec.MESSAGE, 0, WireCodec.utf8(text));
+    }
+
+    @Override
+    public Workload decode(int length) {
+        byte[] frame = WireCodec.encode(WireCodec.MESSAGE, 0, WireCodec.utf8(message(length)));
+        return () -> WireCodec.decode(ByteBuffer.wrap(frame)).text();
+    }
+
+    @Override
+    public Workload encodeObject(int length) {
+        String text = message(length);
+        return () -> ObjectFrames.encode(new ChatMessage(ChatMessage.MESSAGE, text));
+    }
+
+    @Override
+    public Workload decodeObject(int length) throws IOException {
+        byte[] object = ObjectFrames.encode(new ChatMessage(ChatMessage.MESSAGE, message(length)));
+        byte[] body = Arrays.copyOfRange(object, 4, object.length);
+        return () -> ObjectFrames.decode(body);
+    }
+
+    @Override
+    public Workload compress(int length) {
+        byte[] frame = WireCodec.encode(WireCodec.MESSAGE, 0, WireCodec.utf8(message(length)));
+
+        //Both ends of one connection's compression, which must see the frames in order
+        FrameCompression sender = new FrameCompression();
+        FrameCompression receiver = new FrameCompression();
+        return () -> receiver.decompress(WireCodec.decode(sender.compress(ByteBuffer.wrap(frame))));
+    }
+
+    @Override
+    public Workload broadcast(int clients, boolean logged) throws IOException {
+        TextServer server = new TextServer(0);
+        List<OutboundQueue> queues = new ArrayList<>();
+        TextServer.ClientSession first = null;
+
+        for (int i = 0; i < clients; i++) {
+            OutboundQueue queue = new OutboundQueue(1024, OutboundQueue.Overflow.DROP_OLDEST);
+            TextServer.ClientSession client = server.new ClientSession() {
+                @Override
+                void sendFrame(ByteBuffer frame, OutboundQueue.Channel channel) {
+                    queue.offer(frame, channel);
+                }
+
+                @Override
+                OutboundQueue outbound() {
+                    return queue;
+                }
+
+                @Override
+                void stream(FileSender sender) {
+                    queue.addSource(sender);
+                }
+
+                @Override
+                boolean isConnected() {
+                    return true;
+                }
+
+                @Override
+                void push() {
+                    queue.push();
+                }
+
+                @Override
+                void close() {
+                    queue.close();
+                }
+            };
+            client.username = "client" + i;
+            server.add(client);
+            queues.add(queue);
+            if (first == null) first = client;
+        }
+
+        //The event log writes to System.out, which in a JMH fork goes back to JMH
+        //to be printed; a file stands in for the Server's console
+        PrintStream console = System.out;
+        Path log = logged ? Files.createTempFile("broadcast", ".log") : null;
+        PrintStream out = logged ? new PrintStream(new BufferedOutputStream(Files.newOutputStream(log)), false) : null;
+        if (logged) {
+            System.setOut(out);
+        } else {
+            EventLog.level(EventLog.Level.OFF);
+        }
+
+        TextServer.ClientSession sender = first;
+        WireCodec.Frame message = new WireCodec.Frame(WireCodec.MESSAGE, 0, WireCodec.utf8(message(64)));
+        ByteBuffer[] batch = new ByteBuffer[OutboundQueue.BATCH_FRAMES];
+        return new Workload() {
+            @Override
+            public Object run() throws Exception {
+                sender.handle(message);
+                long bytes = 0;
+                for (OutboundQueue queue : queues) {
+                    int k;
+                    while ((k = queue.drain(batch, 0)) > 0) {
+                        for (int i = 0; i < k; i++) {
+                            bytes += batch[i].remaining();
+                            batch[i] = null;
+                        }
+                    }
+                }
+                return bytes;
+            }
+
+            @Override
+            public void close() throws IOException {
+                if (!logged) {
+                    EventLog.level(EventLog.Level.INFO);
+                    return;
+                }
+                EventLog.flush();
+                System.setOut(console);
+                out.close();
+                Files.delete(log);
+            }
+        };
+    }
+
+    @Override
+    public Workload upload(long size) throws Exception {
+        Transfers transfers = new Transfers(size);
+        int[] uploads = {0};
+        return new Workload() {
+            @Override
+            public Object run() throws IOException {
+                return transfers.client.upload(transfers.file, "upload-" + ++uploads[0]);
+            }
+
+            @Override
+            public void close() throws IOException {
+                transfers.close();
+            }
+        };
+    }
+
+    @Override
+    public Workload download(long size) throws Exception {
+        Transfers transfers = new Transfers(size);
+        String path = "bench/" + transfers.file.getFileName();
+        transfers.client.upload(transfers.file, transfers.file.getFileName().toString());
+        return new Workload() {
+            @Override
+            public Object run() throws IOException {
+                return transfers.client.download(path);
+            }
+
+            @Override
+            public void close() throws IOException {
+                transfers.close();
+            }
+        };
+    }
+
+    //Start the Server the transfers use, unless it is running
+    private static synchronized int server() throws IOException {
+        if (port != 0) return port;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        Thread server = new Thread(() -> TextServer.main(new String[] {
+                String.valueOf(port), "--mode=nio", "--stats=0", "--log=warn"}), "server");
+        server.setDaemon(true);
+        server.start();
+        return port;
+    }
+
+    //A file to transfer in a scratch directory, and a Client logged in to move it
+    private static class Transfers implements Closeable {
+        final Path dir, file;
+        final LoopbackClient client;
+
+        Transfers(long size) throws IOException, InterruptedException {
+            dir = Files.createTempDirectory("benchmark");
+            file = dir.resolve("file-" + size);
+            write(file, size);
+            client = new LoopbackClient(server(), "bench", dir);
+        }
+
+        @Override
+        public void close() throws IOException {
+            client.close();
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+                for (Path f : files) {
+                    Files.delete(f);
+                }
+            }
+            Files.delete(dir);
+        }
+    }
+
+    //A file of random bytes (which compression cannot shrink)
+    private static void write(Path file, long size) throws IOException {
+        Random random = new Random(size);
+        byte[] block = new byte[1 << 20];
+        try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(file))) {
+            for (long left = size; left > 0; left -= block.length) {
+                random.nextBytes(block);
+                out.write(block, 0, (int) Math.min(left, block.length));
+            }
+        }
+    }
+
+    //Just enough of a version 10 Client to move files, on one connection
+    private static class LoopbackClient implements Closeable {
+        private final Socket socket;
+        private final DataInputStream in;
+        private final OutputStream out;
+        private final Path dir;
+        private int nextRequestId;
+
+        LoopbackClient(int port, String username, Path dir) throws IOException, InterruptedException {
+            this.dir = dir;
+            socket = connect(port);
+            socket.setTcpNoDelay(true);
+            in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), WireCodec.CHUNK_SIZE));
+            out = new BufferedOutputStream(socket.getOutputStream(), WireCodec.CHUNK_SIZE);
+
+            WireCodec.write(out, WireCodec.HELLO, 0, new WireCodec.Writer().varint(WireCodec.VERSION).varint(0).toByteArray());
+            WireCodec.write(out, WireCodec.LOGIN, 0, WireCodec.utf8(username));
+            out.flush();
+            until(WireCodec.HELLO);
+        }
+
+        //Connect once the Server is listening
+        private static Socket connect(int port) throws IOException, InterruptedException {
+            for (int attempt = 0; ; attempt++) {
+                try {
+                    return new Socket(InetAddress.getLoopbackAddress(), port);
+                } catch (ConnectException e) {
+                    if (attempt == 100) throw e;
+                    Thread.sleep(50);
+                }
+            }
+        }
+
+        private WireCodec.Frame until(int type) throws IOException {
+            while (true) {
+                WireCodec.Frame frame = WireCodec.read(in);
+                if (frame.type == type) return frame;
+            }
+        }
+
+        private void write(ByteBuffer frame) throws IOException {
+            out.write(frame.array(), frame.arrayOffset() + frame.position(), frame.remaining());
+        }
+
+        //Upload a file under the given name (a new one, so it is not sent as a delta,
+        //and without its digest, so it is not deduplicated); returns its size once
+        //the Server has stored it
+        long upload(Path file, String name) throws IOException {
+            try (FileSender sender = new FileSender(++nextRequestId, file, name)) {
+                write(sender.nextFrame());
+                out.flush();
+                WireCodec.Reader resume = new WireCodec.Reader(until(WireCodec.FILE_RESUME).payload);
+                resume.varint();
+                sender.resumeFrom(resume.varlong());
+
+                int window = WireCodec.WINDOW_CHUNKS;
+                ByteBuffer frame;
+                while ((frame = sender.nextFrame()) != null) {
+                    if (frame.get(frame.position()) == WireCodec.FILE_CHUNK) {
+                        while (window == 0) {
+                            out.flush();
+                            window += WireCodec.readVarint(until(WireCodec.WINDOW).payload);
+                        }
+                        window--;
+                    }
+                    write(frame);
+                }
+                out.flush();
+
+                //WINDOWs still on their way come before the REPLY
+                WireCodec.Reader reply = new WireCodec.Reader(until(WireCodec.REPLY).payload);
+                reply.varint();
+                if (reply.varint() != 0) throw new IOException(reply.text());
+                return sender.size;
+            }
+        }
+
+        //Download a whole file into the scratch directory; returns its size
+        long download(String path) throws IOException {
+            int id = ++nextRequestId;
+            WireCodec.write(out, WireCodec.FILE_GET, 0, new WireCodec.Writer().varint(id).varlong(0)
+                    .varlong(Long.MAX_VALUE).text(path).toByteArray());
+            out.flush();
+
+            FileReceiver receiver = null;
+            long chunks = 0;
+            try {
+                while (true) {
+                    WireCodec.Frame frame = WireCodec.read(in);
+                    switch (frame.type) {
+                        case WireCodec.FILE_BEGIN:
+                            Path target = dir.resolve("download");
+                            receiver = new FileReceiver(frame, target, dir.resolve("download.part"), 0, false);
+                            break;
+
+                        case WireCodec.FILE_CHUNK:
+                            receiver.write(frame.payload);
+                            if (++chunks % WireCodec.WINDOW_UPDATE == 0) {
+                                WireCodec.write(out, WireCodec.WINDOW, 0, WireCodec.varint(WireCodec.WINDOW_UPDATE));
+                                out.flush();
+                            }
+                            break;
+
+                        case WireCodec.FILE_END:
+                            if (receiver == null || !receiver.finish(frame.payload)) {
+                                throw new IOException("Download of " + path + " failed");
+                            }
+                            long size = receiver.size;
+                            receiver = null;
+                            return size;
+                    }
+                }
+            } finally {
+                if (receiver != null) receiver.close();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            WireCodec.write(out, WireCodec.LOGOUT, 0, new byte[0]);
+            out.flush();
+            socket.close();
+        }
+    }
+}
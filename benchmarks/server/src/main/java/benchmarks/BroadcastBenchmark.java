@@ -0,0 +1,44 @@
+/*
+ * COEN 317
+ * Distributed Editor
+ * One chat message sent to N Clients held in memory: the message is handled as
+ * the Server handles one read from a socket, and every Client's queue is then
+ * emptied as its writer would. With log=info the event log writes a line per
+ * message to a file, as the Server does by default; with log=off it is turned off.
+ */
+
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Thread)
+public class BroadcastBenchmark {
+    @Param({"1", "10", "100", "1000"})
+    int clients;
+
+    @Param({"info", "off"})
+    String log;
+
+    private Workload broadcast;
+
+    @Setup
+    public void setup() throws Exception {
+        broadcast = ServerWorkloads.load().broadcast(clients, log.equals("info"));
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        broadcast.close();
+    }
+
+    @Benchmark
+    public Object broadcast() throws Exception {
+        return broadcast.run();
+    }
+}
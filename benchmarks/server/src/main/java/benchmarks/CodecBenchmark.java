@@ -0,0 +1,59 @@
+/*
+ * COEN 317
+ * Distributed Editor
+ * Encoding and decoding a chat message: as a WireCodec frame, as the
+ * ObjectFrames of version 1, and compressed (version 8)
+ */
+
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Thread)
+public class CodecBenchmark {
+    @Param({"16", "256", "4096"})
+    int length; //Characters of the message
+
+    private Workload encode, decode, encodeObject, decodeObject, compress;
+
+    @Setup
+    public void setup() throws Exception {
+        ServerWorkloads workloads = ServerWorkloads.load();
+        encode = workloads.encode(length);
+        decode = workloads.decode(length);
+        encodeObject = workloads.encodeObject(length);
+        decodeObject = workloads.decodeObject(length);
+        compress = workloads.compress(length);
+    }
+
+    @Benchmark
+    public Object encode() throws Exception {
+        return encode.run();
+    }
+
+    @Benchmark
+    public Object decode() throws Exception {
+        return decode.run();
+    }
+
+    @Benchmark
+    public Object encodeObject() throws Exception {
+        return encodeObject.run();
+    }
+
+    @Benchmark
+    public Object decodeObject() throws Exception {
+        return decodeObject.run();
+    }
+
+    @Benchmark
+    public Object compress() throws Exception {
+        return compress.run();
+    }
+}
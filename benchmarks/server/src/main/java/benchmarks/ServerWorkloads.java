@@ -0,0 +1,34 @@
+/*
+ * COEN 317
+ * Distributed Editor
+ * The operations the Server's benchmarks measure, made by Workloads in the
+ * default package (see Workload)
+ */
+
+package benchmarks;
+
+public interface ServerWorkloads {
+    //A chat message of length characters: encoded as a WireCodec frame, decoded
+    //from one, encoded and decoded as the ObjectFrames of version 1, and
+    //compressed then decompressed by both ends of a connection (version 8)
+    Workload encode(int length) throws Exception;
+    Workload decode(int length) throws Exception;
+    Workload encodeObject(int length) throws Exception;
+    Workload decodeObject(int length) throws Exception;
+    Workload compress(int length) throws Exception;
+
+    //A chat message broadcast to clients Clients held in memory, handled as the
+    //Server handles one read from a socket, then every Client's queue emptied as
+    //its writer would; logged as the Server logs by default (to a temporary file),
+    //or with the event log off
+    Workload broadcast(int clients, boolean logged) throws Exception;
+
+    //A file of size bytes uploaded to, or downloaded from, a Server on a loopback
+    //port, as a version 10 Client does (flow control included); returns the bytes moved
+    Workload upload(long size) throws Exception;
+    Workload download(long size) throws Exception;
+
+    static ServerWorkloads load() throws ReflectiveOperationException {
+        return (ServerWorkloads) Class.forName("Workloads").getDeclaredConstructor().newInstance();
+    }
+}
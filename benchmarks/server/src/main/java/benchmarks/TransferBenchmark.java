@@ -0,0 +1,63 @@
+/*
+ * COEN 317
+ * Distributed Editor
+ * Uploading and downloading a file through a Server on a loopback port, as a
+ * version 10 Client does (flow control included). The score is transfers per
+ * second; the bytes counter is the same in bytes per second.
+ *
+ * Files of 1G and up work too: -p size=1G. The Server keeps its files in .blobs
+ * and .partial in the working directory: run the benchmarks from an empty one.
+ */
+
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.BenchmarkParams;
+
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = "-Djmh.shutdownTimeout=0") //The Server's threads never finish
+@State(Scope.Thread)
+public class TransferBenchmark {
+    @Param({"1K", "1M", "64M"})
+    String size;
+
+    //Bytes moved, reported per second
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Moved {
+        public long bytes;
+
+        @Setup(Level.Iteration)
+        public void clear() {
+            bytes = 0;
+        }
+    }
+
+    private Workload transfer; //Whichever of the two is being run
+
+    @Setup
+    public void setup(BenchmarkParams params) throws Exception {
+        ServerWorkloads workloads = ServerWorkloads.load();
+        transfer = params.getBenchmark().endsWith(".upload")
+                ? workloads.upload(Workload.bytes(size)) : workloads.download(Workload.bytes(size));
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        transfer.close();
+    }
+
+    @Benchmark
+    public void upload(Moved moved) throws Exception {
+        moved.bytes += (Long) transfer.run();
+    }
+
+    @Benchmark
+    public void download(Moved moved) throws Exception {
+        moved.bytes += (Long) transfer.run();
+    }
+}
@@ -0,0 +1,30 @@
+/*
+ * COEN 317
+ * Distributed Editor
+ * One operation of a benchmark, set up by the code under test
+ *
+ * JMH will not run benchmarks in the default package, and a class in a package
+ * cannot name one in the default package, where all of the editor's classes
+ * are. So the benchmarks are here, in package benchmarks, and what they measure
+ * is written next to them in the default package (Workloads), which hands each
+ * operation over as a Workload. Calling one through the interface costs the
+ * benchmark a call the JIT inlines, since there is one implementation per call site.
+ */
+
+package benchmarks;
+
+public interface Workload extends AutoCloseable {
+    //Run the operation once; the benchmark hands what it returns to JMH's Blackhole, or counts it
+    Object run() throws Exception;
+
+    //Undo what setting the operation up did (temporary files, the log, ...)
+    @Override
+    default void close() throws Exception { }
+
+    //Bytes in a size such as "64K", "1M" or "1G"
+    static long bytes(String size) {
+        String upper = size.toUpperCase();
+        int shift = upper.endsWith("K") ? 10 : upper.endsWith("M") ? 20 : upper.endsWith("G") ? 30 : 0;
+        return Long.parseLong(shift == 0 ? upper : upper.substring(0, upper.length() - 1)) << shift;
+    }
+}